@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.api;
+
+import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.Direction;
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Stores and accesses messages without making the caller wait. Each method
+ * does the same as its counterpart in {@link MessagesService}, but returns
+ * right away with a future that completes once the store is done. If the
+ * store fails, the future completes exceptionally with the same exception the
+ * blocking method would have thrown.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ * @see ExecutorAsyncMessagesService
+ * @see BlockingMessagesService
+ */
+public interface AsyncMessagesService {
+
+    /**
+     * @return every message, oldest first.
+     * @see MessagesService#getPreviewMessages()
+     */
+    CompletableFuture<List<BasicMessage>> getPreviewMessages();
+
+    /**
+     * @see MessagesService#getPreviewMessages(String, int, Direction)
+     */
+    CompletableFuture<List<BasicMessage>> getPreviewMessages(String after, int limit, Direction direction);
+
+    /**
+     * @see MessagesService#getPreviewMessagesTo(String)
+     */
+    CompletableFuture<List<BasicMessage>> getPreviewMessagesTo(String recipient);
+
+    /**
+     * @see MessagesService#getPreviewMessagesTo(String, String, int,
+     * Direction)
+     */
+    CompletableFuture<List<BasicMessage>> getPreviewMessagesTo(String recipient, String after, int limit, Direction direction);
+
+    /**
+     * @see MessagesService#search(String, int)
+     */
+    CompletableFuture<List<BasicMessage>> search(String query, int limit);
+
+    CompletableFuture<BasicMessage> getBasicMessage(String id);
+
+    CompletableFuture<MimeMessage> getMessage(String id);
+
+    CompletableFuture<InputStream> getMessageStream(String id);
+
+    CompletableFuture<InputStream> getMessageHeaders(String id);
+
+    CompletableFuture<InputStream> getMessageBody(String id);
+
+    CompletableFuture<InputStream> getMessagePart(String id, int number);
+
+    /**
+     * Stores the message. The stream is read by the store, not the caller, so
+     * it must stay open until the future completes.
+     *
+     * @see MessagesService#create(MessageAddress, List, InputStream)
+     */
+    CompletableFuture<String> create(MessageAddress sender, List<MessageAddress> recipients, InputStream messageStream);
+
+    CompletableFuture<Void> deleteMessage(String id);
+
+    /**
+     * @see MessagesService#deleteAllMessages()
+     */
+    CompletableFuture<Void> deleteAllMessages();
+
+    CompletableFuture<MessageAddress> createAddress(String address, String name);
+
+    CompletableFuture<MessageAddress> getAddress(String address);
+
+    CompletableFuture<MessageAddress> getAddress(long id);
+
+    /**
+     * @see MessagesService#getAddresses(Collection)
+     */
+    CompletableFuture<Map<String, MessageAddress>> getAddresses(Collection<String> addresses);
+
+    /**
+     * @see MessagesService#getStats()
+     */
+    CompletableFuture<Map<String, Long>> getStats();
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.api;
+
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.Direction;
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Makes an {@link AsyncMessagesService} usable where a blocking
+ * {@link MessagesService} is needed, by waiting for each future. Failures are
+ * rethrown as they were thrown by the store, rather than wrapped, so callers
+ * see the same exceptions either way.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class BlockingMessagesService implements MessagesService {
+
+    private final AsyncMessagesService srv;
+
+    public BlockingMessagesService(AsyncMessagesService asyncMessagesService) {
+        srv = asyncMessagesService;
+    }
+
+    @Override
+    public List<BasicMessage> getPreviewMessages() {
+        return await(srv.getPreviewMessages());
+    }
+
+    @Override
+    public List<BasicMessage> getPreviewMessages(String after, int limit, Direction direction) {
+        return await(srv.getPreviewMessages(after, limit, direction));
+    }
+
+    @Override
+    public List<BasicMessage> getPreviewMessagesTo(String recipient) {
+        return await(srv.getPreviewMessagesTo(recipient));
+    }
+
+    @Override
+    public List<BasicMessage> getPreviewMessagesTo(String recipient, String after, int limit, Direction direction) {
+        return await(srv.getPreviewMessagesTo(recipient, after, limit, direction));
+    }
+
+    @Override
+    public List<BasicMessage> search(String query, int limit) {
+        return await(srv.search(query, limit));
+    }
+
+    @Override
+    public BasicMessage getBasicMessage(String id) {
+        return await(srv.getBasicMessage(id));
+    }
+
+    @Override
+    public MimeMessage getMessage(String id) {
+        return await(srv.getMessage(id));
+    }
+
+    @Override
+    public InputStream getMessageStream(String id) {
+        return await(srv.getMessageStream(id));
+    }
+
+    @Override
+    public InputStream getMessageHeaders(String id) {
+        return await(srv.getMessageHeaders(id));
+    }
+
+    @Override
+    public InputStream getMessageBody(String id) {
+        return await(srv.getMessageBody(id));
+    }
+
+    @Override
+    public InputStream getMessagePart(String id, int number) {
+        return await(srv.getMessagePart(id, number));
+    }
+
+    @Override
+    public String create(MessageAddress sender, List<MessageAddress> recipients, InputStream messageStream) {
+        return await(srv.create(sender, recipients, messageStream));
+    }
+
+    @Override
+    public void deleteMessage(String id) {
+        await(srv.deleteMessage(id));
+    }
+
+    @Override
+    public void deleteAllMessages() {
+        await(srv.deleteAllMessages());
+    }
+
+    @Override
+    public MessageAddress createAddress(String address, String name) {
+        return await(srv.createAddress(address, name));
+    }
+
+    @Override
+    public MessageAddress getAddress(String address) {
+        return await(srv.getAddress(address));
+    }
+
+    @Override
+    public MessageAddress getAddress(long id) {
+        return await(srv.getAddress(id));
+    }
+
+    @Override
+    public Map<String, MessageAddress> getAddresses(Collection<String> addresses) {
+        return await(srv.getAddresses(addresses));
+    }
+
+    @Override
+    public Map<String, Long> getStats() {
+        return await(srv.getStats());
+    }
+
+    /**
+     * Waits for the future, and throws what it failed with, unwrapped.
+     *
+     * @param <T> the type of the result
+     * @param future the future to wait for
+     * @return the result of the future.
+     */
+    public static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new AppServerException("The store failed: " + cause, cause);
+        } catch (CancellationException ex) {
+            throw new AppServerException("The store call was cancelled.", ex);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.api;
+
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.Direction;
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.mail.internet.MimeMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the calls of a blocking {@link MessagesService} on a dedicated pool of
+ * store threads, so that the callers do not wait on it.
+ * <p>
+ * The pool has a fixed number of threads (the
+ * {@code simiantoupee.store.threads} system property, 8 if not set) and a
+ * bounded queue of waiting calls ({@code simiantoupee.store.queueSize}, 1000
+ * if not set). Once the queue is full, further calls fail right away with an
+ * {@link AppServerException} rather than piling up without limit; their
+ * futures are returned already failed.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class ExecutorAsyncMessagesService implements AsyncMessagesService, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExecutorAsyncMessagesService.class);
+
+    private final MessagesService srv;
+    private final ThreadPoolExecutor executor;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Wraps the store with a pool sized by the system properties.
+     *
+     * @param messagesService the blocking store
+     */
+    public ExecutorAsyncMessagesService(MessagesService messagesService) {
+        this(messagesService, initThreads(), initQueueSize());
+    }
+
+    /**
+     * @param messagesService the blocking store
+     * @param threads how many calls to the store can run at once
+     * @param queueSize how many calls can wait for a thread
+     */
+    public ExecutorAsyncMessagesService(MessagesService messagesService, int threads, int queueSize) {
+        srv = messagesService;
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "simiantoupee-store-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        LOG.info("Running store calls on {} threads, with up to {} waiting.", threads, queueSize);
+    }
+
+    @Override
+    public CompletableFuture<List<BasicMessage>> getPreviewMessages() {
+        return submit(() -> srv.getPreviewMessages());
+    }
+
+    @Override
+    public CompletableFuture<List<BasicMessage>> getPreviewMessages(String after, int limit, Direction direction) {
+        return submit(() -> srv.getPreviewMessages(after, limit, direction));
+    }
+
+    @Override
+    public CompletableFuture<List<BasicMessage>> getPreviewMessagesTo(String recipient) {
+        return submit(() -> srv.getPreviewMessagesTo(recipient));
+    }
+
+    @Override
+    public CompletableFuture<List<BasicMessage>> getPreviewMessagesTo(String recipient, String after, int limit, Direction direction) {
+        return submit(() -> srv.getPreviewMessagesTo(recipient, after, limit, direction));
+    }
+
+    @Override
+    public CompletableFuture<List<BasicMessage>> search(String query, int limit) {
+        return submit(() -> srv.search(query, limit));
+    }
+
+    @Override
+    public CompletableFuture<BasicMessage> getBasicMessage(String id) {
+        return submit(() -> srv.getBasicMessage(id));
+    }
+
+    @Override
+    public CompletableFuture<MimeMessage> getMessage(String id) {
+        return submit(() -> srv.getMessage(id));
+    }
+
+    @Override
+    public CompletableFuture<InputStream> getMessageStream(String id) {
+        return submit(() -> srv.getMessageStream(id));
+    }
+
+    @Override
+    public CompletableFuture<InputStream> getMessageHeaders(String id) {
+        return submit(() -> srv.getMessageHeaders(id));
+    }
+
+    @Override
+    public CompletableFuture<InputStream> getMessageBody(String id) {
+        return submit(() -> srv.getMessageBody(id));
+    }
+
+    @Override
+    public CompletableFuture<InputStream> getMessagePart(String id, int number) {
+        return submit(() -> srv.getMessagePart(id, number));
+    }
+
+    @Override
+    public CompletableFuture<String> create(MessageAddress sender, List<MessageAddress> recipients, InputStream messageStream) {
+        return submit(() -> srv.create(sender, recipients, messageStream));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteMessage(String id) {
+        return submit(() -> {
+            srv.deleteMessage(id);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAllMessages() {
+        return submit(() -> {
+            srv.deleteAllMessages();
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<MessageAddress> createAddress(String address, String name) {
+        return submit(() -> srv.createAddress(address, name));
+    }
+
+    @Override
+    public CompletableFuture<MessageAddress> getAddress(String address) {
+        return submit(() -> srv.getAddress(address));
+    }
+
+    @Override
+    public CompletableFuture<MessageAddress> getAddress(long id) {
+        return submit(() -> srv.getAddress(id));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, MessageAddress>> getAddresses(Collection<String> addresses) {
+        return submit(() -> srv.getAddresses(addresses));
+    }
+
+    /**
+     * Adds the counters of the store threads to those of the store:
+     * store.executor.active, store.executor.queued, store.executor.completed,
+     * and store.executor.rejected.
+     *
+     * @return the counters, by name.
+     */
+    @Override
+    public CompletableFuture<Map<String, Long>> getStats() {
+        return submit(() -> {
+            Map<String, Long> stats = new HashMap<>(srv.getStats());
+            addStats(stats);
+            return stats;
+        });
+    }
+
+    /**
+     * Adds how many calls are running, waiting, done, and rejected to the
+     * stats. Unlike {@link #getStats()}, this does not wait for a store
+     * thread, so it works even when the queue is full.
+     *
+     * @param stats where to put the counts
+     */
+    public void addStats(Map<String, Long> stats) {
+        stats.put("store.executor.active", (long) executor.getActiveCount());
+        stats.put("store.executor.queued", (long) executor.getQueue().size());
+        stats.put("store.executor.completed", executor.getCompletedTaskCount());
+        stats.put("store.executor.rejected", rejected.sum());
+    }
+
+    /**
+     * Stops taking calls. Calls already taken are still run.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> call) {
+        try {
+            return CompletableFuture.supplyAsync(call, executor);
+        } catch (RejectedExecutionException ex) {
+            rejected.increment();
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new AppServerException(
+                    "The store is too busy. " + executor.getQueue().size() + " calls are already waiting.", ex));
+            return failed;
+        }
+    }
+
+    private static int initThreads() {
+        int threads = Integer.getInteger("simiantoupee.store.threads", 8);
+        if (threads < 1) {
+            throw new AppServerException("simiantoupee.store.threads must be at least 1, but was " + threads);
+        }
+        return threads;
+    }
+
+    private static int initQueueSize() {
+        int queueSize = Integer.getInteger("simiantoupee.store.queueSize", 1000);
+        if (queueSize < 1) {
+            throw new AppServerException("simiantoupee.store.queueSize must be at least 1, but was " + queueSize);
+        }
+        return queueSize;
+    }
+}
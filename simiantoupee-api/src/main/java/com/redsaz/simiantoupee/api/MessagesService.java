@@ -16,9 +16,12 @@
 package com.redsaz.simiantoupee.api;
 
 import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.Direction;
 import com.redsaz.simiantoupee.api.model.MessageAddress;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import javax.mail.internet.MimeMessage;
 
 /**
@@ -28,21 +31,127 @@ import javax.mail.internet.MimeMessage;
  */
 public interface MessagesService {
 
+    /**
+     * @return every message, oldest first.
+     */
     List<BasicMessage> getPreviewMessages();
 
+    /**
+     * Lists a page of messages, ordered by the time they were received.
+     *
+     * @param after the id of the last message of the previous page, or null
+     * to start from the first page
+     * @param limit the most messages to return
+     * @param direction whether to list the newest or oldest messages first
+     * @return up to limit messages that come after the given message.
+     */
+    List<BasicMessage> getPreviewMessages(String after, int limit, Direction direction);
+
+    /**
+     * @param recipient the email address the messages were sent to
+     * @return every message sent to the recipient, oldest first.
+     */
+    List<BasicMessage> getPreviewMessagesTo(String recipient);
+
+    /**
+     * Lists a page of the messages sent to a recipient, ordered by the time
+     * they were received.
+     *
+     * @param recipient the email address the messages were sent to
+     * @param after the id of the last message of the previous page, or null
+     * to start from the first page
+     * @param limit the most messages to return
+     * @param direction whether to list the newest or oldest messages first
+     * @return up to limit messages that come after the given message.
+     */
+    List<BasicMessage> getPreviewMessagesTo(String recipient, String after, int limit, Direction direction);
+
+    /**
+     * Finds the messages which have every word of the query in their subject,
+     * body, sender, or recipients. Email addresses in the query only match
+     * that exact address.
+     *
+     * @param query the words to search for
+     * @param limit the most messages to return
+     * @return up to limit matching messages, newest first.
+     */
+    List<BasicMessage> search(String query, int limit);
+
     public BasicMessage getBasicMessage(String id);
 
     public MimeMessage getMessage(String id);
 
     public InputStream getMessageStream(String id);
 
-    public String create(MessageAddress sender, InputStream messageStream);
+    /**
+     * Reads only the header block of the message, using the offsets recorded
+     * at ingest.
+     *
+     * @param id the id of the message
+     * @return the raw header lines, each with its line break, but without the
+     * blank line which ends them, or null if there is no such message.
+     */
+    InputStream getMessageHeaders(String id);
+
+    /**
+     * Reads only the body of the message, as it was received (nothing is
+     * decoded), using the offsets recorded at ingest.
+     *
+     * @param id the id of the message
+     * @return the raw body, after the blank line which ends the headers, or
+     * null if there is no such message.
+     */
+    InputStream getMessageBody(String id);
+
+    /**
+     * Reads only one part of the message, using the offsets recorded at
+     * ingest. The parts are numbered from 1, in the order they appear in the
+     * message, counting only the parts which are not multipart themselves. A
+     * message which is not multipart has only one part, itself.
+     *
+     * @param id the id of the message
+     * @param number the number of the part
+     * @return the raw part (its headers, and its body, not decoded), or null
+     * if there is no such message or part.
+     */
+    InputStream getMessagePart(String id, int number);
+
+    /**
+     * Stores the message.
+     *
+     * @param sender who sent the message
+     * @param recipients who the message was sent to (the envelope recipients,
+     * which include any Bcc recipients)
+     * @param messageStream the raw message
+     * @return the id of the message.
+     */
+    public String create(MessageAddress sender, List<MessageAddress> recipients, InputStream messageStream);
 
     public void deleteMessage(String id);
 
+    /**
+     * Deletes every message. Addresses are kept.
+     */
+    void deleteAllMessages();
+
     public MessageAddress createAddress(String address, String name);
 
     public MessageAddress getAddress(String address);
 
     public MessageAddress getAddress(long id);
+
+    /**
+     * Looks up many addresses at once, such as every recipient of a message,
+     * rather than one call per address.
+     *
+     * @param addresses the email addresses to look up
+     * @return the addresses which exist, by email address.
+     */
+    Map<String, MessageAddress> getAddresses(Collection<String> addresses);
+
+    /**
+     * @return counters about how the store is doing, such as cache hits and
+     * misses, by name.
+     */
+    Map<String, Long> getStats();
 }
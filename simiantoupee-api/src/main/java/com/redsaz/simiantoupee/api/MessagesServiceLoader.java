@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.api;
+
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the configured store among the available
+ * {@link MessagesServiceProvider}s. The store is chosen by name with the
+ * {@code simiantoupee.store} system property, and is "hsql" if not set.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class MessagesServiceLoader {
+
+    public static final String STORE_PROPERTY = "simiantoupee.store";
+    public static final String DEFAULT_STORE = "hsql";
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessagesServiceLoader.class);
+
+    private MessagesServiceLoader() {
+    }
+
+    /**
+     * @return a new instance of the configured store.
+     */
+    public static MessagesService load() {
+        return load(System.getProperty(STORE_PROPERTY, DEFAULT_STORE));
+    }
+
+    /**
+     * @param name the name of the store
+     * @return a new instance of the named store.
+     */
+    public static MessagesService load(String name) {
+        List<String> available = new ArrayList<>();
+        for (MessagesServiceProvider provider : ServiceLoader.load(MessagesServiceProvider.class)) {
+            if (provider.getName().equals(name)) {
+                LOG.info("Using the {} message store.", name);
+                return provider.create();
+            }
+            available.add(provider.getName());
+        }
+        throw new AppServerException("No message store named " + name + " is available. Available stores: " + available);
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.api;
+
+/**
+ * Makes a store of messages available to the app. Stores register their
+ * provider in
+ * {@code META-INF/services/com.redsaz.simiantoupee.api.MessagesServiceProvider}
+ * so that they can be found with {@link MessagesServiceLoader}.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public interface MessagesServiceProvider {
+
+    /**
+     * @return the name used to select this store, such as "hsql".
+     */
+    String getName();
+
+    /**
+     * @return a new store.
+     */
+    MessagesService create();
+}
@@ -24,4 +24,5 @@ public class SimianToupeeMediaType {
 
     public static final String BASIC_MESSAGES_V1_JSON = "application/x-simiantoupee-v1-basic-messages+json";
     public static final String BASIC_MESSAGE_V1_JSON = "application/x-simiantoupee-v1-basic-message+json";
+    public static final String STATS_V1_JSON = "application/x-simiantoupee-v1-stats+json";
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.api.ingest;
+
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parses incoming raw messages into what the stores keep about them, so that
+ * every store reads messages the same way.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class MessageParser {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageParser.class);
+    private static final Session SESSION = Session.getDefaultInstance(new Properties());
+
+    private MessageParser() {
+    }
+
+    /**
+     * @return the mail session used for parsing messages.
+     */
+    public static Session getSession() {
+        return SESSION;
+    }
+
+    /**
+     * Parses the spooled message, while it is still open.
+     *
+     * @param sender who sent the message, or null if unknown
+     * @param recipients the envelope recipients of the message
+     * @param spool the raw message
+     * @param received when the message was received
+     * @return the message details and search terms.
+     */
+    public static ParsedMessage parse(MessageAddress sender, List<MessageAddress> recipients, SpooledMessage spool, Date received) {
+        try (InputStream is = spool.openStream()) {
+            MimeMessage mimeMessage = new MimeMessage(SESSION, is);
+            BasicMessage basicMessage = new BasicMessage(spool.getId(), sender, mimeMessage.getSubject(),
+                    getBasicBodyGist(mimeMessage), spool.getSize(), received,
+                    mimeMessage.getSentDate(), mimeMessage.getMessageID());
+            SearchTerms terms = new SearchTerms()
+                    .add(basicMessage.getSubject())
+                    .add(basicMessage.getBody());
+            if (sender != null) {
+                terms.add(sender.getAddress()).add(sender.getName());
+            }
+            for (MessageAddress recipient : recipients) {
+                terms.add(recipient.getAddress()).add(recipient.getName());
+            }
+            addRecipientTerms(terms, mimeMessage, spool.getId());
+            return new ParsedMessage(basicMessage, terms.getTerms());
+        } catch (MessagingException | IOException ex) {
+            throw new AppServerException("Failed to create message: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Shortens the text, if needed.
+     *
+     * @param text the text to shorten
+     * @param maxChars the most characters the result may have
+     * @param ellipses whether to end shortened text with "..."
+     * @return the text, shortened to maxChars, or empty if text was null.
+     */
+    public static String truncateText(String text, int maxChars, boolean ellipses) {
+        if (maxChars < 1 || (ellipses && maxChars < 4)) {
+            throw new RuntimeException("maxChars must be at least 1 character long without ellipses, or 4 with ellipses.");
+        }
+        if (text == null) {
+            return "";
+        } else if (text.length() > maxChars) {
+            String result;
+            if (ellipses) {
+                StringBuilder sb = new StringBuilder(text.substring(0, maxChars - 3));
+                sb.append("...");
+                result = sb.toString();
+            } else {
+                result = text.substring(0, maxChars);
+            }
+            return result;
+        }
+        return text;
+    }
+
+    private static void addRecipientTerms(SearchTerms terms, MimeMessage mimeMessage, String id) {
+        try {
+            Address[] recipients = mimeMessage.getAllRecipients();
+            if (recipients == null) {
+                return;
+            }
+            for (Address recipient : recipients) {
+                if (recipient instanceof InternetAddress) {
+                    InternetAddress ia = (InternetAddress) recipient;
+                    terms.add(ia.getAddress()).add(ia.getPersonal());
+                } else {
+                    terms.add(recipient.toString());
+                }
+            }
+        } catch (MessagingException ex) {
+            // Malformed recipient headers should not stop the message from
+            // being stored, it just will not be found by its recipients.
+            LOG.debug("Could not read recipients of message_id={}: {}", id, ex.getMessage());
+        }
+    }
+
+    /**
+     * @param mimeMessage the parsed message
+     * @return the text of the first text part of the message, or null if it
+     * has none.
+     */
+    public static String getBasicBodyGist(MimeMessage mimeMessage) {
+        if (mimeMessage == null) {
+            return null;
+        }
+        try {
+            Object content = mimeMessage.getContent();
+            if (content == null) {
+                return null;
+            } else if (content instanceof String) {
+                return (String) content;
+            } else if (content instanceof MimeMultipart) {
+                return multipartToBasicBodyGist((MimeMultipart) content);
+            } else {
+                throw new AppServerException("Don't know how to handle type " + content.getClass().getName());
+            }
+        } catch (MessagingException | IOException ex) {
+            throw new AppServerException("Could not read message content.");
+        }
+    }
+
+    private static String multipartToBasicBodyGist(MimeMultipart multipart) throws MessagingException, IOException {
+        int numParts = multipart.getCount();
+        for (int i = 0; i < numParts; ++i) {
+            MimeBodyPart body = (MimeBodyPart) multipart.getBodyPart(i);
+            Object content = body.getContent();
+            if (content == null) {
+                // Do nothing. Try a different body part.
+            } else if (content instanceof String) {
+                return (String) content;
+            } else if (content instanceof MimeMultipart) {
+                return multipartToBasicBodyGist((MimeMultipart) content);
+            } else {
+                throw new AppServerException("Don't know how to handle type " + content.getClass().getName());
+            }
+        }
+        return null;
+    }
+}
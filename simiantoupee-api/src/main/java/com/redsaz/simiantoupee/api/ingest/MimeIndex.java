@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.api.ingest;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The byte offsets of the header block and of each part of a raw message, as
+ * recorded at ingest, so that the headers, the body, or a single part can be
+ * read without reading (or parsing) the rest of the message.
+ * <p>
+ * The parts are the entities of the message which are not broken down any
+ * further, in the order they appear, numbered from 1. A message which is not
+ * multipart has only one part: the whole message.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class MimeIndex {
+
+    private final long headerEnd;
+    private final long bodyStart;
+    private final long[] partStarts;
+    private final long[] partEnds;
+
+    /**
+     * @param inHeaderEnd the offset just after the last header line
+     * @param inBodyStart the offset of the body, just after the blank line
+     * which ends the headers
+     * @param inPartStarts the offset of the first header of each part
+     * @param inPartEnds the offset just after the body of each part
+     */
+    public MimeIndex(long inHeaderEnd, long inBodyStart, long[] inPartStarts, long[] inPartEnds) {
+        headerEnd = inHeaderEnd;
+        bodyStart = inBodyStart;
+        partStarts = inPartStarts;
+        partEnds = inPartEnds;
+    }
+
+    /**
+     * @param structure the structure of the whole message
+     * @return the offsets of the message and its parts.
+     */
+    public static MimeIndex of(MimeStructure structure) {
+        List<MimeStructure> leaves = structure.getLeaves();
+        long[] starts = new long[leaves.size()];
+        long[] ends = new long[leaves.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = leaves.get(i).getStart();
+            ends[i] = leaves.get(i).getEnd();
+        }
+        return new MimeIndex(structure.getHeaderEnd(), structure.getBodyStart(), starts, ends);
+    }
+
+    /**
+     * @param raw the whole raw message, from index 0 to its limit
+     * @return the offsets of the message and its parts.
+     */
+    public static MimeIndex of(ByteBuffer raw) {
+        return of(MimeStructure.parse(raw));
+    }
+
+    /**
+     * Reads an index written by {@link #encode()}.
+     *
+     * @param encoded the encoded index
+     * @return the index.
+     * @throws IllegalArgumentException if it is not an encoded index
+     */
+    public static MimeIndex decode(String encoded) {
+        String[] fields = encoded.trim().split(" ");
+        if (fields.length < 2 || fields.length % 2 != 0) {
+            throw new IllegalArgumentException("Not a MIME index: " + encoded);
+        }
+        int count = (fields.length - 2) / 2;
+        long[] starts = new long[count];
+        long[] ends = new long[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = Long.parseLong(fields[2 + i * 2]);
+            ends[i] = Long.parseLong(fields[3 + i * 2]);
+        }
+        return new MimeIndex(Long.parseLong(fields[0]), Long.parseLong(fields[1]), starts, ends);
+    }
+
+    /**
+     * @return the index as text: the header end and body start, then the
+     * start and end of each part, separated by spaces.
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder(24 + partStarts.length * 16);
+        sb.append(headerEnd).append(' ').append(bodyStart);
+        for (int i = 0; i < partStarts.length; i++) {
+            sb.append(' ').append(partStarts[i]).append(' ').append(partEnds[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the length of the header lines, each with its line break, but
+     * without the blank line which ends them.
+     */
+    public long getHeaderEnd() {
+        return headerEnd;
+    }
+
+    public long getBodyStart() {
+        return bodyStart;
+    }
+
+    public int getPartCount() {
+        return partStarts.length;
+    }
+
+    /**
+     * @param number the part number, from 1
+     * @return the offset of the first header of the part.
+     */
+    public long getPartStart(int number) {
+        return partStarts[number - 1];
+    }
+
+    /**
+     * @param number the part number, from 1
+     * @return the offset just after the body of the part.
+     */
+    public long getPartEnd(int number) {
+        return partEnds[number - 1];
+    }
+
+    /**
+     * @param number a part number
+     * @return true if the message has a part with that number.
+     */
+    public boolean hasPart(int number) {
+        return number >= 1 && number <= partStarts.length;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.api.ingest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Where the headers and body of a MIME entity (a message, or one of its parts)
+ * are in the raw bytes of a message. Multipart entities are broken down into
+ * their parts, so that any part can be found without parsing the whole
+ * message. The bytes are only scanned for header and boundary lines; nothing
+ * is decoded.
+ * <p>
+ * As in RFC 2046, the line break before a boundary line belongs to the
+ * boundary, so the body of a part ends before it. The preamble and epilogue
+ * of a multipart body are not part of any part.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class MimeStructure {
+
+    // Deeper nesting is left unparsed, so that a hostile message cannot make
+    // the parse recurse without bound.
+    private static final int MAX_DEPTH = 32;
+    private static final String DEFAULT_CONTENT_TYPE = "text/plain";
+    private static final byte[] CONTENT_TYPE = "content-type:".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int NOT_DELIMITER = 0;
+    private static final int DELIMITER = 1;
+    private static final int CLOSE_DELIMITER = 2;
+    private static final Pattern BOUNDARY = Pattern.compile("(?i);\\s*boundary\\s*=\\s*(?:\"([^\"]*)\"|([^;\\s]+))");
+
+    private final long start;
+    private final long headerEnd;
+    private final long bodyStart;
+    private final long end;
+    private final String contentType;
+    private final List<MimeStructure> parts;
+
+    /**
+     * @param inStart the offset of the first header
+     * @param inHeaderEnd the offset just after the last header line, which is
+     * where the blank line which ends the headers starts
+     * @param inBodyStart the offset of the body, just after the blank line
+     * which ends the headers
+     * @param inEnd the offset just after the body
+     * @param inContentType the lowercase media type, without parameters
+     * @param inParts the parts, if this is multipart
+     */
+    public MimeStructure(long inStart, long inHeaderEnd, long inBodyStart, long inEnd, String inContentType, List<MimeStructure> inParts) {
+        start = inStart;
+        headerEnd = inHeaderEnd;
+        bodyStart = inBodyStart;
+        end = inEnd;
+        contentType = inContentType;
+        parts = inParts;
+    }
+
+    /**
+     * @param raw the whole raw message, from index 0 to its limit
+     * @return the structure of the message.
+     */
+    public static MimeStructure parse(ByteBuffer raw) {
+        return parse(raw, 0, raw.limit(), 0);
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getHeaderEnd() {
+        return headerEnd;
+    }
+
+    public long getBodyStart() {
+        return bodyStart;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the parts of a multipart entity, or an empty list for any other.
+     */
+    public List<MimeStructure> getParts() {
+        return parts;
+    }
+
+    /**
+     * @return every entity which is not broken down into parts, in the order
+     * they appear in the message. For a message which is not multipart, that
+     * is only the message itself.
+     */
+    public List<MimeStructure> getLeaves() {
+        List<MimeStructure> leaves = new ArrayList<>();
+        addLeaves(leaves);
+        return leaves;
+    }
+
+    private void addLeaves(List<MimeStructure> leaves) {
+        if (parts.isEmpty()) {
+            leaves.add(this);
+        }
+        for (MimeStructure part : parts) {
+            part.addLeaves(leaves);
+        }
+    }
+
+    private static MimeStructure parse(ByteBuffer raw, int start, int end, int depth) {
+        int headerEnd = end;
+        int bodyStart = end;
+        String contentTypeHeader = null;
+        StringBuilder unfolding = null;
+        int pos = start;
+        while (pos < end) {
+            int next = nextLine(raw, pos, end);
+            int eol = contentEnd(raw, pos, next);
+            if (eol == pos) {
+                headerEnd = pos;
+                bodyStart = next;
+                break;
+            }
+            byte first = raw.get(pos);
+            if (first == ' ' || first == '\t') {
+                if (unfolding != null) {
+                    unfolding.append(ascii(raw, pos, eol));
+                }
+            } else if (contentTypeHeader == null && startsWithIgnoreCase(raw, pos, eol, CONTENT_TYPE)) {
+                unfolding = new StringBuilder(ascii(raw, pos + CONTENT_TYPE.length, eol));
+            } else if (unfolding != null) {
+                contentTypeHeader = unfolding.toString();
+                unfolding = null;
+            }
+            pos = next;
+        }
+        if (unfolding != null) {
+            contentTypeHeader = unfolding.toString();
+        }
+
+        String contentType = DEFAULT_CONTENT_TYPE;
+        List<MimeStructure> parts = Collections.emptyList();
+        if (contentTypeHeader != null) {
+            String type = contentTypeHeader.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+            if (!type.isEmpty()) {
+                contentType = type;
+            }
+            if (contentType.startsWith("multipart/") && depth < MAX_DEPTH) {
+                Matcher matcher = BOUNDARY.matcher(contentTypeHeader);
+                if (matcher.find()) {
+                    String boundary = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+                    parts = parseParts(raw, bodyStart, end, boundary, depth + 1);
+                }
+            }
+        }
+        return new MimeStructure(start, headerEnd, bodyStart, end, contentType, parts);
+    }
+
+    private static List<MimeStructure> parseParts(ByteBuffer raw, int bodyStart, int end, String boundary, int depth) {
+        byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        List<MimeStructure> parts = new ArrayList<>();
+        int partStart = -1;
+        int pos = bodyStart;
+        while (pos < end) {
+            int next = nextLine(raw, pos, end);
+            int eol = contentEnd(raw, pos, next);
+            int kind = delimiterKind(raw, pos, eol, delimiter);
+            if (kind != NOT_DELIMITER) {
+                if (partStart >= 0) {
+                    parts.add(parse(raw, partStart, contentEnd(raw, partStart, pos), depth));
+                }
+                partStart = next;
+                if (kind == CLOSE_DELIMITER) {
+                    partStart = -1;
+                    break;
+                }
+            }
+            pos = next;
+        }
+        // A part which was never closed runs to the end.
+        if (partStart >= 0) {
+            parts.add(parse(raw, partStart, end, depth));
+        }
+        return parts;
+    }
+
+    private static int delimiterKind(ByteBuffer raw, int pos, int eol, byte[] delimiter) {
+        if (eol - pos < delimiter.length) {
+            return NOT_DELIMITER;
+        }
+        for (int i = 0; i < delimiter.length; i++) {
+            if (raw.get(pos + i) != delimiter[i]) {
+                return NOT_DELIMITER;
+            }
+        }
+        int rest = pos + delimiter.length;
+        if (eol - rest >= 2 && raw.get(rest) == '-' && raw.get(rest + 1) == '-') {
+            return CLOSE_DELIMITER;
+        }
+        // Only whitespace may follow the boundary, otherwise it is a longer
+        // boundary which merely starts the same.
+        for (int i = rest; i < eol; i++) {
+            byte b = raw.get(i);
+            if (b != ' ' && b != '\t') {
+                return NOT_DELIMITER;
+            }
+        }
+        return DELIMITER;
+    }
+
+    /**
+     * @return the offset of the next line, or the end.
+     */
+    private static int nextLine(ByteBuffer raw, int pos, int end) {
+        while (pos < end && raw.get(pos) != '\n') {
+            pos++;
+        }
+        return pos < end ? pos + 1 : end;
+    }
+
+    /**
+     * @return the offset of the line break which ends the line, if any.
+     */
+    private static int contentEnd(ByteBuffer raw, int lineStart, int next) {
+        int eol = next;
+        if (eol > lineStart && raw.get(eol - 1) == '\n') {
+            eol--;
+        }
+        if (eol > lineStart && raw.get(eol - 1) == '\r') {
+            eol--;
+        }
+        return eol;
+    }
+
+    private static boolean startsWithIgnoreCase(ByteBuffer raw, int pos, int eol, byte[] lowerPrefix) {
+        if (eol - pos < lowerPrefix.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerPrefix.length; i++) {
+            byte b = raw.get(pos + i);
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerPrefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String ascii(ByteBuffer raw, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = raw.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
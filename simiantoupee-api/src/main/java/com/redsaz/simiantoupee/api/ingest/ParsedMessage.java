@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.api.ingest;
+
+import com.redsaz.simiantoupee.api.model.BasicMessage;
+import java.util.Set;
+
+/**
+ * What is taken from a raw message at ingest: the message details to store,
+ * and the terms to index for searching.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class ParsedMessage {
+
+    private final BasicMessage basicMessage;
+    private final Set<String> terms;
+
+    public ParsedMessage(BasicMessage inBasicMessage, Set<String> inTerms) {
+        basicMessage = inBasicMessage;
+        terms = inTerms;
+    }
+
+    /**
+     * @return the message details, with the whole text body.
+     */
+    public BasicMessage getBasicMessage() {
+        return basicMessage;
+    }
+
+    /**
+     * @return the distinct search terms of the message.
+     */
+    public Set<String> getTerms() {
+        return terms;
+    }
+}
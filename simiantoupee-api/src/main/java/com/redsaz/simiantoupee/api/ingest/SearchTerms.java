@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.api.ingest;
+
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Breaks text into the terms kept in the search index. Text is lowercased and
+ * split into words of letters and digits, and anything that looks like an
+ * email address is also kept whole, so that searching for an address only
+ * finds messages with that exact address. Queries are broken up the same way,
+ * and a message matches when it has every term of the query.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class SearchTerms {
+
+    /**
+     * The longest term kept. Longer words are rarely searched for, so they are
+     * left out rather than truncated.
+     */
+    public static final int MAX_TERM_LENGTH = 100;
+
+    /**
+     * The most terms kept per message, so that a huge body cannot flood the
+     * index.
+     */
+    public static final int MAX_TERMS = 10000;
+
+    private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}]+");
+    // Only matching from the start of a run of address characters, and never
+    // backtracking into it, keeps long runs without an @ from taking
+    // quadratic time.
+    private static final Pattern EMAIL = Pattern.compile(
+            "(?<![\\p{L}\\p{N}._%+'-])[\\p{L}\\p{N}._%+'-]++@[\\p{L}\\p{N}-]+(?:\\.[\\p{L}\\p{N}-]+)+");
+
+    private final Set<String> terms = new LinkedHashSet<>();
+
+    /**
+     * @param query the words to search for
+     * @return the distinct terms of the query.
+     */
+    public static Set<String> ofQuery(String query) {
+        return new SearchTerms().add(query).getTerms();
+    }
+
+    /**
+     * Adds the terms found in the text.
+     *
+     * @param text any text, or null
+     * @return this
+     */
+    public SearchTerms add(String text) {
+        if (text == null) {
+            return this;
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        addMatches(EMAIL.matcher(lower));
+        addMatches(WORD.matcher(lower));
+        return this;
+    }
+
+    /**
+     * @return the distinct terms added so far, in the order first found.
+     */
+    public Set<String> getTerms() {
+        return terms;
+    }
+
+    private void addMatches(Matcher matcher) {
+        while (matcher.find() && terms.size() < MAX_TERMS) {
+            String term = matcher.group();
+            if (term.length() <= MAX_TERM_LENGTH) {
+                terms.add(term);
+            }
+        }
+    }
+}
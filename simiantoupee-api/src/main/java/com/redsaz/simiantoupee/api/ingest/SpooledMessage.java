@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.api.ingest;
+
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the raw bytes of an incoming message after a single pass over the
+ * incoming stream. While reading, the SHA-256 id and size are calculated, and
+ * the bytes are kept in memory only up to a threshold, after which they are
+ * spooled to a temp file. The spooled bytes can be read back as a
+ * {@link javax.mail.internet.SharedInputStream} so that parsing does not need
+ * another copy of the message.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class SpooledMessage implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpooledMessage.class);
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String id;
+    private final long size;
+    private final byte[] memory;
+    private final File file;
+
+    private SpooledMessage(String inId, long inSize, byte[] inMemory, File inFile) {
+        id = inId;
+        size = inSize;
+        memory = inMemory;
+        file = inFile;
+    }
+
+    /**
+     * Reads the stream to the end and closes it.
+     *
+     * @param is the raw message
+     * @param memoryThreshold the most bytes to keep in memory before spooling
+     * to a temp file
+     * @return the spooled message, which must be closed when no longer needed.
+     */
+    public static SpooledMessage spool(InputStream is, int memoryThreshold) {
+        MessageDigest digest = sha256();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.min(16384, memoryThreshold));
+        File spoolFile = null;
+        OutputStream sink = baos;
+        long size = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = is) {
+            for (int length = in.read(buffer); length >= 0; length = in.read(buffer)) {
+                digest.update(buffer, 0, length);
+                size += length;
+                if (spoolFile == null && size > memoryThreshold) {
+                    spoolFile = Files.createTempFile("simiantoupee-", ".eml").toFile();
+                    LOG.debug("Spooling message to {}", spoolFile);
+                    sink = new FileOutputStream(spoolFile);
+                    baos.writeTo(sink);
+                    baos = null;
+                }
+                sink.write(buffer, 0, length);
+            }
+            sink.close();
+        } catch (IOException ex) {
+            closeQuietly(sink);
+            deleteQuietly(spoolFile);
+            throw new AppServerException("Unable to get raw message. Reason: " + ex.getMessage(), ex);
+        }
+        String id = encodeId(digest);
+        byte[] memory = spoolFile == null ? baos.toByteArray() : null;
+        return new SpooledMessage(id, size, memory, spoolFile);
+    }
+
+    /**
+     * @param bytes the bytes from the position to the limit are hashed, and
+     * the position is left unchanged
+     * @return the id that a message of exactly those bytes would have.
+     */
+    public static String idOf(ByteBuffer bytes) {
+        MessageDigest digest = sha256();
+        digest.update(bytes.duplicate());
+        return encodeId(digest);
+    }
+
+    /**
+     * @return the base64url encoded SHA-256 of the raw message.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the total size (in bytes) of the raw message.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Opens a new stream of the raw message. The stream is a
+     * {@link javax.mail.internet.SharedInputStream}, so MimeMessages built
+     * from it refer to the spooled bytes rather than copying them.
+     *
+     * @return a new stream, from the start of the raw message.
+     */
+    public InputStream openStream() {
+        if (memory != null) {
+            return new SharedByteArrayInputStream(memory);
+        }
+        try {
+            return new SharedFileInputStream(file);
+        } catch (IOException ex) {
+            throw new AppServerException("Unable to read spooled message. Reason: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * @return the whole raw message. If it was kept in memory, this is the
+     * same array rather than a copy, so it must not be changed.
+     */
+    public byte[] getBytes() {
+        if (memory != null) {
+            return memory;
+        }
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (IOException ex) {
+            throw new AppServerException("Unable to read spooled message. Reason: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * @return the whole raw message, as a read-only buffer. If it was spooled
+     * to a temp file, the file is mapped rather than read into memory.
+     */
+    public ByteBuffer getBuffer() {
+        if (memory != null) {
+            return ByteBuffer.wrap(memory).asReadOnlyBuffer();
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException ex) {
+            throw new AppServerException("Unable to read spooled message. Reason: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Puts the raw message at the target path. If the message was spooled to
+     * a temp file, the file is moved rather than copied.
+     *
+     * @param target where the raw message should be
+     * @throws IOException if the message could not be written
+     */
+    public void transferTo(Path target) throws IOException {
+        if (memory != null) {
+            Files.write(target, memory);
+        } else {
+            Files.move(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public void close() {
+        deleteQuietly(file);
+    }
+
+    private static String encodeId(MessageDigest digest) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new AppServerException("Unable to use SHA-256 Digest. Reason: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            LOG.debug("Could not close spool.", ex);
+        }
+    }
+
+    private static void deleteQuietly(File spoolFile) {
+        if (spoolFile != null && !spoolFile.delete() && spoolFile.exists()) {
+            LOG.warn("Could not delete spool file {}", spoolFile);
+        }
+    }
+}
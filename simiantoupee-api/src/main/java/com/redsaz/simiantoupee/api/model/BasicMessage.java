@@ -17,6 +17,7 @@ package com.redsaz.simiantoupee.api.model;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.Date;
 
 /**
  * Contains the title and content of a message.
@@ -30,6 +31,14 @@ public class BasicMessage {
     private final String subject;
     private final String body;
     private final long size;
+    private final Date received;
+    private final Date sent;
+    private final String messageIdHeader;
+
+    public BasicMessage(String inId, MessageAddress inSender, String inSubject,
+            String inBody, long inSize) {
+        this(inId, inSender, inSubject, inBody, inSize, null, null, null);
+    }
 
     @JsonCreator
     public BasicMessage(
@@ -37,12 +46,18 @@ public class BasicMessage {
             @JsonProperty("sender") MessageAddress inSender,
             @JsonProperty("subject") String inSubject,
             @JsonProperty("body") String inBody,
-            @JsonProperty() long inSize) {
+            @JsonProperty("size") long inSize,
+            @JsonProperty("received") Date inReceived,
+            @JsonProperty("sent") Date inSent,
+            @JsonProperty("messageIdHeader") String inMessageIdHeader) {
         id = inId;
         sender = inSender;
         subject = inSubject;
         body = inBody;
         size = inSize;
+        received = inReceived;
+        sent = inSent;
+        messageIdHeader = inMessageIdHeader;
     }
 
     public String getId() {
@@ -68,4 +83,25 @@ public class BasicMessage {
         return size;
     }
 
+    /**
+     * @return when the message was received, or null if not known.
+     */
+    public Date getReceived() {
+        return received;
+    }
+
+    /**
+     * @return the Date header of the message, or null if there was none.
+     */
+    public Date getSent() {
+        return sent;
+    }
+
+    /**
+     * @return the Message-ID header of the message, or null if there was none.
+     */
+    public String getMessageIdHeader() {
+        return messageIdHeader;
+    }
+
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Keeps recently used addresses by email, so that a sender or recipient seen
+ * before is found without querying the DB. The least recently used are
+ * evicted first. An address never changes once created, but it can be deleted
+ * by retention once no message uses it any more, and then it is invalidated.
+ * <p>
+ * Creating an address holds the lock for its email, so that messages from
+ * the same new sender arriving together don't all try to insert it, while
+ * new senders with other emails are still created at the same time.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class AddressRegistry {
+
+    // Enough that unrelated new senders rarely wait on each other.
+    private static final int CREATION_STRIPES = 64;
+
+    private final Cache<String, MessageAddress> byEmail;
+    private final Striped<Lock> creationLocks = Striped.lock(CREATION_STRIPES);
+
+    /**
+     * @param maxAddresses the most addresses to keep
+     */
+    public AddressRegistry(long maxAddresses) {
+        byEmail = CacheBuilder.newBuilder()
+                .maximumSize(maxAddresses)
+                .recordStats()
+                .build();
+    }
+
+    public MessageAddress get(String email) {
+        return byEmail.getIfPresent(email);
+    }
+
+    public void put(MessageAddress address) {
+        byEmail.put(address.getAddress(), address);
+    }
+
+    /**
+     * @param email the email of the address to create
+     * @return the lock to hold while creating the address.
+     */
+    public Lock creationLock(String email) {
+        return creationLocks.get(email);
+    }
+
+    public void invalidate(String email) {
+        byEmail.invalidate(email);
+    }
+
+    /**
+     * @param ids the ids of the addresses which may have been deleted
+     */
+    public void invalidateIds(Collection<Long> ids) {
+        if (!ids.isEmpty()) {
+            byEmail.asMap().values().removeIf(address -> ids.contains(address.getId()));
+        }
+    }
+
+    /**
+     * Adds the hit, miss, and eviction counts and the number of entries to
+     * the stats.
+     *
+     * @param stats where to put the counts
+     */
+    public void addStats(Map<String, Long> stats) {
+        MessageCache.addStats(stats, "cache.address", byEmail);
+    }
+}
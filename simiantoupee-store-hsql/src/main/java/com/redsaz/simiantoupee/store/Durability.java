@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store;
+
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * How much of what has been committed survives a crash, traded against how
+ * long each commit takes. Each mode sets how the DB files are written, and
+ * whether tables are kept on disk (CACHED) or entirely in memory (MEMORY).
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public enum Durability {
+
+    /**
+     * Every commit is synced to disk before it returns. Tables are CACHED, so
+     * the DB does not need to fit in memory.
+     */
+    SYNC,
+    /**
+     * Commits are synced to disk together, once every write delay, so a crash
+     * loses up to the write delay's worth of commits. This is what HSQLDB
+     * does by default.
+     */
+    GROUP,
+    /**
+     * Nothing is logged. The DB is only written at each periodic checkpoint
+     * and at shutdown, so a crash loses everything since the last checkpoint.
+     */
+    ASYNC,
+    /**
+     * The DB is kept only in memory. It is loaded from the DB files at
+     * startup, and written back to them as a snapshot when the JVM shuts
+     * down, so a crash loses everything since startup.
+     */
+    MEMORY;
+
+    private static final List<String> TABLES = Arrays.asList("address", "message", "receiver_message", "message_term", "message_part");
+
+    /**
+     * @param name the name of the mode, in any case
+     * @return the mode.
+     */
+    public static Durability of(String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new AppServerException("Unknown durability " + name + ", must be one of "
+                    + Arrays.toString(values()), ex);
+        }
+    }
+
+    /**
+     * @param dbFile the DB files, without extension
+     * @return the URL to open the DB with.
+     */
+    public String getUrl(File dbFile) {
+        if (this == MEMORY) {
+            return "jdbc:hsqldb:mem:" + dbFile.getAbsolutePath();
+        }
+        return "jdbc:hsqldb:" + dbFile.toURI();
+    }
+
+    /**
+     * @param writeDelayMillis how long to wait between syncs, for GROUP
+     * @return the statements which put an open DB into this mode. Since they
+     * are stored in the DB, they also undo whatever mode it was last opened
+     * with.
+     */
+    public List<String> getSettings(long writeDelayMillis) {
+        List<String> settings = new ArrayList<>();
+        switch (this) {
+            case SYNC:
+                settings.add("SET FILES LOG TRUE");
+                settings.add("SET FILES WRITE DELAY FALSE");
+                break;
+            case GROUP:
+                settings.add("SET FILES LOG TRUE");
+                settings.add("SET FILES WRITE DELAY " + writeDelayMillis + " MILLIS");
+                break;
+            case ASYNC:
+                settings.add("SET FILES LOG FALSE");
+                break;
+            default:
+                // Nothing is written, so there is nothing to set.
+                break;
+        }
+        String type = this == SYNC ? "CACHED" : "MEMORY";
+        for (String table : TABLES) {
+            settings.add("SET TABLE " + table + " TYPE " + type);
+        }
+        return settings;
+    }
+}
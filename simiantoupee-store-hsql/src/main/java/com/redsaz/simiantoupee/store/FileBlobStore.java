@@ -0,0 +1,570 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store;
+
+import com.google.common.io.ByteStreams;
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import com.redsaz.simiantoupee.api.ingest.MimeStructure;
+import com.redsaz.simiantoupee.api.ingest.SpooledMessage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps raw messages as files, addressed by their content hash. The files are
+ * sharded into two levels of directories using the first characters of the
+ * id, so that no single directory gets too large.
+ * <p>
+ * Blobs at least as large as the compression threshold are stored deflated,
+ * in a file with a ".z" suffix, unless deflating does not make them smaller.
+ * The id is still the hash of the original bytes, and blobs are always read
+ * back as the original bytes, whether or not they were compressed. Since the
+ * file name tells how a blob is stored, the threshold can be changed at any
+ * time without rewriting the blobs already stored.
+ * <p>
+ * A message can also be stored split up (see
+ * {@link #putSplit(SpooledMessage, MimeStructure, long, int)}), with its
+ * larger MIME bodies stored as blobs of their own and a {@link PartManifest}
+ * in a file with a ".m" suffix. Those part blobs may be shared by many
+ * messages, so they are not deleted along with a message; the caller decides
+ * when they are no longer needed. They are kept under "parts", apart from the
+ * messages, since a part (such as a forwarded message) can have the same
+ * bytes, and so the same id, as a message stored on its own.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class FileBlobStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileBlobStore.class);
+    private static final int BUFFER_SIZE = 8192;
+    private static final String DEFLATED_SUFFIX = ".z";
+    private static final String MANIFEST_SUFFIX = ".m";
+    // A base64url encoded SHA-256, as every blob is named. Anything else,
+    // such as an id from a request, cannot be a blob, and is never turned
+    // into a path.
+    private static final Pattern ID = Pattern.compile("[A-Za-z0-9_-]{43}");
+
+    private final Path root;
+    private final Path partsRoot;
+    private final Path tmp;
+    private final long compressThreshold;
+    private final int compressLevel;
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder compressedOriginalBytes = new LongAdder();
+    private final LongAdder compressedStoredBytes = new LongAdder();
+    private final LongAdder partsStored = new LongAdder();
+    private final LongAdder partsReused = new LongAdder();
+    private final LongAdder partsReusedBytes = new LongAdder();
+
+    /**
+     * Creates a store which never compresses blobs.
+     *
+     * @param rootDir where the blobs are kept
+     */
+    public FileBlobStore(File rootDir) {
+        this(rootDir, 0, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param rootDir where the blobs are kept
+     * @param inCompressThreshold the smallest blob (in bytes) to compress, or
+     * 0 to never compress
+     * @param inCompressLevel the deflate level, from 1 (fastest) to 9
+     * (smallest)
+     */
+    public FileBlobStore(File rootDir, long inCompressThreshold, int inCompressLevel) {
+        root = rootDir.toPath();
+        compressThreshold = inCompressThreshold;
+        compressLevel = inCompressLevel;
+        partsRoot = root.resolve("parts");
+        tmp = root.resolve("tmp");
+        try {
+            Files.createDirectories(tmp);
+        } catch (IOException ex) {
+            throw new AppServerException("Could not create " + tmp, ex);
+        }
+    }
+
+    /**
+     * Stores the spooled message under its id. Since the id is the hash of the
+     * content, nothing is written if a blob with the id already exists.
+     *
+     * @param spool the raw message
+     */
+    public void put(SpooledMessage spool) {
+        if (exists(spool.getId())) {
+            return;
+        }
+        put(spool, root);
+    }
+
+    private void put(SpooledMessage spool, Path base) {
+        Path target = pathOf(base, spool.getId());
+        try {
+            Files.createDirectories(target.getParent());
+            Path temp = Files.createTempFile(tmp, spool.getId(), ".tmp");
+            try {
+                if (compressThreshold > 0 && spool.getSize() >= compressThreshold && deflate(spool, temp)) {
+                    moveAtomically(temp, deflatedPathOf(base, spool.getId()));
+                } else {
+                    spool.transferTo(temp);
+                    moveAtomically(temp, target);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException ex) {
+            throw new AppServerException("Could not store message_id=" + spool.getId() + " because: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Stores the spooled message like {@link #put(SpooledMessage)}, except
+     * that each MIME body of at least minPartBytes is stored as a blob of its
+     * own, under the hash of the body. A body sent in many messages, such as
+     * the same attachment sent again and again, is then stored only once.
+     * Bodies are compared as they are in the message, still encoded.
+     *
+     * @param spool the raw message
+     * @param structure the structure of the raw message
+     * @param minPartBytes the smallest body to store on its own
+     * @param memoryThreshold the most bytes of a new body to keep in memory
+     * while storing it
+     * @return the ids of the bodies stored on their own, which is empty if the
+     * message is stored whole.
+     */
+    public Set<String> putSplit(SpooledMessage spool, MimeStructure structure, long minPartBytes, int memoryThreshold) {
+        Path target = manifestPathOf(spool.getId());
+        if (Files.exists(target)) {
+            return readManifest(spool.getId()).getPartIds();
+        } else if (exists(spool.getId())) {
+            return Collections.emptySet();
+        }
+        ByteBuffer raw = spool.getBuffer();
+        List<MimeStructure> bodies = new ArrayList<>();
+        for (MimeStructure leaf : structure.getLeaves()) {
+            if (leaf.getEnd() - leaf.getBodyStart() >= minPartBytes) {
+                bodies.add(leaf);
+            }
+        }
+        if (bodies.isEmpty()) {
+            put(spool);
+            return Collections.emptySet();
+        }
+        long[] offsets = new long[bodies.size()];
+        long[] lengths = new long[bodies.size()];
+        String[] partIds = new String[bodies.size()];
+        for (int i = 0; i < bodies.size(); i++) {
+            MimeStructure body = bodies.get(i);
+            offsets[i] = body.getBodyStart();
+            lengths[i] = body.getEnd() - body.getBodyStart();
+            partIds[i] = putPart(raw, (int) offsets[i], (int) lengths[i], memoryThreshold);
+        }
+        PartManifest manifest = new PartManifest(offsets, lengths, partIds);
+        try {
+            Files.createDirectories(target.getParent());
+            Path temp = Files.createTempFile(tmp, spool.getId(), ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE));
+                        InputStream is = spool.openStream()) {
+                    manifest.writeTo(out, is);
+                }
+                moveAtomically(temp, target);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException ex) {
+            throw new AppServerException("Could not store message_id=" + spool.getId() + " because: " + ex.getMessage(), ex);
+        }
+        return manifest.getPartIds();
+    }
+
+    /**
+     * Stores the bytes as a part blob, unless there already is one.
+     *
+     * @return the id of the part.
+     */
+    private String putPart(ByteBuffer raw, int offset, int length, int memoryThreshold) {
+        ByteBuffer bytes = raw.duplicate();
+        bytes.position(offset);
+        bytes.limit(offset + length);
+        String partId = SpooledMessage.idOf(bytes);
+        if (existsIn(partsRoot, partId)) {
+            partsReused.increment();
+            partsReusedBytes.add(length);
+            return partId;
+        }
+        try (SpooledMessage part = SpooledMessage.spool(new ByteBufferInputStream(bytes), memoryThreshold)) {
+            put(part, partsRoot);
+        }
+        partsStored.increment();
+        return partId;
+    }
+
+    /**
+     * @param id the id of the blob
+     * @return a stream of the blob contents, or null if there is no such blob.
+     */
+    public InputStream open(String id) {
+        return open(id, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads only a range of a blob. A plain blob is read from the offset
+     * directly, and the parts of a split message which end before the offset
+     * are not opened at all. A deflated blob still has to be inflated from its
+     * start, but only as far as the range goes.
+     *
+     * @param id the id of the blob
+     * @param offset where the range starts
+     * @param length the most bytes to read, or Long.MAX_VALUE to read to the
+     * end
+     * @return a stream of the range, or null if there is no such blob.
+     */
+    public InputStream open(String id, long offset, long length) {
+        if (!isId(id)) {
+            return null;
+        }
+        try {
+            InputStream range = openFrom(id, offset);
+            if (range == null || length == Long.MAX_VALUE) {
+                return range;
+            }
+            return ByteStreams.limit(range, length);
+        } catch (IOException ex) {
+            throw new AppServerException("Could not read message_id=" + id + " because: " + ex.getMessage(), ex);
+        }
+    }
+
+    private InputStream openFrom(String id, long offset) throws IOException {
+        InputStream manifested = openFile(manifestPathOf(id), 0);
+        if (manifested != null) {
+            DataInputStream in = new DataInputStream(manifested);
+            PartManifest manifest = readManifest(id, in);
+            return new BufferedInputStream(manifest.join(in, offset, this::openPart), BUFFER_SIZE);
+        }
+        return openBlob(root, id, offset);
+    }
+
+    /**
+     * @return a stream of the part from the offset, or null if there is no
+     * such part.
+     */
+    private InputStream openPart(String partId, long offset) {
+        try {
+            return openBlob(partsRoot, partId, offset);
+        } catch (IOException ex) {
+            throw new AppServerException("Could not read part_id=" + partId + " because: " + ex.getMessage(), ex);
+        }
+    }
+
+    private InputStream openBlob(Path base, String id, long offset) throws IOException {
+        InputStream deflated = openFile(deflatedPathOf(base, id), 0);
+        if (deflated != null) {
+            InputStream inflated = new BufferedInputStream(new InflatingInputStream(deflated), BUFFER_SIZE);
+            try {
+                // Read rather than skipped: ByteStreams.skipFully only skips
+                // what is available(), which is 1 byte at a time when
+                // inflating.
+                if (ByteStreams.copy(ByteStreams.limit(inflated, offset), ByteStreams.nullOutputStream()) < offset) {
+                    throw new EOFException("The blob ends before offset " + offset);
+                }
+            } catch (IOException ex) {
+                closeQuietly(inflated);
+                throw ex;
+            }
+            return inflated;
+        }
+        return openFile(pathOf(base, id), offset);
+    }
+
+    public boolean exists(String id) {
+        return isId(id) && (existsIn(root, id) || Files.exists(manifestPathOf(id)));
+    }
+
+    /**
+     * Deletes the message, but not the parts it was split into, if any.
+     *
+     * @param id the id of the message
+     */
+    public void delete(String id) {
+        if (!isId(id)) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(pathOf(root, id));
+            Files.deleteIfExists(deflatedPathOf(root, id));
+            Files.deleteIfExists(manifestPathOf(id));
+        } catch (IOException ex) {
+            LOG.warn("Could not delete blob for message_id={}", id, ex);
+        }
+    }
+
+    /**
+     * Deletes a part of split messages, which must no longer be needed by
+     * any of them.
+     *
+     * @param partId the id of the part
+     */
+    public void deletePart(String partId) {
+        if (!isId(partId)) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(pathOf(partsRoot, partId));
+            Files.deleteIfExists(deflatedPathOf(partsRoot, partId));
+        } catch (IOException ex) {
+            LOG.warn("Could not delete blob for part_id={}", partId, ex);
+        }
+    }
+
+    /**
+     * Deletes every blob. Blobs being written at the same time may or may not
+     * be deleted.
+     */
+    public void deleteAll() {
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(root)) {
+            for (Path shard : shards) {
+                if (!shard.equals(tmp)) {
+                    deleteTree(shard);
+                }
+            }
+        } catch (IOException ex) {
+            throw new AppServerException("Could not delete blobs because: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Adds how many blobs were compressed since startup, and their original
+     * and stored sizes, and how many parts of split messages were stored or
+     * found already stored, to the stats.
+     *
+     * @param stats where to put the counts
+     */
+    public void addStats(Map<String, Long> stats) {
+        stats.put("blobs.compressed", compressed.sum());
+        stats.put("blobs.compressed.originalBytes", compressedOriginalBytes.sum());
+        stats.put("blobs.compressed.storedBytes", compressedStoredBytes.sum());
+        stats.put("blobs.parts.stored", partsStored.sum());
+        stats.put("blobs.parts.reused", partsReused.sum());
+        stats.put("blobs.parts.reusedBytes", partsReusedBytes.sum());
+    }
+
+    /**
+     * Writes the deflated blob to the target.
+     *
+     * @return true if the deflated blob is smaller than the original.
+     */
+    private boolean deflate(SpooledMessage spool, Path target) throws IOException {
+        Deflater deflater = new Deflater(compressLevel);
+        try (InputStream is = spool.openStream();
+                OutputStream os = new DeflaterOutputStream(Files.newOutputStream(target), deflater, BUFFER_SIZE)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+            }
+        } finally {
+            deflater.end();
+        }
+        long storedBytes = Files.size(target);
+        if (storedBytes >= spool.getSize()) {
+            return false;
+        }
+        compressed.increment();
+        compressedOriginalBytes.add(spool.getSize());
+        compressedStoredBytes.add(storedBytes);
+        return true;
+    }
+
+    private PartManifest readManifest(String id) {
+        InputStream manifested;
+        try {
+            manifested = openFile(manifestPathOf(id), 0);
+        } catch (IOException ex) {
+            throw new AppServerException("Could not read message_id=" + id + " because: " + ex.getMessage(), ex);
+        }
+        if (manifested == null) {
+            throw new AppServerException("Could not find the manifest of message_id=" + id);
+        }
+        try (DataInputStream in = new DataInputStream(manifested)) {
+            return readManifest(id, in);
+        } catch (IOException ex) {
+            throw new AppServerException("Could not read message_id=" + id + " because: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static PartManifest readManifest(String id, DataInputStream in) {
+        try {
+            return PartManifest.readFrom(in);
+        } catch (IOException ex) {
+            closeQuietly(in);
+            throw new AppServerException("Could not read the manifest of message_id=" + id + " because: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException ex) {
+            LOG.debug("Could not close blob.", ex);
+        }
+    }
+
+    /**
+     * @return a stream of the file from the offset, or null if there is no
+     * such file.
+     */
+    private static InputStream openFile(Path path, long offset) throws IOException {
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            if (offset > 0) {
+                channel.position(offset);
+            }
+            return new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.deleteIfExists(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                if (ex != null) {
+                    throw ex;
+                }
+                Files.deleteIfExists(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static boolean isId(String id) {
+        return id != null && ID.matcher(id).matches();
+    }
+
+    private static boolean existsIn(Path base, String id) {
+        return Files.exists(pathOf(base, id)) || Files.exists(deflatedPathOf(base, id));
+    }
+
+    private static Path pathOf(Path base, String id) {
+        return base.resolve(id.substring(0, 2)).resolve(id.substring(2, 4)).resolve(id);
+    }
+
+    private static Path deflatedPathOf(Path base, String id) {
+        return pathOf(base, id).resolveSibling(id + DEFLATED_SUFFIX);
+    }
+
+    private Path manifestPathOf(String id) {
+        return pathOf(root, id).resolveSibling(id + MANIFEST_SUFFIX);
+    }
+
+    private static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Inflates a deflated blob, and releases the inflater as soon as it is
+     * closed rather than when it is garbage collected.
+     */
+    private static class InflatingInputStream extends InflaterInputStream {
+
+        public InflatingInputStream(InputStream deflated) {
+            super(deflated, new Inflater(), BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+
+    /**
+     * Reads the bytes from the position to the limit of a buffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer bytes;
+
+        public ByteBufferInputStream(ByteBuffer inBytes) {
+            bytes = inBytes;
+        }
+
+        @Override
+        public int read() {
+            return bytes.hasRemaining() ? bytes.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            } else if (!bytes.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(length, bytes.remaining());
+            bytes.get(buffer, offset, read);
+            return read;
+        }
+    }
+}
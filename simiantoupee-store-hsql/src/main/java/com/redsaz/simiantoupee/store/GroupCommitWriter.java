@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store;
+
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import static com.redsaz.simiantoupee.model.tables.Message.MESSAGE;
+import static com.redsaz.simiantoupee.model.tables.MessagePart.MESSAGE_PART;
+import static com.redsaz.simiantoupee.model.tables.MessageTerm.MESSAGE_TERM;
+import static com.redsaz.simiantoupee.model.tables.ReceiverMessage.RECEIVER_MESSAGE;
+import com.redsaz.simiantoupee.model.tables.records.MessagePartRecord;
+import com.redsaz.simiantoupee.model.tables.records.MessageRecord;
+import com.redsaz.simiantoupee.model.tables.records.MessageTermRecord;
+import com.redsaz.simiantoupee.model.tables.records.ReceiverMessageRecord;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.jooq.DSLContext;
+import org.jooq.InsertSetMoreStep;
+import org.jooq.InsertValuesStep2;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects message rows from many concurrent writers and inserts them as a
+ * group, with a single multi-row insert per table and a single commit. The
+ * recipients, search terms, and separately stored parts of each message are
+ * written in the same transaction as its row, so a message is never committed
+ * without them. A group is written when either it has reached the maximum
+ * number of rows, or the first row in it has waited the maximum delay. Every
+ * recipient, search term, and part row counts towards the maximum, not just
+ * the message rows, so that a group of messages with many search terms still
+ * makes statements of a bounded size. A message with more rows than the
+ * maximum is written in a group of its own. Writers are blocked until the
+ * group containing their row is committed.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class GroupCommitWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GroupCommitWriter.class);
+
+    private final DataSource dataSource;
+    private final long maxDelayNanos;
+    private final int maxRows;
+    private final BlockingQueue<PendingMessage> queue = new LinkedBlockingQueue<>();
+
+    public GroupCommitWriter(DataSource inDataSource, long maxDelayMillis, int inMaxRows) {
+        if (maxDelayMillis < 0 || inMaxRows < 1) {
+            throw new IllegalArgumentException("maxDelayMillis must not be negative, and maxRows must be at least 1.");
+        }
+        dataSource = inDataSource;
+        maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        maxRows = inMaxRows;
+        Thread writer = new Thread(this::writeGroups, "simiantoupee-group-commit");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues the message row to be inserted, along with its recipients,
+     * search terms, and parts, and waits until the group it was written with
+     * is committed.
+     *
+     * @param row the message row, with the same columns set as any other row
+     * @param recipients the recipients of the message
+     * @param terms the search terms of the message
+     * @param partIds the parts of the message which are stored separately
+     */
+    public void insert(MessageRecord row, List<MessageAddress> recipients, Set<String> terms, Set<String> partIds) {
+        PendingMessage pending = new PendingMessage(row, recipients, terms, partIds);
+        queue.add(pending);
+        try {
+            pending.done.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new AppServerException("Interrupted while waiting for message_id=" + row.getId() + " to be written.", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw new AppServerException("Failed to create message: " + cause.getMessage(), cause);
+        }
+    }
+
+    private void writeGroups() {
+        List<PendingMessage> group = new ArrayList<>();
+        // Taken from the queue, but too large to fit in the previous group.
+        PendingMessage carried = null;
+        while (true) {
+            try {
+                PendingMessage first = carried != null ? carried : queue.take();
+                carried = null;
+                group.add(first);
+                int rows = first.rows();
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (rows < maxRows) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingMessage next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    } else if (rows + next.rows() > maxRows) {
+                        carried = next;
+                        break;
+                    }
+                    group.add(next);
+                    rows += next.rows();
+                }
+                write(group);
+            } catch (InterruptedException ex) {
+                LOG.warn("Group commit writer interrupted, {} messages not written.", group.size());
+                fail(group, ex);
+                if (carried != null) {
+                    carried.done.completeExceptionally(ex);
+                }
+                return;
+            } catch (Throwable ex) {
+                // Even an Error must not stop the writer, or every writer
+                // after it would wait forever for its group.
+                LOG.error("Unexpected failure in group commit writer.", ex);
+                fail(group, ex);
+            }
+            group.clear();
+        }
+    }
+
+    private void write(List<PendingMessage> group) {
+        try (Connection c = dataSource.getConnection()) {
+            c.setAutoCommit(false);
+            DSLContext context = DSL.using(c, SQLDialect.HSQLDB);
+            try {
+                insertRows(context, group);
+                c.commit();
+                LOG.debug("Committed group of {} messages.", group.size());
+                for (PendingMessage pending : group) {
+                    pending.done.complete(null);
+                }
+            } catch (RuntimeException ex) {
+                // One bad row (such as a duplicate id) fails the whole group,
+                // so write the rows individually to find out which.
+                c.rollback();
+                LOG.debug("Group of {} failed, retrying individually: {}", group.size(), ex.getMessage());
+                writeIndividually(c, context, group);
+            } catch (Error ex) {
+                c.rollback();
+                throw ex;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            fail(group, ex);
+        }
+    }
+
+    private static void writeIndividually(Connection c, DSLContext context, List<PendingMessage> group) throws SQLException {
+        for (PendingMessage pending : group) {
+            try {
+                insertRows(context, Collections.singletonList(pending));
+                c.commit();
+                pending.done.complete(null);
+            } catch (RuntimeException ex) {
+                c.rollback();
+                pending.done.completeExceptionally(ex);
+            }
+        }
+    }
+
+    private static void insertRows(DSLContext context, List<PendingMessage> group) {
+        InsertSetMoreStep<MessageRecord> messages = context.insertInto(MESSAGE).set(group.get(0).row);
+        for (PendingMessage pending : group.subList(1, group.size())) {
+            messages = messages.newRecord().set(pending.row);
+        }
+        messages.execute();
+
+        InsertValuesStep2<ReceiverMessageRecord, Long, String> receivers = context.insertInto(RECEIVER_MESSAGE,
+                RECEIVER_MESSAGE.RECEIVER_ID, RECEIVER_MESSAGE.MESSAGE_ID);
+        boolean anyReceivers = false;
+        InsertValuesStep2<MessageTermRecord, String, String> terms = context.insertInto(MESSAGE_TERM,
+                MESSAGE_TERM.TERM, MESSAGE_TERM.MESSAGE_ID);
+        boolean anyTerms = false;
+        InsertValuesStep2<MessagePartRecord, String, String> parts = context.insertInto(MESSAGE_PART,
+                MESSAGE_PART.MESSAGE_ID, MESSAGE_PART.PART_ID);
+        boolean anyParts = false;
+        for (PendingMessage pending : group) {
+            String id = pending.row.getId();
+            for (Long receiverId : pending.receiverIds) {
+                receivers = receivers.values(receiverId, id);
+                anyReceivers = true;
+            }
+            for (String term : pending.terms) {
+                terms = terms.values(term, id);
+                anyTerms = true;
+            }
+            for (String partId : pending.partIds) {
+                parts = parts.values(id, partId);
+                anyParts = true;
+            }
+        }
+        if (anyReceivers) {
+            receivers.execute();
+        }
+        if (anyTerms) {
+            terms.execute();
+        }
+        if (anyParts) {
+            parts.execute();
+        }
+    }
+
+    private static void fail(List<PendingMessage> group, Throwable cause) {
+        for (PendingMessage pending : group) {
+            pending.done.completeExceptionally(cause);
+        }
+    }
+
+    private static class PendingMessage {
+
+        private final MessageRecord row;
+        private final Set<Long> receiverIds = new LinkedHashSet<>();
+        private final Set<String> terms;
+        private final Set<String> partIds;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingMessage(MessageRecord inRow, List<MessageAddress> recipients, Set<String> inTerms,
+                Set<String> inPartIds) {
+            row = inRow;
+            // The same recipient may be given more than once.
+            for (MessageAddress recipient : recipients) {
+                receiverIds.add(recipient.getId());
+            }
+            terms = inTerms;
+            partIds = inPartIds;
+        }
+
+        /**
+         * @return how many rows the message is written as, in all tables.
+         */
+        int rows() {
+            return 1 + receiverIds.size() + terms.size() + partIds.size();
+        }
+    }
+}
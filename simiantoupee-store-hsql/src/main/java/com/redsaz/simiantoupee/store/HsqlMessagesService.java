@@ -15,16 +15,47 @@
  */
 package com.redsaz.simiantoupee.store;
 
-import com.google.common.io.BaseEncoding;
+import com.redsaz.simiantoupee.api.exceptions.AppClientException;
 import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import com.redsaz.simiantoupee.api.ingest.MessageParser;
+import com.redsaz.simiantoupee.api.ingest.MimeIndex;
+import com.redsaz.simiantoupee.api.ingest.MimeStructure;
+import com.redsaz.simiantoupee.api.ingest.ParsedMessage;
+import com.redsaz.simiantoupee.api.ingest.SearchTerms;
+import com.redsaz.simiantoupee.api.ingest.SpooledMessage;
 import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.Direction;
 import static com.redsaz.simiantoupee.model.tables.Message.MESSAGE;
+import static com.redsaz.simiantoupee.model.tables.MessagePart.MESSAGE_PART;
+import static com.redsaz.simiantoupee.model.tables.MessageTerm.MESSAGE_TERM;
+import static com.redsaz.simiantoupee.model.tables.ReceiverMessage.RECEIVER_MESSAGE;
+import com.redsaz.simiantoupee.model.tables.records.MessagePartRecord;
 import com.redsaz.simiantoupee.model.tables.records.MessageRecord;
+import com.redsaz.simiantoupee.model.tables.records.MessageTermRecord;
+import com.redsaz.simiantoupee.model.tables.records.ReceiverMessageRecord;
 import java.io.File;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import liquibase.Liquibase;
 import liquibase.database.Database;
 import liquibase.database.DatabaseFactory;
@@ -32,31 +63,35 @@ import liquibase.database.jvm.JdbcConnection;
 import liquibase.exception.LiquibaseException;
 import liquibase.resource.ClassLoaderResourceAccessor;
 import org.hsqldb.jdbc.JDBCPool;
+import org.jooq.Configuration;
+import org.jooq.Cursor;
 import org.jooq.DSLContext;
 import org.jooq.SQLDialect;
+import org.jooq.conf.Settings;
+import org.jooq.exception.DataAccessException;
 import org.jooq.impl.DSL;
+import org.jooq.impl.DataSourceConnectionProvider;
+import org.jooq.impl.DefaultConfiguration;
 import com.redsaz.simiantoupee.api.MessagesService;
 import com.redsaz.simiantoupee.api.model.MessageAddress;
 import static com.redsaz.simiantoupee.model.tables.Address.ADDRESS;
 import com.redsaz.simiantoupee.model.tables.records.AddressRecord;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Properties;
 import javax.mail.MessagingException;
-import javax.mail.Session;
-import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeMultipart;
 import org.jooq.InsertValuesStep2;
-import org.jooq.InsertValuesStep5;
+import org.jooq.Field;
 import org.jooq.Record;
+import org.jooq.Record1;
+import org.jooq.Record2;
 import org.jooq.Record3;
-import org.jooq.Record4;
 import org.jooq.Result;
+import org.jooq.Select;
+import org.jooq.SelectConditionStep;
+import org.jooq.SelectOnConditionStep;
+import org.jooq.SelectSeekStep2;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -68,298 +103,1208 @@ import org.slf4j.LoggerFactory;
 public class HsqlMessagesService implements MessagesService {
 
     private static final Logger LOG = LoggerFactory.getLogger(HsqlMessagesService.class);
-    private static final JDBCPool POOL = initPool();
-    private static final Session SESSION = Session.getDefaultInstance(new Properties());
+    private static final int SPOOL_MEMORY_THRESHOLD = 256 * 1024;
+    // The length of the mime_index column. Only a message with tens of
+    // thousands of parts has a longer index, and it is scanned when read.
+    private static final int MAX_MIME_INDEX_LENGTH = 1000000;
+    private static final Field<?>[] PREVIEW_FIELDS = {MESSAGE.ID, MESSAGE.SUBJECT,
+        MESSAGE.ABSTRACT, MESSAGE.SIZE, MESSAGE.RECEIVED, MESSAGE.SENT,
+        MESSAGE.MESSAGE_ID_HEADER, ADDRESS.ID, ADDRESS.EMAIL, ADDRESS.NAME};
+
+    private final Durability durability;
+    private final MeteredDataSource pool;
+    private final DSLContext db;
+    private final FileBlobStore blobs;
+    private final long partMinBytes;
+    // Held to read while a message is being stored, from checking whether it
+    // is already known to recording it in the DB, and to write while deleted
+    // messages and their unneeded parts are forgotten, so that a message or
+    // part is never deleted just as a new delivery comes to need it.
+    private final ReadWriteLock partsLock = new ReentrantReadWriteLock();
+    private final GroupCommitWriter writer;
+    private final MessageCache cache;
+    private final AddressRegistry addresses;
+    private final Set<String> knownIds;
+    private final LongAdder duplicates = new LongAdder();
+    private final RetentionScheduler retention;
+
+    /**
+     * Opens the DB in the directory given by the {@code simiantoupee.hsql.dir}
+     * system property, or {@code ./simiantoupee} if not set.
+     */
+    public HsqlMessagesService() {
+        this(new File(System.getProperty("simiantoupee.hsql.dir", "./simiantoupee")));
+    }
+
+    /**
+     * Opens (or creates) the DB in the given directory, and brings it up to
+     * date.
+     *
+     * @param dbDir where the DB and the raw messages are kept
+     */
+    public HsqlMessagesService(File dbDir) {
+        durability = Durability.of(System.getProperty("simiantoupee.hsql.durability", "group"));
+        pool = initPool(dbDir, durability);
+        db = DSL.using(initConfiguration(pool));
+        blobs = initBlobs(dbDir);
+        partMinBytes = initPartMinBytes();
+        migrateLegacyRaw();
+        backfillMetadata();
+        indexUnindexed();
+        indexMimeStructure();
+        writer = initWriter();
+        cache = initCache();
+        addresses = initAddresses();
+        knownIds = initKnownIds();
+        retention = initRetention();
+        initCheckpoints();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(dbDir), "simiantoupee-hsql-shutdown"));
+    }
 
     @Override
     public List<BasicMessage> getPreviewMessages() {
-        try (Connection c = POOL.getConnection()) {
-            DSLContext context = DSL.using(c, SQLDialect.HSQLDB);
-            Result<Record4<String, String, String, Long>> nrs = context.select(MESSAGE.ID, MESSAGE.SUBJECT, MESSAGE.ABSTRACT, MESSAGE.SENDER_ID).from(MESSAGE).fetch();
+        try {
+            Result<Record> nrs = selectPreviews(db)
+                    .orderBy(MESSAGE.RECEIVED.asc(), MESSAGE.ID.asc())
+                    .fetch();
             LOG.info("Messages: {}", nrs.size());
             return previewRecordsToPreviewMessages(nrs);
-        } catch (SQLException ex) {
+        } catch (DataAccessException ex) {
             throw new AppServerException("Cannot retrieve messages: " + ex.getMessage(), ex);
         }
     }
 
+    @Override
+    public List<BasicMessage> getPreviewMessages(String after, int limit, Direction direction) {
+        try {
+            return fetchPage(db, selectPreviews(db).where(DSL.trueCondition()), after, limit, direction);
+        } catch (DataAccessException ex) {
+            throw new AppServerException("Cannot retrieve messages: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public List<BasicMessage> getPreviewMessagesTo(String recipient) {
+        try {
+            Result<Record> nrs = selectPreviewsTo(db, recipient)
+                    .orderBy(MESSAGE.RECEIVED.asc(), MESSAGE.ID.asc())
+                    .fetch();
+            return previewRecordsToPreviewMessages(nrs);
+        } catch (DataAccessException ex) {
+            throw new AppServerException("Cannot retrieve messages to " + recipient + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public List<BasicMessage> getPreviewMessagesTo(String recipient, String after, int limit, Direction direction) {
+        try {
+            return fetchPage(db, selectPreviewsTo(db, recipient), after, limit, direction);
+        } catch (DataAccessException ex) {
+            throw new AppServerException("Cannot retrieve messages to " + recipient + ": " + ex.getMessage(), ex);
+        }
+    }
+
     @Override
     public BasicMessage getBasicMessage(String id) {
-        try (Connection c = POOL.getConnection()) {
-            DSLContext context = DSL.using(c, SQLDialect.HSQLDB);
-            MessageRecord nr = context.selectFrom(MESSAGE).where(MESSAGE.ID.eq(id)).fetchOne();
-            return recordToBasicMessage(nr);
-        } catch (SQLException ex) {
+        BasicMessage cached = cache.getBasicMessage(id);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            // Everything needed was stored at ingest, so the raw message
+            // does not need to be read and parsed again.
+            Record nr = db
+                    .select(PREVIEW_FIELDS).select(MESSAGE.BODY)
+                    .from(MESSAGE)
+                    .leftOuterJoin(ADDRESS).on(ADDRESS.ID.eq(MESSAGE.SENDER_ID))
+                    .where(MESSAGE.ID.eq(id))
+                    .fetchOne();
+            BasicMessage basicMessage = recordToBasicMessage(nr, MESSAGE.BODY);
+            if (basicMessage != null) {
+                cache.putBasicMessage(id, basicMessage);
+            }
+            return basicMessage;
+        } catch (DataAccessException ex) {
             throw new AppServerException("Cannot get message_id=" + id + " because: " + ex.getMessage(), ex);
         }
     }
 
     @Override
     public MimeMessage getMessage(String id) {
-        try (Connection c = POOL.getConnection()) {
-            DSLContext context = DSL.using(c, SQLDialect.HSQLDB);
-            MessageRecord nr = context.selectFrom(MESSAGE).where(MESSAGE.ID.eq(id)).fetchOne();
-            return recordToMessage(nr);
-        } catch (SQLException ex) {
+        MimeMessage cached = cache.getMimeMessage(id);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            MimeMessage mimeMessage = rawToMessage(openRaw(id));
+            if (mimeMessage != null) {
+                cache.putMimeMessage(id, mimeMessage);
+            }
+            return mimeMessage;
+        } catch (DataAccessException ex) {
             throw new AppServerException("Cannot get message_id=" + id + " because: " + ex.getMessage(), ex);
         }
     }
 
     @Override
     public InputStream getMessageStream(String id) {
-        try (Connection c = POOL.getConnection()) {
-            DSLContext context = DSL.using(c, SQLDialect.HSQLDB);
-            MessageRecord nr = context.selectFrom(MESSAGE).where(MESSAGE.ID.eq(id)).fetchOne();
-            return recordToMessageStream(nr);
-        } catch (SQLException ex) {
+        try {
+            return openRaw(id);
+        } catch (DataAccessException ex) {
             throw new AppServerException("Cannot get message_id=" + id + " because: " + ex.getMessage(), ex);
         }
     }
 
+    @Override
+    public InputStream getMessageHeaders(String id) {
+        MimeIndex mimeIndex = getMimeIndex(id);
+        if (mimeIndex == null) {
+            return null;
+        }
+        return openRaw(id, 0, mimeIndex.getHeaderEnd());
+    }
+
+    @Override
+    public InputStream getMessageBody(String id) {
+        MimeIndex mimeIndex = getMimeIndex(id);
+        if (mimeIndex == null) {
+            return null;
+        }
+        return openRaw(id, mimeIndex.getBodyStart(), Long.MAX_VALUE);
+    }
+
+    @Override
+    public InputStream getMessagePart(String id, int number) {
+        MimeIndex mimeIndex = getMimeIndex(id);
+        if (mimeIndex == null || !mimeIndex.hasPart(number)) {
+            return null;
+        }
+        long start = mimeIndex.getPartStart(number);
+        return openRaw(id, start, mimeIndex.getPartEnd(number) - start);
+    }
+
     @Override
     public void deleteMessage(String id) {
-        try (Connection c = POOL.getConnection()) {
-            DSLContext context = DSL.using(c, SQLDialect.HSQLDB);
-            context.delete(MESSAGE).where(MESSAGE.ID.eq(id)).execute();
-        } catch (SQLException ex) {
+        try {
+            Set<String> partIds = db.transactionResult(configuration -> {
+                DSLContext tx = DSL.using(configuration);
+                Set<String> ids = new HashSet<>(tx.select(MESSAGE_PART.PART_ID).from(MESSAGE_PART)
+                        .where(MESSAGE_PART.MESSAGE_ID.eq(id)).fetch(MESSAGE_PART.PART_ID));
+                tx.delete(MESSAGE_PART).where(MESSAGE_PART.MESSAGE_ID.eq(id)).execute();
+                tx.delete(MESSAGE_TERM).where(MESSAGE_TERM.MESSAGE_ID.eq(id)).execute();
+                tx.delete(RECEIVER_MESSAGE).where(RECEIVER_MESSAGE.MESSAGE_ID.eq(id)).execute();
+                if (tx.delete(MESSAGE).where(MESSAGE.ID.eq(id)).execute() == 0) {
+                    // No such message, so there is nothing to forget.
+                    return null;
+                }
+                return ids;
+            });
+            if (partIds != null) {
+                forgetMessages(Collections.singletonList(id), partIds, Collections.emptySet());
+            }
+        } catch (DataAccessException ex) {
             throw new AppServerException("Failed to delete message_id=" + id
                     + " because: " + ex.getMessage(), ex);
         }
     }
 
     @Override
-    public String create(MessageAddress sender, InputStream messageStream) {
+    public void deleteAllMessages() {
+        partsLock.writeLock().lock();
+        try {
+            db.transaction(configuration -> {
+                DSLContext tx = DSL.using(configuration);
+                tx.execute("LOCK TABLE message WRITE, receiver_message WRITE, message_term WRITE, message_part WRITE");
+                tx.delete(MESSAGE_PART).execute();
+                tx.delete(MESSAGE_TERM).execute();
+                tx.delete(RECEIVER_MESSAGE).execute();
+                tx.delete(MESSAGE).execute();
+            });
+            knownIds.clear();
+            cache.invalidateAll();
+            blobs.deleteAll();
+        } catch (DataAccessException ex) {
+            throw new AppServerException("Failed to delete all messages because: " + ex.getMessage(), ex);
+        } finally {
+            partsLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String create(MessageAddress sender, List<MessageAddress> recipients, InputStream messageStream) {
         if (messageStream == null) {
             return null;
         }
         LOG.debug("About to create a message.");
-        byte[] rawMessage = getRawMessage(messageStream);
-        BasicMessage basicMessage = getBasicMessageFromRaw(sender, rawMessage);
+        try (SpooledMessage spool = SpooledMessage.spool(messageStream, SPOOL_MEMORY_THRESHOLD)) {
+            Set<String> storedPartIds = new HashSet<>();
+            RuntimeException failure;
+            partsLock.readLock().lock();
+            try {
+                return create(sender, recipients, spool, storedPartIds);
+            } catch (RuntimeException ex) {
+                failure = ex;
+            } finally {
+                partsLock.readLock().unlock();
+            }
+            discardUnstored(spool.getId(), storedPartIds);
+            throw failure;
+        }
+    }
+
+    /**
+     * Stores a spooled message. Must be called with the read lock of
+     * {@link #partsLock} held.
+     *
+     * @param storedPartIds where to add the parts stored separately, so they
+     * can be discarded if the message could not be stored after all
+     */
+    private String create(MessageAddress sender, List<MessageAddress> recipients, SpooledMessage spool,
+            Set<String> storedPartIds) {
+        // The id is the hash of the content, so a message that is
+        // already stored (such as a retried delivery) needs no parsing.
+        if (knownIds.contains(spool.getId())) {
+            return acknowledgeDuplicate(spool.getId(), recipients);
+        }
+        ParsedMessage parsed = MessageParser.parse(sender, recipients, spool, new Date());
+        BasicMessage basicMessage = parsed.getBasicMessage();
         LOG.debug(" Sender: {}", basicMessage.getSender());
+        MimeStructure structure = MimeStructure.parse(spool.getBuffer());
 
-        try (Connection c = POOL.getConnection()) {
-            DSLContext context = DSL.using(c, SQLDialect.HSQLDB);
+        MessageRecord nr = new MessageRecord();
+        nr.setId(basicMessage.getId());
+        nr.setSenderId(sender.getId());
+        nr.setReceived(new Timestamp(basicMessage.getReceived().getTime()));
+        setMetadata(nr, basicMessage);
+        nr.setMimeIndex(encodeMimeIndex(MimeIndex.of(structure)));
+        try {
+            // The raw message is kept in the blob store, and only the
+            // metadata goes into the DB.
+            Set<String> partIds = putRaw(spool, structure);
+            storedPartIds.addAll(partIds);
+            try {
+                insertMessage(nr, recipients, parsed.getTerms(), partIds);
+            } catch (RuntimeException ex) {
+                if (!isMissingParent(ex) || messageExists(nr.getId())) {
+                    throw ex;
+                }
+                // An address may have been purged by retention after it was
+                // looked up, so look the addresses up afresh and try again.
+                LOG.debug("An address of message_id={} is gone, retrying with fresh addresses.", nr.getId());
+                MessageAddress freshSender = resolveAddress(sender);
+                List<MessageAddress> freshRecipients = new ArrayList<>(recipients.size());
+                for (MessageAddress recipient : recipients) {
+                    freshRecipients.add(resolveAddress(recipient));
+                }
+                nr.setSenderId(freshSender.getId());
+                insertMessage(nr, freshRecipients, parsed.getTerms(), partIds);
+            }
+        } catch (RuntimeException ex) {
+            // The same message may have been created at the same time.
+            if (!messageExists(nr.getId())) {
+                // Or an address may have been purged by retention after
+                // it was looked up, so look it up afresh next time.
+                forgetAddresses(sender, recipients);
+                throw ex;
+            }
+            return acknowledgeDuplicate(nr.getId(), recipients);
+        }
+        knownIds.add(nr.getId());
+        return nr.getId();
+    }
 
-            InsertValuesStep5<MessageRecord, String, Long, String, String, byte[]> query = context.insertInto(MESSAGE).columns(MESSAGE.ID, MESSAGE.SENDER_ID, MESSAGE.SUBJECT, MESSAGE.ABSTRACT, MESSAGE.RAW);
+    /**
+     * Stores the raw message, split up if parts are being stored separately.
+     *
+     * @return the ids of the parts stored separately.
+     */
+    private Set<String> putRaw(SpooledMessage spool, MimeStructure structure) {
+        if (partMinBytes > 0) {
+            return blobs.putSplit(spool, structure, partMinBytes, SPOOL_MEMORY_THRESHOLD);
+        }
+        blobs.put(spool);
+        return Collections.emptySet();
+    }
 
-            query.values(basicMessage.getId(), sender.getId(), truncateText(basicMessage.getSubject(), 100, true), truncateText(basicMessage.getBody(), 100, false), rawMessage);
-            query.execute();
-            return basicMessage.getId();
-        } catch (SQLException ex) {
+    private void insertMessage(MessageRecord nr, List<MessageAddress> recipients, Set<String> terms, Set<String> partIds) {
+        if (writer != null) {
+            // Written with its group, along with its other rows.
+            writer.insert(nr, recipients, terms, partIds);
+            return;
+        }
+        try {
+            db.transaction(configuration -> {
+                DSLContext tx = DSL.using(configuration);
+                tx.insertInto(MESSAGE).set(nr).execute();
+                insertReceivers(tx, nr.getId(), recipients);
+                insertTerms(tx, nr.getId(), terms);
+                insertParts(tx, nr.getId(), partIds);
+            });
+        } catch (DataAccessException ex) {
             throw new AppServerException("Failed to create message: " + ex.getMessage(), ex);
         }
     }
 
+    /**
+     * The message is already stored, so all that is left to do is to add any
+     * recipients it did not have before.
+     */
+    private String acknowledgeDuplicate(String id, List<MessageAddress> recipients) {
+        duplicates.increment();
+        LOG.debug("Already have message_id={}", id);
+        if (recipients.isEmpty()) {
+            return id;
+        }
+        try {
+            Set<Long> existing = new HashSet<>(db
+                    .select(RECEIVER_MESSAGE.RECEIVER_ID)
+                    .from(RECEIVER_MESSAGE)
+                    .where(RECEIVER_MESSAGE.MESSAGE_ID.eq(id))
+                    .fetch(RECEIVER_MESSAGE.RECEIVER_ID));
+            List<MessageAddress> added = new ArrayList<>(recipients.size());
+            for (MessageAddress recipient : recipients) {
+                if (!existing.contains(recipient.getId())) {
+                    added.add(recipient);
+                }
+            }
+            if (added.isEmpty()) {
+                return id;
+            }
+            SearchTerms addedTerms = new SearchTerms();
+            for (MessageAddress recipient : added) {
+                addedTerms.add(recipient.getAddress()).add(recipient.getName());
+            }
+            Set<String> terms = addedTerms.getTerms();
+            terms.removeAll(db
+                    .select(MESSAGE_TERM.TERM)
+                    .from(MESSAGE_TERM)
+                    .where(MESSAGE_TERM.MESSAGE_ID.eq(id).and(MESSAGE_TERM.TERM.in(terms)))
+                    .fetch(MESSAGE_TERM.TERM));
+            db.transaction(configuration -> {
+                DSLContext tx = DSL.using(configuration);
+                insertReceivers(tx, id, added);
+                insertTerms(tx, id, terms);
+            });
+            return id;
+        } catch (DataAccessException ex) {
+            throw new AppServerException("Failed to add recipients to message_id=" + id + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Deletes what was stored for a message which could not be inserted,
+     * unless the same message was inserted by another delivery after all.
+     */
+    private void discardUnstored(String id, Set<String> partIds) {
+        partsLock.writeLock().lock();
+        try {
+            if (!messageExists(id)) {
+                blobs.delete(id);
+                deleteUnneededParts(partIds);
+            }
+        } catch (RuntimeException ex) {
+            LOG.warn("Could not discard what was stored for message_id={}.", id, ex);
+        } finally {
+            partsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the address with the same email as the given one, as it is in
+     * the DB now, created again if it had been deleted.
+     */
+    private MessageAddress resolveAddress(MessageAddress stale) {
+        addresses.invalidate(stale.getAddress());
+        MessageAddress address = getAddress(stale.getAddress());
+        if (address != null) {
+            return address;
+        }
+        try {
+            return createAddress(stale.getAddress(), stale.getName());
+        } catch (AppServerException ex) {
+            // Another message created it at the same time.
+            address = getAddress(stale.getAddress());
+            if (address == null) {
+                throw ex;
+            }
+            return address;
+        }
+    }
+
+    /**
+     * @return true if the failure was a row referring to a row which does not
+     * exist, such as an address deleted by retention.
+     */
+    private static boolean isMissingParent(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException && "23503".equals(((SQLException) cause).getSQLState())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void forgetAddresses(MessageAddress sender, List<MessageAddress> recipients) {
+        addresses.invalidate(sender.getAddress());
+        for (MessageAddress recipient : recipients) {
+            addresses.invalidate(recipient.getAddress());
+        }
+    }
+
+    private boolean messageExists(String id) {
+        try {
+            return db.fetchExists(db.selectOne().from(MESSAGE).where(MESSAGE.ID.eq(id)));
+        } catch (DataAccessException ex) {
+            throw new AppServerException("Cannot check for message_id=" + id + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public List<BasicMessage> search(String query, int limit) {
+        Set<String> terms = SearchTerms.ofQuery(query);
+        if (terms.isEmpty()) {
+            return Collections.emptyList();
+        }
+        try {
+            // A message matches when it has a row for every term.
+            Select<Record1<String>> matches = db
+                    .select(MESSAGE_TERM.MESSAGE_ID)
+                    .from(MESSAGE_TERM)
+                    .where(MESSAGE_TERM.TERM.in(terms))
+                    .groupBy(MESSAGE_TERM.MESSAGE_ID)
+                    .having(DSL.count().eq(terms.size()));
+            Result<Record> nrs = selectPreviews(db)
+                    .where(MESSAGE.ID.in(matches))
+                    .orderBy(MESSAGE.RECEIVED.desc(), MESSAGE.ID.desc())
+                    .limit(limit)
+                    .fetch();
+            return previewRecordsToPreviewMessages(nrs);
+        } catch (DataAccessException ex) {
+            throw new AppServerException("Cannot search messages: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new TreeMap<>();
+        cache.addStats(stats);
+        addresses.addStats(stats);
+        pool.addStats(stats);
+        blobs.addStats(stats);
+        stats.put("messages.known", (long) knownIds.size());
+        stats.put("messages.duplicates", duplicates.sum());
+        if (retention != null) {
+            stats.put("retention.purged", retention.getPurgedCount());
+        }
+        return stats;
+    }
+
+    /**
+     * Purges now, rather than waiting for the next scheduled purge.
+     *
+     * @return the number of messages purged, 0 if retention is not enabled.
+     */
+    int purge() {
+        return retention == null ? 0 : retention.purge();
+    }
+
     @Override
     public MessageAddress getAddress(String address) {
-        try (Connection c = POOL.getConnection()) {
-            DSLContext context = DSL.using(c, SQLDialect.HSQLDB);
-            AddressRecord ar = context.selectFrom(ADDRESS).where(ADDRESS.EMAIL.eq(address)).fetchOne();
+        MessageAddress known = addresses.get(address);
+        if (known != null) {
+            return known;
+        }
+        try {
+            AddressRecord ar = db.selectFrom(ADDRESS).where(ADDRESS.EMAIL.eq(address)).fetchOne();
             if (ar == null) {
                 return null;
             }
-            return new MessageAddress(ar.getValue(ADDRESS.ID),
+            MessageAddress found = new MessageAddress(ar.getValue(ADDRESS.ID),
                     ar.getValue(ADDRESS.EMAIL),
                     ar.getValue(ADDRESS.NAME));
-        } catch (SQLException ex) {
+            addresses.put(found);
+            return found;
+        } catch (DataAccessException ex) {
             throw new AppServerException("Failed to retrieve sender record for " + address + ": " + ex.getMessage(), ex);
         }
     }
 
     @Override
     public MessageAddress getAddress(long id) {
-        try (Connection c = POOL.getConnection()) {
-            DSLContext context = DSL.using(c, SQLDialect.HSQLDB);
-            AddressRecord ar = context.selectFrom(ADDRESS).where(ADDRESS.ID.eq(id)).fetchOne();
+        try {
+            AddressRecord ar = db.selectFrom(ADDRESS).where(ADDRESS.ID.eq(id)).fetchOne();
             return new MessageAddress(ar.getValue(ADDRESS.ID),
                     ar.getValue(ADDRESS.EMAIL),
                     ar.getValue(ADDRESS.NAME));
-        } catch (SQLException ex) {
+        } catch (DataAccessException ex) {
             throw new AppServerException("Failed to retrieve sender record for id: " + id + ": " + ex.getMessage(), ex);
         }
     }
 
+    @Override
+    public Map<String, MessageAddress> getAddresses(Collection<String> emails) {
+        Map<String, MessageAddress> found = new HashMap<>();
+        List<String> unknown = new ArrayList<>();
+        for (String email : emails) {
+            MessageAddress known = addresses.get(email);
+            if (known != null) {
+                found.put(email, known);
+            } else {
+                unknown.add(email);
+            }
+        }
+        if (unknown.isEmpty()) {
+            return found;
+        }
+        try {
+            for (AddressRecord ar : db.selectFrom(ADDRESS).where(ADDRESS.EMAIL.in(unknown)).fetch()) {
+                MessageAddress address = new MessageAddress(ar.getValue(ADDRESS.ID),
+                        ar.getValue(ADDRESS.EMAIL),
+                        ar.getValue(ADDRESS.NAME));
+                addresses.put(address);
+                found.put(address.getAddress(), address);
+            }
+            return found;
+        } catch (DataAccessException ex) {
+            throw new AppServerException("Failed to retrieve address records: " + ex.getMessage(), ex);
+        }
+    }
+
     @Override
     public MessageAddress createAddress(String address, String name) {
-        try (Connection c = POOL.getConnection()) {
-            DSLContext context = DSL.using(c, SQLDialect.HSQLDB);
-            InsertValuesStep2 query = context.insertInto(ADDRESS, ADDRESS.EMAIL, ADDRESS.NAME);
-            Record idRecord = query.values(address, name).returning(ADDRESS.ID).fetchOne();
-            return getAddress(idRecord.getValue(ADDRESS.ID));
-        } catch (SQLException ex) {
+        Lock lock = addresses.creationLock(address);
+        lock.lock();
+        try {
+            if (addresses.get(address) != null) {
+                // Another message from the same new sender created it while
+                // this one waited for the lock.
+                throw new AppServerException("Failed to create address record for " + address + ": it already exists.");
+            }
+            InsertValuesStep2<AddressRecord, String, String> query = db.insertInto(ADDRESS, ADDRESS.EMAIL, ADDRESS.NAME);
+            AddressRecord idRecord = query.values(address, name).returning(ADDRESS.ID).fetchOne();
+            MessageAddress created = new MessageAddress(idRecord.getValue(ADDRESS.ID), address, name);
+            addresses.put(created);
+            return created;
+        } catch (DataAccessException ex) {
             throw new AppServerException("Failed to create address record for " + address + ": " + ex.getMessage(), ex);
+        } finally {
+            lock.unlock();
         }
     }
 
-    private static BasicMessage getBasicMessageFromRaw(MessageAddress sender, byte[] rawMessage) {
-        try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(rawMessage);
-            MimeMessage mimeMessage = new MimeMessage(SESSION, bais);
-            return new BasicMessage(calcId(rawMessage), sender, mimeMessage.getSubject(), getBasicBodyGist(mimeMessage), rawMessage.length);
-        } catch (MessagingException ex) {
-            throw new AppServerException("Failed to create message: " + ex.getMessage(), ex);
+    private static void insertReceivers(DSLContext context, String id, List<MessageAddress> recipients) {
+        // The same recipient may be given more than once.
+        Set<Long> receiverIds = new LinkedHashSet<>();
+        for (MessageAddress recipient : recipients) {
+            receiverIds.add(recipient.getId());
+        }
+        if (receiverIds.isEmpty()) {
+            return;
+        }
+        InsertValuesStep2<ReceiverMessageRecord, Long, String> query = context.insertInto(RECEIVER_MESSAGE, RECEIVER_MESSAGE.RECEIVER_ID, RECEIVER_MESSAGE.MESSAGE_ID);
+        for (Long receiverId : receiverIds) {
+            query = query.values(receiverId, id);
+        }
+        query.execute();
+    }
+
+    private static void insertTerms(DSLContext context, String id, Set<String> terms) {
+        if (terms.isEmpty()) {
+            return;
+        }
+        InsertValuesStep2<MessageTermRecord, String, String> query = context.insertInto(MESSAGE_TERM, MESSAGE_TERM.TERM, MESSAGE_TERM.MESSAGE_ID);
+        for (String term : terms) {
+            query = query.values(term, id);
+        }
+        query.execute();
+    }
+
+    private static void insertParts(DSLContext context, String id, Set<String> partIds) {
+        if (partIds.isEmpty()) {
+            return;
+        }
+        InsertValuesStep2<MessagePartRecord, String, String> query = context.insertInto(MESSAGE_PART, MESSAGE_PART.MESSAGE_ID, MESSAGE_PART.PART_ID);
+        for (String partId : partIds) {
+            query = query.values(id, partId);
         }
+        query.execute();
     }
 
-    private static JDBCPool initPool() {
+    /**
+     * Sets the columns which are derived from the raw message.
+     */
+    private static void setMetadata(MessageRecord nr, BasicMessage basicMessage) {
+        nr.setSubject(MessageParser.truncateText(basicMessage.getSubject(), 100, true));
+        nr.setAbstract(MessageParser.truncateText(basicMessage.getBody(), 100, false));
+        nr.setBody(basicMessage.getBody());
+        nr.setSize(basicMessage.getSize());
+        if (basicMessage.getSent() != null) {
+            nr.setSent(new Timestamp(basicMessage.getSent().getTime()));
+        }
+        if (basicMessage.getMessageIdHeader() != null) {
+            nr.setMessageIdHeader(MessageParser.truncateText(basicMessage.getMessageIdHeader(), 1024, false));
+        }
+    }
+
+    /**
+     * The number of connections is set with the
+     * {@code simiantoupee.hsql.pool.size} system property, and how long to
+     * wait for one to be free with {@code simiantoupee.hsql.pool.waitSeconds}.
+     * The time between syncs for GROUP durability is set with
+     * {@code simiantoupee.hsql.writeDelayMillis}.
+     */
+    private static MeteredDataSource initPool(File dbDir, Durability durability) {
         LOG.info("Initing DB...");
-        File dbDir = new File("./simiantoupee");
         if (!dbDir.exists() && !dbDir.mkdirs()) {
             throw new RuntimeException("Could not create " + dbDir);
         }
+        int size = Integer.getInteger("simiantoupee.hsql.pool.size", 8);
+        int waitSeconds = Integer.getInteger("simiantoupee.hsql.pool.waitSeconds", 30);
+        long writeDelayMillis = Long.getLong("simiantoupee.hsql.writeDelayMillis", 500L);
+        if (size < 1 || waitSeconds < 1) {
+            throw new AppServerException("simiantoupee.hsql.pool.size and simiantoupee.hsql.pool.waitSeconds must be at least 1.");
+        }
         File dbFile = new File(dbDir, "simiantoupeedb");
-        JDBCPool jdbc = new JDBCPool();
-        jdbc.setUrl("jdbc:hsqldb:" + dbFile.toURI());
-        LOG.info("DB URL: {}", jdbc.getUrl());
+        JDBCPool jdbc = new JDBCPool(size);
+        jdbc.setUrl(durability.getUrl(dbFile));
+        LOG.info("DB URL: {} pool size={} waitSeconds={} durability={} writeDelayMillis={}",
+                jdbc.getUrl(), size, waitSeconds, durability, writeDelayMillis);
         jdbc.setUser("SA");
         jdbc.setPassword("SA");
 
+        try {
+            // The pool checks for a free connection every 100ms, until the
+            // login timeout.
+            jdbc.setLoginTimeout(waitSeconds);
+        } catch (SQLException ex) {
+            throw new AppServerException("Cannot set pool waitSeconds: " + ex.getMessage(), ex);
+        }
+
         try (Connection c = jdbc.getConnection()) {
-            Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(c));
-            Liquibase liquibase = new Liquibase("simiantoupee-db.yaml", new ClassLoaderResourceAccessor(), database);
-            liquibase.update((String) null);
+            migrate(c);
+            DSLContext context = DSL.using(c, SQLDialect.HSQLDB);
+            for (String setting : durability.getSettings(writeDelayMillis)) {
+                context.execute(setting);
+            }
+            if (durability == Durability.MEMORY) {
+                MemorySnapshot.load(dbFile, context);
+            }
         } catch (SQLException | LiquibaseException ex) {
             throw new AppServerException("Cannot initialize messages service: " + ex.getMessage(), ex);
         }
-        return jdbc;
+        return new MeteredDataSource(jdbc, size);
     }
 
-    private BasicMessage recordToBasicMessage(MessageRecord nr) {
-        if (nr == null) {
+    /**
+     * Brings the schema of the DB up to date.
+     *
+     * @param c a connection to the DB
+     */
+    static void migrate(Connection c) throws SQLException, LiquibaseException {
+        Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(new JdbcConnection(c));
+        Liquibase liquibase = new Liquibase("simiantoupee-db.yaml", new ClassLoaderResourceAccessor(), database);
+        liquibase.update((String) null);
+        // Liquibase leaves auto-commit off.
+        c.setAutoCommit(true);
+    }
+
+    /**
+     * Every query shares one configuration, which borrows a connection from
+     * the pool for each statement or transaction. Logging of every statement
+     * run is off, unless enabled with the {@code simiantoupee.hsql.logSql}
+     * system property (and debug logging for org.jooq).
+     */
+    private static Configuration initConfiguration(MeteredDataSource pool) {
+        Settings settings = new Settings()
+                .withExecuteLogging(Boolean.getBoolean("simiantoupee.hsql.logSql"));
+        return new DefaultConfiguration()
+                .set(SQLDialect.HSQLDB)
+                .set(new DataSourceConnectionProvider(pool))
+                .set(settings);
+    }
+
+    /**
+     * Group commit is off unless enabled with the
+     * {@code simiantoupee.hsql.groupCommit} system property.
+     */
+    private GroupCommitWriter initWriter() {
+        if (!Boolean.getBoolean("simiantoupee.hsql.groupCommit")) {
             return null;
         }
-        return getBasicMessageFromRaw(getAddress(nr.getValue(MESSAGE.SENDER_ID)), nr.getValue(MESSAGE.RAW));
+        long maxDelayMillis = Long.getLong("simiantoupee.hsql.groupCommit.maxDelayMillis", 2L);
+        int maxRows = Integer.getInteger("simiantoupee.hsql.groupCommit.maxRows", 5000);
+        LOG.info("Group commit enabled, maxDelayMillis={} maxRows={}", maxDelayMillis, maxRows);
+        return new GroupCommitWriter(pool, maxDelayMillis, maxRows);
     }
 
-    private List<BasicMessage> recordsToBasicMessages(List<MessageRecord> nrs) {
-        if (nrs == null) {
-            return null;
+    /**
+     * With ASYNC durability, nothing is written until a checkpoint, so one is
+     * taken every {@code simiantoupee.hsql.checkpointSeconds}.
+     */
+    private void initCheckpoints() {
+        if (durability != Durability.ASYNC) {
+            return;
         }
-        List<BasicMessage> messages = new ArrayList<>(nrs.size());
-        for (MessageRecord nr : nrs) {
-            BasicMessage result = recordToBasicMessage(nr);
-            if (result != null) {
-                messages.add(result);
+        long checkpointSeconds = Long.getLong("simiantoupee.hsql.checkpointSeconds", 60L);
+        if (checkpointSeconds < 1) {
+            throw new AppServerException("simiantoupee.hsql.checkpointSeconds must be at least 1.");
+        }
+        LOG.info("Checkpointing every {} seconds.", checkpointSeconds);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread checkpointer = new Thread(r, "simiantoupee-checkpoint");
+            checkpointer.setDaemon(true);
+            return checkpointer;
+        });
+        executor.scheduleWithFixedDelay(this::checkpoint, checkpointSeconds, checkpointSeconds, TimeUnit.SECONDS);
+    }
+
+    private void checkpoint() {
+        try {
+            db.execute("CHECKPOINT");
+        } catch (DataAccessException ex) {
+            LOG.error("Could not checkpoint: {}", ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Closes the DB when the JVM shuts down, so that nothing committed is
+     * lost to the write delay or to waiting for the next checkpoint. With
+     * MEMORY durability, the snapshot is written first.
+     */
+    private void shutdown(File dbDir) {
+        try {
+            if (durability == Durability.MEMORY) {
+                MemorySnapshot.save(db, new File(dbDir, "simiantoupeedb"));
             }
+            db.execute("SHUTDOWN");
+        } catch (RuntimeException ex) {
+            LOG.error("Could not shut down the DB: {}", ex.getMessage(), ex);
         }
-        return messages;
     }
 
-    private List<BasicMessage> previewRecordsToPreviewMessages(Result<Record4<String, String, String, Long>> nrs) {
-        if (nrs == null) {
+    /**
+     * Every stored message id is kept in memory, so that duplicates can be
+     * recognized without going to the DB. Each id takes roughly 150 bytes, so
+     * a million messages need about 150 MB.
+     */
+    private Set<String> initKnownIds() {
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        try {
+            try (Cursor<Record1<String>> cursor = db.select(MESSAGE.ID).from(MESSAGE).fetchLazy()) {
+                for (Record1<String> nr : cursor) {
+                    ids.add(nr.value1());
+                }
+            }
+        } catch (DataAccessException ex) {
+            throw new AppServerException("Cannot load message ids: " + ex.getMessage(), ex);
+        }
+        LOG.info("Known messages: {}", ids.size());
+        return ids;
+    }
+
+    /**
+     * Retention is off unless at least one of the
+     * {@code simiantoupee.hsql.retention.maxAgeMinutes},
+     * {@code simiantoupee.hsql.retention.maxMessages}, or
+     * {@code simiantoupee.hsql.retention.maxBytes} system properties is set.
+     */
+    private RetentionScheduler initRetention() {
+        RetentionPolicy policy = new RetentionPolicy(
+                TimeUnit.MINUTES.toMillis(Long.getLong("simiantoupee.hsql.retention.maxAgeMinutes", 0L)),
+                Long.getLong("simiantoupee.hsql.retention.maxMessages", 0L),
+                Long.getLong("simiantoupee.hsql.retention.maxBytes", 0L));
+        if (policy.isUnlimited()) {
             return null;
         }
-        List<BasicMessage> messages = new ArrayList<>(nrs.size());
-        for (Record4 nr : nrs) {
-            BasicMessage result = new BasicMessage(nr.getValue(MESSAGE.ID), getAddress(nr.getValue(MESSAGE.SENDER_ID)), nr.getValue(MESSAGE.SUBJECT), nr.getValue(MESSAGE.ABSTRACT), 0);
-            messages.add(result);
+        int chunkSize = Integer.getInteger("simiantoupee.hsql.retention.chunkSize", 500);
+        long intervalSeconds = Long.getLong("simiantoupee.hsql.retention.intervalSeconds", 60L);
+        long defragAfter = Long.getLong("simiantoupee.hsql.retention.defragAfter", 10000L);
+        LOG.info("Retention enabled, {} chunkSize={} intervalSeconds={} defragAfter={}",
+                policy, chunkSize, intervalSeconds, defragAfter);
+        return new RetentionScheduler(pool, policy, chunkSize, TimeUnit.SECONDS.toMillis(intervalSeconds),
+                defragAfter, this::forgetMessages);
+    }
+
+    /**
+     * Removes what is kept outside of the DB about messages which have been
+     * deleted from it.
+     *
+     * @param ids the deleted messages
+     * @param partIds the parts the deleted messages had, which are deleted
+     * too unless another message still has them
+     * @param addressIds the addresses the deleted messages had, which may
+     * have been deleted too
+     */
+    private void forgetMessages(List<String> ids, Set<String> partIds, Set<Long> addressIds) {
+        addresses.invalidateIds(addressIds);
+        partsLock.writeLock().lock();
+        try {
+            for (String id : ids) {
+                knownIds.remove(id);
+                cache.invalidate(id);
+                blobs.delete(id);
+            }
+            deleteUnneededParts(partIds);
+        } finally {
+            partsLock.writeLock().unlock();
         }
-        return messages;
     }
 
-    private static MimeMessage recordToMessage(MessageRecord nr) {
-        if (nr == null) {
-            return null;
+    /**
+     * Deletes those of the parts which no message has any more. Must be
+     * called with the write lock of {@link #partsLock} held.
+     */
+    private void deleteUnneededParts(Set<String> partIds) {
+        if (partIds.isEmpty()) {
+            return;
         }
         try {
-            byte[] rawMessage = nr.getValue(MESSAGE.RAW);
-            ByteArrayInputStream bais = new ByteArrayInputStream(rawMessage);
-            return new MimeMessage(SESSION, bais);
-        } catch (MessagingException ex) {
-            throw new AppServerException("Could not parse stored message.", ex);
+            Set<String> unneeded = new HashSet<>(partIds);
+            unneeded.removeAll(db.selectDistinct(MESSAGE_PART.PART_ID).from(MESSAGE_PART)
+                    .where(MESSAGE_PART.PART_ID.in(partIds)).fetch(MESSAGE_PART.PART_ID));
+            for (String partId : unneeded) {
+                blobs.deletePart(partId);
+            }
+        } catch (DataAccessException ex) {
+            LOG.warn("Could not check which parts are still needed, so none were deleted.", ex);
         }
     }
 
-    private static InputStream recordToMessageStream(MessageRecord nr) {
-        if (nr == null) {
-            return null;
+    /**
+     * Raw messages of at least {@code simiantoupee.hsql.compress.thresholdBytes}
+     * (0, meaning never, if not set) are compressed, with the deflate level
+     * {@code simiantoupee.hsql.compress.level} (1, the fastest, if not set).
+     */
+    private static FileBlobStore initBlobs(File dbDir) {
+        long thresholdBytes = Long.getLong("simiantoupee.hsql.compress.thresholdBytes", 0L);
+        int level = Integer.getInteger("simiantoupee.hsql.compress.level", 1);
+        if (thresholdBytes < 0) {
+            throw new AppServerException("simiantoupee.hsql.compress.thresholdBytes must not be negative.");
+        }
+        if (level < 1 || level > 9) {
+            throw new AppServerException("simiantoupee.hsql.compress.level must be from 1 to 9.");
+        }
+        if (thresholdBytes > 0) {
+            LOG.info("Compressing raw messages of at least {} bytes, with level {}.", thresholdBytes, level);
         }
-        byte[] rawMessage = nr.getValue(MESSAGE.RAW);
-        return new ByteArrayInputStream(rawMessage);
+        return new FileBlobStore(new File(dbDir, "blobs"), thresholdBytes, level);
     }
 
-    private static byte[] getRawMessage(InputStream is) {
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream(16384)) {
-            byte[] buffer = new byte[8192];
-            for (int length = is.read(buffer); length >= 0; length = is.read(buffer)) {
-                baos.write(buffer, 0, length);
+    /**
+     * MIME bodies of at least {@code simiantoupee.hsql.parts.minBytes} (0,
+     * meaning never, if not set) are stored separately from their messages,
+     * and only once however many messages have them.
+     */
+    private static long initPartMinBytes() {
+        long minBytes = Long.getLong("simiantoupee.hsql.parts.minBytes", 0L);
+        if (minBytes < 0) {
+            throw new AppServerException("simiantoupee.hsql.parts.minBytes must not be negative.");
+        }
+        if (minBytes > 0) {
+            LOG.info("Storing MIME bodies of at least {} bytes separately.", minBytes);
+        }
+        return minBytes;
+    }
+
+    /**
+     * The cache sizes are set with the
+     * {@code simiantoupee.hsql.cache.mimeMaxBytes} and
+     * {@code simiantoupee.hsql.cache.basicMaxBytes} system properties.
+     */
+    private static MessageCache initCache() {
+        long mimeMaxBytes = Long.getLong("simiantoupee.hsql.cache.mimeMaxBytes", 32L * 1024 * 1024);
+        long basicMaxBytes = Long.getLong("simiantoupee.hsql.cache.basicMaxBytes", 8L * 1024 * 1024);
+        LOG.info("Message cache mimeMaxBytes={} basicMaxBytes={}", mimeMaxBytes, basicMaxBytes);
+        return new MessageCache(mimeMaxBytes, basicMaxBytes);
+    }
+
+    /**
+     * The most addresses kept in memory is set with the
+     * {@code simiantoupee.hsql.cache.maxAddresses} system property.
+     */
+    private static AddressRegistry initAddresses() {
+        long maxAddresses = Long.getLong("simiantoupee.hsql.cache.maxAddresses", 100000L);
+        if (maxAddresses < 0) {
+            throw new AppServerException("simiantoupee.hsql.cache.maxAddresses must not be negative.");
+        }
+        LOG.info("Address cache maxAddresses={}", maxAddresses);
+        return new AddressRegistry(maxAddresses);
+    }
+
+    /**
+     * Messages used to be stored in the raw BLOB column. Any that still are get
+     * moved into the blob store, so that only metadata is left in the DB.
+     */
+    private void migrateLegacyRaw() {
+        try {
+            List<String> ids = db.select(MESSAGE.ID).from(MESSAGE).where(MESSAGE.RAW.isNotNull()).fetch(MESSAGE.ID);
+            if (!ids.isEmpty()) {
+                LOG.info("Moving {} messages from the DB into the blob store...", ids.size());
+            }
+            for (String id : ids) {
+                byte[] raw = db.select(MESSAGE.RAW).from(MESSAGE).where(MESSAGE.ID.eq(id)).fetchOne(MESSAGE.RAW);
+                try (SpooledMessage spool = SpooledMessage.spool(new ByteArrayInputStream(raw), raw.length)) {
+                    blobs.put(spool);
+                }
+                db.update(MESSAGE).set(MESSAGE.RAW, (byte[]) null).where(MESSAGE.ID.eq(id)).execute();
+            }
+        } catch (DataAccessException ex) {
+            throw new AppServerException("Cannot migrate stored messages: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Selects the preview columns of messages, with the sender joined in
+     * rather than looked up per message.
+     */
+    private static SelectOnConditionStep<Record> selectPreviews(DSLContext context) {
+        return context
+                .select(PREVIEW_FIELDS)
+                .from(MESSAGE)
+                .leftOuterJoin(ADDRESS).on(ADDRESS.ID.eq(MESSAGE.SENDER_ID));
+    }
+
+    /**
+     * Selects the preview columns of the messages sent to the recipient.
+     */
+    private static SelectConditionStep<Record> selectPreviewsTo(DSLContext context, String recipient) {
+        return selectPreviews(context)
+                .join(RECEIVER_MESSAGE).on(RECEIVER_MESSAGE.MESSAGE_ID.eq(MESSAGE.ID))
+                .where(RECEIVER_MESSAGE.RECEIVER_ID.eq(
+                        context.select(ADDRESS.ID).from(ADDRESS).where(ADDRESS.EMAIL.eq(recipient)).asField()));
+    }
+
+    /**
+     * Fetches a page of the selected messages, ordered by the time received.
+     */
+    private static List<BasicMessage> fetchPage(DSLContext context, SelectConditionStep<Record> select,
+            String after, int limit, Direction direction) {
+        SelectSeekStep2<Record, Timestamp, String> query;
+        if (direction == Direction.OLDEST_FIRST) {
+            query = select.orderBy(MESSAGE.RECEIVED.asc(), MESSAGE.ID.asc());
+        } else {
+            query = select.orderBy(MESSAGE.RECEIVED.desc(), MESSAGE.ID.desc());
+        }
+        Result<Record> nrs;
+        if (after == null) {
+            nrs = query.limit(limit).fetch();
+        } else {
+            // Keyset pagination: continue from the (received, id) of the
+            // last message seen, so that the index does the skipping.
+            Timestamp afterReceived = context.select(MESSAGE.RECEIVED).from(MESSAGE).where(MESSAGE.ID.eq(after)).fetchOne(MESSAGE.RECEIVED);
+            if (afterReceived == null) {
+                throw new AppClientException("Cannot list messages after message_id=" + after + " because it does not exist.");
             }
-            is.close();
-            return baos.toByteArray();
-        } catch (IOException ex) {
-            throw new AppServerException("Unable to get raw message. Reason: " + ex.getMessage(), ex);
+            nrs = query.seek(afterReceived, after).limit(limit).fetch();
         }
+        return previewRecordsToPreviewMessages(nrs);
     }
 
-    private static String calcId(byte[] rawMessage) {
+    /**
+     * Messages stored before the metadata columns existed only have a subject
+     * and abstract, so the rest is filled in from the raw messages, once.
+     */
+    private void backfillMetadata() {
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            for (int i = 0; i < rawMessage.length; ++i) {
-                digest.update(rawMessage[i]);
+            Result<Record2<String, Timestamp>> nrs = db.select(MESSAGE.ID, MESSAGE.RECEIVED).from(MESSAGE).where(MESSAGE.SIZE.isNull()).fetch();
+            if (!nrs.isEmpty()) {
+                LOG.info("Storing metadata for {} messages...", nrs.size());
             }
-            byte[] hash = digest.digest();
-            return BaseEncoding.base64Url().omitPadding().encode(hash);
-        } catch (NoSuchAlgorithmException ex) {
-            throw new AppServerException("Unable to use SHA-256 Digest. Reason: " + ex.getMessage(), ex);
+            for (Record2<String, Timestamp> nr : nrs) {
+                String id = nr.value1();
+                InputStream raw = blobs.open(id);
+                if (raw == null) {
+                    LOG.warn("Cannot find raw message for message_id={}", id);
+                    continue;
+                }
+                try (SpooledMessage spool = SpooledMessage.spool(raw, SPOOL_MEMORY_THRESHOLD)) {
+                    BasicMessage basicMessage = MessageParser.parse(null, Collections.emptyList(), spool, nr.value2()).getBasicMessage();
+                    MessageRecord metadata = new MessageRecord();
+                    setMetadata(metadata, basicMessage);
+                    db.update(MESSAGE).set(metadata).where(MESSAGE.ID.eq(id)).execute();
+                }
+            }
+        } catch (DataAccessException ex) {
+            throw new AppServerException("Cannot store message metadata: " + ex.getMessage(), ex);
         }
     }
 
-    private static String getBasicBodyGist(MimeMessage mimeMessage) {
-        if (mimeMessage == null) {
-            return null;
+    /**
+     * Messages stored before the search index existed are added to it, once.
+     * The envelope recipients of those messages were never recorded, so only
+     * their header recipients are indexed.
+     */
+    private void indexUnindexed() {
+        try {
+            Result<? extends Record> nrs = db
+                    .select(MESSAGE.ID, MESSAGE.RECEIVED, ADDRESS.ID, ADDRESS.EMAIL, ADDRESS.NAME)
+                    .from(MESSAGE)
+                    .leftOuterJoin(ADDRESS).on(ADDRESS.ID.eq(MESSAGE.SENDER_ID))
+                    .whereNotExists(db.selectOne().from(MESSAGE_TERM).where(MESSAGE_TERM.MESSAGE_ID.eq(MESSAGE.ID)))
+                    .fetch();
+            if (!nrs.isEmpty()) {
+                LOG.info("Adding {} messages to the search index...", nrs.size());
+            }
+            for (Record nr : nrs) {
+                String id = nr.getValue(MESSAGE.ID);
+                InputStream raw = blobs.open(id);
+                if (raw == null) {
+                    LOG.warn("Cannot find raw message for message_id={}", id);
+                    continue;
+                }
+                try (SpooledMessage spool = SpooledMessage.spool(raw, SPOOL_MEMORY_THRESHOLD)) {
+                    ParsedMessage parsed = MessageParser.parse(recordToAddress(nr), Collections.emptyList(), spool, nr.getValue(MESSAGE.RECEIVED));
+                    insertTerms(db, id, parsed.getTerms());
+                }
+            }
+        } catch (DataAccessException ex) {
+            throw new AppServerException("Cannot index messages: " + ex.getMessage(), ex);
         }
+    }
+
+    /**
+     * Messages stored before the MIME offsets were recorded get them from the
+     * raw messages, once, so that their headers and parts can be read without
+     * scanning them.
+     */
+    private void indexMimeStructure() {
         try {
-            Object content = mimeMessage.getContent();
-            if (content == null) {
-                return null;
-            } else if (content instanceof String) {
-                return (String) content;
-            } else if (content instanceof MimeMultipart) {
-                return multipartToBasicBodyGist((MimeMultipart) content);
-            } else {
-                throw new AppServerException("Don't know how to handle type " + content.getClass().getName());
+            List<String> ids = db.select(MESSAGE.ID).from(MESSAGE).where(MESSAGE.MIME_INDEX.isNull()).fetch(MESSAGE.ID);
+            if (!ids.isEmpty()) {
+                LOG.info("Recording MIME offsets for {} messages...", ids.size());
             }
-        } catch (MessagingException | IOException ex) {
-            throw new AppServerException("Could not read message content.");
+            for (String id : ids) {
+                MimeIndex mimeIndex = scanMimeIndex(id);
+                if (mimeIndex == null) {
+                    LOG.warn("Cannot find raw message for message_id={}", id);
+                    continue;
+                }
+                db.update(MESSAGE).set(MESSAGE.MIME_INDEX, encodeMimeIndex(mimeIndex)).where(MESSAGE.ID.eq(id)).execute();
+            }
+        } catch (DataAccessException ex) {
+            throw new AppServerException("Cannot record MIME offsets: " + ex.getMessage(), ex);
         }
     }
 
-    private static String multipartToBasicBodyGist(MimeMultipart multipart) throws MessagingException, IOException {
-        int numParts = multipart.getCount();
-        for (int i = 0; i < numParts; ++i) {
-            MimeBodyPart body = (MimeBodyPart) multipart.getBodyPart(i);
-            Object content = body.getContent();
-            if (content == null) {
-                // Do nothing. Try a different body part.
-            } else if (content instanceof String) {
-                return (String) content;
-            } else if (content instanceof MimeMultipart) {
-                return multipartToBasicBodyGist((MimeMultipart) content);
-            } else {
-                throw new AppServerException("Don't know how to handle type " + content.getClass().getName());
+    /**
+     * @return the offsets recorded at ingest, or if there are none, those
+     * found by scanning the raw message; or null if there is no such message.
+     */
+    private MimeIndex getMimeIndex(String id) {
+        try {
+            Record1<String> nr = db.select(MESSAGE.MIME_INDEX).from(MESSAGE).where(MESSAGE.ID.eq(id)).fetchOne();
+            if (nr == null) {
+                return null;
+            } else if (nr.value1() != null) {
+                return MimeIndex.decode(nr.value1());
             }
+            return scanMimeIndex(id);
+        } catch (DataAccessException ex) {
+            throw new AppServerException("Cannot get message_id=" + id + " because: " + ex.getMessage(), ex);
         }
-        return null;
     }
 
-    private static String truncateText(String text, int maxChars, boolean ellipses) {
-        if (maxChars < 1 || (ellipses && maxChars < 4)) {
-            throw new RuntimeException("maxChars must be at least 1 character long without ellipses, or 4 with ellipses.");
+    /**
+     * @return the offsets found by scanning the raw message, or null if there
+     * is no raw message.
+     */
+    private MimeIndex scanMimeIndex(String id) {
+        InputStream raw = openRaw(id);
+        if (raw == null) {
+            return null;
         }
-        if (text == null) {
-            return "";
-        } else if (text.length() > maxChars) {
-            String result;
-            if (ellipses) {
-                StringBuilder sb = new StringBuilder(text.substring(0, maxChars - 3));
-                sb.append("...");
-                result = sb.toString();
-            } else {
-                result = text.substring(0, maxChars);
+        try (SpooledMessage spool = SpooledMessage.spool(raw, SPOOL_MEMORY_THRESHOLD)) {
+            return MimeIndex.of(spool.getBuffer());
+        }
+    }
+
+    /**
+     * @return the encoded index, or null if it does not fit in the column.
+     */
+    private static String encodeMimeIndex(MimeIndex mimeIndex) {
+        String encoded = mimeIndex.encode();
+        return encoded.length() > MAX_MIME_INDEX_LENGTH ? null : encoded;
+    }
+
+    /**
+     * @param nr a record with the preview columns
+     * @param bodyField the column to use as the body
+     */
+    private static BasicMessage recordToBasicMessage(Record nr, Field<String> bodyField) {
+        if (nr == null) {
+            return null;
+        }
+        Long size = nr.getValue(MESSAGE.SIZE);
+        return new BasicMessage(nr.getValue(MESSAGE.ID),
+                recordToAddress(nr),
+                nr.getValue(MESSAGE.SUBJECT),
+                nr.getValue(bodyField),
+                size == null ? 0 : size,
+                nr.getValue(MESSAGE.RECEIVED),
+                nr.getValue(MESSAGE.SENT),
+                nr.getValue(MESSAGE.MESSAGE_ID_HEADER));
+    }
+
+    private static List<BasicMessage> previewRecordsToPreviewMessages(Result<? extends Record> nrs) {
+        if (nrs == null) {
+            return null;
+        }
+        List<BasicMessage> messages = new ArrayList<>(nrs.size());
+        for (Record nr : nrs) {
+            messages.add(recordToBasicMessage(nr, MESSAGE.ABSTRACT));
+        }
+        return messages;
+    }
+
+    /**
+     * @param nr a record with the address columns joined in
+     * @return the address, or null if the record did not join to one.
+     */
+    private static MessageAddress recordToAddress(Record nr) {
+        Long addressId = nr.getValue(ADDRESS.ID);
+        if (addressId == null) {
+            return null;
+        }
+        return new MessageAddress(addressId,
+                nr.getValue(ADDRESS.EMAIL),
+                nr.getValue(ADDRESS.NAME));
+    }
+
+    /**
+     * Opens the raw message, which is in the blob store unless the message has
+     * not been migrated out of the DB yet.
+     */
+    private InputStream openRaw(String id) {
+        return openRaw(id, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Opens only a range of the raw message.
+     *
+     * @param offset where the range starts
+     * @param length the most bytes to read, or Long.MAX_VALUE to read to the
+     * end
+     */
+    private InputStream openRaw(String id, long offset, long length) {
+        InputStream raw = blobs.open(id, offset, length);
+        if (raw == null) {
+            byte[] legacyRaw = db.select(MESSAGE.RAW).from(MESSAGE).where(MESSAGE.ID.eq(id)).fetchOne(MESSAGE.RAW);
+            if (legacyRaw != null) {
+                int from = (int) Math.min(offset, legacyRaw.length);
+                raw = new ByteArrayInputStream(legacyRaw, from, (int) Math.min(length, legacyRaw.length - from));
             }
-            return result;
         }
-        return text;
+        return raw;
     }
 
+    private static MimeMessage rawToMessage(InputStream raw) {
+        if (raw == null) {
+            return null;
+        }
+        try (InputStream is = raw) {
+            return new MimeMessage(MessageParser.getSession(), is);
+        } catch (MessagingException | IOException ex) {
+            throw new AppServerException("Could not parse stored message.", ex);
+        }
+    }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store;
+
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import static com.redsaz.simiantoupee.model.tables.Address.ADDRESS;
+import static com.redsaz.simiantoupee.model.tables.Message.MESSAGE;
+import static com.redsaz.simiantoupee.model.tables.MessagePart.MESSAGE_PART;
+import static com.redsaz.simiantoupee.model.tables.MessageTerm.MESSAGE_TERM;
+import static com.redsaz.simiantoupee.model.tables.ReceiverMessage.RECEIVER_MESSAGE;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import liquibase.exception.LiquibaseException;
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.jooq.Cursor;
+import org.jooq.DSLContext;
+import org.jooq.InsertSetMoreStep;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies the messages between an in-memory DB and the DB files, for MEMORY
+ * durability. HSQLDB cannot load a memory DB from files by itself, so each
+ * table is copied across row by row.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class MemorySnapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemorySnapshot.class);
+    private static final int ROWS_PER_INSERT = 1000;
+    // In an order where rows only refer to rows copied before them.
+    private static final List<Table<?>> TABLES = Arrays.asList(ADDRESS, MESSAGE, RECEIVER_MESSAGE, MESSAGE_TERM, MESSAGE_PART);
+
+    private MemorySnapshot() {
+    }
+
+    /**
+     * Copies everything from the DB files, if there are any, into the memory
+     * DB.
+     *
+     * @param dbFile the DB files, without extension
+     * @param memory the memory DB, with the schema already created
+     */
+    public static void load(File dbFile, DSLContext memory) {
+        if (!new File(dbFile.getPath() + ".script").exists()) {
+            return;
+        }
+        LOG.info("Loading {} into memory...", dbFile);
+        try (Connection c = open(dbFile)) {
+            // Brings the files up to date first, so the columns match.
+            HsqlMessagesService.migrate(c);
+            DSLContext files = DSL.using(c, SQLDialect.HSQLDB);
+            copy(files, memory);
+            files.execute("SHUTDOWN");
+        } catch (SQLException | LiquibaseException ex) {
+            throw new AppServerException("Cannot load " + dbFile + " into memory: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Copies everything from the memory DB into new DB files, which then
+     * replace the old ones. If the copy fails part way, the old files are
+     * left as they were.
+     *
+     * @param memory the memory DB
+     * @param dbFile the DB files, without extension
+     */
+    public static void save(DSLContext memory, File dbFile) {
+        LOG.info("Writing snapshot to {}...", dbFile);
+        Path dir = dbFile.getAbsoluteFile().getParentFile().toPath();
+        Path snapshotDir = dir.resolve("snapshot");
+        try {
+            deleteFiles(snapshotDir, dbFile.getName());
+            Files.createDirectories(snapshotDir);
+            File snapshotFile = snapshotDir.resolve(dbFile.getName()).toFile();
+            try (Connection c = open(snapshotFile)) {
+                HsqlMessagesService.migrate(c);
+                DSLContext files = DSL.using(c, SQLDialect.HSQLDB);
+                // The whole snapshot is written by the shutdown checkpoint.
+                files.execute("SET FILES LOG FALSE");
+                copy(memory, files);
+                files.execute("SET FILES LOG TRUE");
+                files.execute("SHUTDOWN");
+            }
+            deleteFiles(dir, dbFile.getName());
+            try (DirectoryStream<Path> snapshotFiles = Files.newDirectoryStream(snapshotDir, dbFile.getName() + ".*")) {
+                for (Path snapshotPath : snapshotFiles) {
+                    Files.move(snapshotPath, dir.resolve(snapshotPath.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.delete(snapshotDir);
+        } catch (SQLException | LiquibaseException | IOException ex) {
+            throw new AppServerException("Cannot write snapshot to " + dbFile + ": " + ex.getMessage(), ex);
+        }
+        LOG.info("Wrote snapshot to {}.", dbFile);
+    }
+
+    private static Connection open(File dbFile) throws SQLException {
+        JDBCDataSource dataSource = new JDBCDataSource();
+        dataSource.setUrl("jdbc:hsqldb:" + dbFile.toURI());
+        dataSource.setUser("SA");
+        dataSource.setPassword("SA");
+        return dataSource.getConnection();
+    }
+
+    private static void copy(DSLContext from, DSLContext to) {
+        for (Table<?> table : TABLES) {
+            int rows = copyTable(from, to, table);
+            LOG.info("Copied {} rows of {}.", rows, table.getName());
+        }
+    }
+
+    private static <R extends Record> int copyTable(DSLContext from, DSLContext to, Table<R> table) {
+        int rows = 0;
+        try (Cursor<R> cursor = from.selectFrom(table).fetchLazy()) {
+            while (cursor.hasNext()) {
+                Result<R> chunk = cursor.fetch(ROWS_PER_INSERT);
+                InsertSetMoreStep<R> query = null;
+                for (R row : chunk) {
+                    // Fetched values are not "changed", and only changed
+                    // values are inserted.
+                    row.changed(true);
+                    query = query == null ? to.insertInto(table).set(row) : query.newRecord().set(row);
+                }
+                query.execute();
+                rows += chunk.size();
+            }
+        }
+        return rows;
+    }
+
+    private static void deleteFiles(Path dir, String dbName) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> dbFiles = Files.newDirectoryStream(dir, dbName + ".*")) {
+            for (Path dbPath : dbFiles) {
+                Files.delete(dbPath);
+            }
+        }
+    }
+}
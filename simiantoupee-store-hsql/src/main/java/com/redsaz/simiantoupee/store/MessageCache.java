@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.redsaz.simiantoupee.api.model.BasicMessage;
+import java.util.Map;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Keeps recently used parsed messages, so that reading the same message
+ * several times in a row (such as a POP3 TOP followed by a RETR) only reads
+ * and parses it once. Each kind of message has its own limit on the
+ * (approximate) number of bytes kept, and the least recently used are evicted
+ * first. Since message ids are content hashes, cached messages never go stale;
+ * they only need to be removed when a message is deleted.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class MessageCache {
+
+    // A rough allowance for the objects and fields around the message text.
+    private static final int BASIC_MESSAGE_OVERHEAD = 512;
+
+    private final Cache<String, MimeMessage> mimeMessages;
+    private final Cache<String, BasicMessage> basicMessages;
+
+    /**
+     * @param mimeMaxBytes the most bytes of parsed MimeMessages to keep
+     * @param basicMaxBytes the most bytes of BasicMessages to keep
+     */
+    public MessageCache(long mimeMaxBytes, long basicMaxBytes) {
+        mimeMessages = CacheBuilder.newBuilder()
+                .maximumWeight(mimeMaxBytes)
+                .<String, MimeMessage>weigher((id, mm) -> weigh(mm))
+                .recordStats()
+                .build();
+        basicMessages = CacheBuilder.newBuilder()
+                .maximumWeight(basicMaxBytes)
+                .<String, BasicMessage>weigher((id, bm) -> weigh(bm))
+                .recordStats()
+                .build();
+    }
+
+    public MimeMessage getMimeMessage(String id) {
+        return mimeMessages.getIfPresent(id);
+    }
+
+    public void putMimeMessage(String id, MimeMessage mimeMessage) {
+        mimeMessages.put(id, mimeMessage);
+    }
+
+    public BasicMessage getBasicMessage(String id) {
+        return basicMessages.getIfPresent(id);
+    }
+
+    public void putBasicMessage(String id, BasicMessage basicMessage) {
+        basicMessages.put(id, basicMessage);
+    }
+
+    public void invalidate(String id) {
+        mimeMessages.invalidate(id);
+        basicMessages.invalidate(id);
+    }
+
+    public void invalidateAll() {
+        mimeMessages.invalidateAll();
+        basicMessages.invalidateAll();
+    }
+
+    /**
+     * Adds the hit, miss, and eviction counts and the number of entries of the
+     * caches to the stats.
+     *
+     * @param stats where to put the counts
+     */
+    public void addStats(Map<String, Long> stats) {
+        addStats(stats, "cache.mime", mimeMessages);
+        addStats(stats, "cache.basic", basicMessages);
+    }
+
+    static void addStats(Map<String, Long> stats, String prefix, Cache<?, ?> cache) {
+        CacheStats cs = cache.stats();
+        stats.put(prefix + ".hits", cs.hitCount());
+        stats.put(prefix + ".misses", cs.missCount());
+        stats.put(prefix + ".evictions", cs.evictionCount());
+        stats.put(prefix + ".entries", cache.size());
+    }
+
+    private static int weigh(MimeMessage mimeMessage) {
+        // The content of a parsed message is held as bytes, and the headers
+        // are usually small in comparison.
+        try {
+            return Math.max(1, mimeMessage.getSize());
+        } catch (javax.mail.MessagingException ex) {
+            return 1;
+        }
+    }
+
+    private static int weigh(BasicMessage basicMessage) {
+        long chars = length(basicMessage.getSubject()) + length(basicMessage.getBody())
+                + length(basicMessage.getMessageIdHeader());
+        return (int) Math.min(Integer.MAX_VALUE, BASIC_MESSAGE_OVERHEAD + chars * 2);
+    }
+
+    private static int length(String text) {
+        return text == null ? 0 : text.length();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * Times how long callers wait to get a connection from the pool, so that it
+ * can be seen when SMTP, POP3, and REST requests are competing for too few
+ * connections.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class MeteredDataSource implements DataSource {
+
+    // Getting a free connection takes microseconds, so anything this long
+    // was spent waiting for one to be returned.
+    private static final long WAITED_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final DataSource pool;
+    private final int size;
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder waited = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0L);
+
+    /**
+     * @param inPool the pool to get connections from
+     * @param inSize the number of connections in the pool
+     */
+    public MeteredDataSource(DataSource inPool, int inSize) {
+        pool = inPool;
+        size = inSize;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return pool.getConnection();
+        } finally {
+            record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return pool.getConnection(username, password);
+        } finally {
+            record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Adds the pool size, the number of connections handed out, how many of
+     * those had to wait, and the total and longest waits to the stats.
+     *
+     * @param stats where to put the counts
+     */
+    public void addStats(Map<String, Long> stats) {
+        stats.put("pool.size", (long) size);
+        stats.put("pool.acquired", acquired.sum());
+        stats.put("pool.waited", waited.sum());
+        stats.put("pool.waitMillis.total", TimeUnit.NANOSECONDS.toMillis(waitNanos.sum()));
+        stats.put("pool.waitMillis.max", TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+    }
+
+    private void record(long nanos) {
+        acquired.increment();
+        if (nanos >= WAITED_NANOS) {
+            waited.increment();
+        }
+        waitNanos.add(nanos);
+        maxWaitNanos.accumulate(nanos);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return pool.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        pool.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        pool.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return pool.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return pool.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return pool.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || pool.isWrapperFor(iface);
+    }
+}
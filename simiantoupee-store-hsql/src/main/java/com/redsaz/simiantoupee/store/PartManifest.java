@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store;
+
+import com.google.common.io.ByteStreams;
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+/**
+ * Lists where the separately stored parts of a message go. A stored manifest
+ * is followed by the rest of the bytes of the message, that is, every byte
+ * which is not in one of the parts, so that the manifest and the parts
+ * together give back the exact original message.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class PartManifest {
+
+    // "STM1", so that a file which is not a manifest is not mistaken for one.
+    private static final int MAGIC = 0x53544d31;
+
+    private final long[] offsets;
+    private final long[] lengths;
+    private final String[] partIds;
+
+    /**
+     * @param inOffsets where each part starts in the message, in ascending
+     * order
+     * @param inLengths how long each part is
+     * @param inPartIds the blob id of each part
+     */
+    public PartManifest(long[] inOffsets, long[] inLengths, String[] inPartIds) {
+        offsets = inOffsets;
+        lengths = inLengths;
+        partIds = inPartIds;
+    }
+
+    /**
+     * Reads a manifest, leaving the stream at the rest of the message.
+     *
+     * @param in a stored manifest
+     * @return the manifest.
+     * @throws IOException if the manifest could not be read
+     */
+    public static PartManifest readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a part manifest.");
+        }
+        int count = in.readInt();
+        long[] offsets = new long[count];
+        long[] lengths = new long[count];
+        String[] partIds = new String[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = in.readLong();
+            lengths[i] = in.readLong();
+            partIds[i] = in.readUTF();
+        }
+        return new PartManifest(offsets, lengths, partIds);
+    }
+
+    /**
+     * Writes the manifest, followed by the bytes of the message which are not
+     * in any of the parts.
+     *
+     * @param out where to store the manifest
+     * @param raw the whole message
+     * @throws IOException if the manifest could not be written
+     */
+    public void writeTo(DataOutputStream out, InputStream raw) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(partIds.length);
+        for (int i = 0; i < partIds.length; i++) {
+            out.writeLong(offsets[i]);
+            out.writeLong(lengths[i]);
+            out.writeUTF(partIds[i]);
+        }
+        long position = 0;
+        for (int i = 0; i < partIds.length; i++) {
+            ByteStreams.copy(ByteStreams.limit(raw, offsets[i] - position), out);
+            ByteStreams.skipFully(raw, lengths[i]);
+            position = offsets[i] + lengths[i];
+        }
+        ByteStreams.copy(raw, out);
+    }
+
+    /**
+     * @return the distinct blob ids of the parts.
+     */
+    public Set<String> getPartIds() {
+        return new LinkedHashSet<>(Arrays.asList(partIds));
+    }
+
+    /**
+     * Puts the message back together, from the given offset on.
+     *
+     * @param rest the rest of the message, as left by
+     * {@link #readFrom(DataInputStream)}
+     * @param from the offset in the original message to start at
+     * @param openPart opens the blob of a part from an offset in the part, or
+     * gives null if there is no such blob
+     * @return a stream of the original message from the offset. Each part is
+     * only opened once the stream reaches it, and parts which end before the
+     * offset are never opened.
+     */
+    public InputStream join(InputStream rest, long from, BiFunction<String, Long, InputStream> openPart) {
+        return new JoiningInputStream(rest, from, openPart);
+    }
+
+    private class JoiningInputStream extends InputStream {
+
+        private final InputStream rest;
+        private final BiFunction<String, Long, InputStream> openPart;
+        private final long from;
+        private boolean started;
+        private long position;
+        private int nextPart;
+        private InputStream part;
+        private long partEnd;
+
+        JoiningInputStream(InputStream inRest, long inFrom, BiFunction<String, Long, InputStream> inOpenPart) {
+            rest = inRest;
+            from = inFrom;
+            openPart = inOpenPart;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!started) {
+                start();
+            }
+            while (true) {
+                if (part != null) {
+                    int read = part.read(buffer, offset, (int) Math.min(length, partEnd - position));
+                    if (read > 0) {
+                        position += read;
+                        return read;
+                    }
+                    part.close();
+                    part = null;
+                    if (position != partEnd) {
+                        throw new IOException("The blob of part " + partIds[nextPart - 1] + " is too short.");
+                    }
+                } else if (nextPart < partIds.length && position == offsets[nextPart]) {
+                    openNextPart(0);
+                } else {
+                    long until = nextPart < partIds.length ? offsets[nextPart] : Long.MAX_VALUE;
+                    int read = rest.read(buffer, offset, (int) Math.min(length, until - position));
+                    if (read < 0 && nextPart < partIds.length) {
+                        throw new IOException("The manifest ends before part " + partIds[nextPart]);
+                    }
+                    if (read > 0) {
+                        position += read;
+                    }
+                    return read;
+                }
+            }
+        }
+
+        /**
+         * Skips to the starting offset: past the parts which end before it,
+         * and into the part it is in, if any.
+         */
+        private void start() throws IOException {
+            started = true;
+            long restSkipped = 0;
+            long previousEnd = 0;
+            while (nextPart < partIds.length && offsets[nextPart] + lengths[nextPart] <= from) {
+                restSkipped += offsets[nextPart] - previousEnd;
+                previousEnd = offsets[nextPart] + lengths[nextPart];
+                nextPart++;
+            }
+            if (nextPart < partIds.length && offsets[nextPart] < from) {
+                ByteStreams.skipFully(rest, restSkipped + offsets[nextPart] - previousEnd);
+                openNextPart(from - offsets[nextPart]);
+            } else {
+                ByteStreams.skipFully(rest, restSkipped + from - previousEnd);
+            }
+            position = from;
+        }
+
+        private void openNextPart(long partOffset) {
+            part = openPart.apply(partIds[nextPart], partOffset);
+            if (part == null) {
+                throw new AppServerException("Cannot find the blob of part " + partIds[nextPart]);
+            }
+            partEnd = offsets[nextPart] + lengths[nextPart];
+            nextPart++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (part != null) {
+                    part.close();
+                }
+            } finally {
+                rest.close();
+            }
+        }
+    }
+}
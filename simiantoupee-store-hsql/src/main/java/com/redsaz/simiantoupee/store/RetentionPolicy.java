@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store;
+
+/**
+ * The limits on how many messages are kept. When a limit is exceeded, the
+ * oldest messages are purged until it no longer is. A limit of 0 means there
+ * is no limit.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class RetentionPolicy {
+
+    private final long maxAgeMillis;
+    private final long maxMessages;
+    private final long maxBytes;
+
+    /**
+     * @param inMaxAgeMillis messages received longer ago than this are purged
+     * @param inMaxMessages the most messages to keep
+     * @param inMaxBytes the most bytes of raw messages to keep
+     */
+    public RetentionPolicy(long inMaxAgeMillis, long inMaxMessages, long inMaxBytes) {
+        if (inMaxAgeMillis < 0 || inMaxMessages < 0 || inMaxBytes < 0) {
+            throw new IllegalArgumentException("Retention limits must not be negative.");
+        }
+        maxAgeMillis = inMaxAgeMillis;
+        maxMessages = inMaxMessages;
+        maxBytes = inMaxBytes;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public long getMaxMessages() {
+        return maxMessages;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return true if there are no limits, so nothing would ever be purged.
+     */
+    public boolean isUnlimited() {
+        return maxAgeMillis == 0 && maxMessages == 0 && maxBytes == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "maxAgeMillis=" + maxAgeMillis + " maxMessages=" + maxMessages + " maxBytes=" + maxBytes;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store;
+
+import static com.redsaz.simiantoupee.model.tables.Address.ADDRESS;
+import static com.redsaz.simiantoupee.model.tables.Message.MESSAGE;
+import static com.redsaz.simiantoupee.model.tables.MessagePart.MESSAGE_PART;
+import static com.redsaz.simiantoupee.model.tables.MessageTerm.MESSAGE_TERM;
+import static com.redsaz.simiantoupee.model.tables.ReceiverMessage.RECEIVER_MESSAGE;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.sql.DataSource;
+import org.jooq.Condition;
+import org.jooq.DSLContext;
+import org.jooq.Record2;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically purges the oldest messages that exceed the retention policy.
+ * Messages are deleted in chunks, each in its own short transaction, so that
+ * incoming messages are only held up for the length of one chunk rather than
+ * the whole purge. Along with the messages go their recipients, search terms,
+ * part lists, and any addresses no longer used by any message. After purging, the DB is
+ * checkpointed, and once enough has been purged, defragmented.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class RetentionScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetentionScheduler.class);
+
+    private final DataSource dataSource;
+    private final RetentionPolicy policy;
+    private final int chunkSize;
+    private final long defragAfter;
+    private final PurgeListener onPurged;
+    private final LongAdder purgedTotal = new LongAdder();
+    private long purgedSinceDefrag;
+
+    /**
+     * @param inDataSource where the messages are
+     * @param inPolicy the limits to enforce
+     * @param inChunkSize the most messages deleted per transaction
+     * @param intervalMillis how long to wait between purges
+     * @param inDefragAfter how many messages to purge before defragmenting
+     * the DB
+     * @param inOnPurged called after each chunk is deleted
+     */
+    public RetentionScheduler(DataSource inDataSource, RetentionPolicy inPolicy, int inChunkSize,
+            long intervalMillis, long inDefragAfter, PurgeListener inOnPurged) {
+        if (inChunkSize < 1 || intervalMillis < 1) {
+            throw new IllegalArgumentException("chunkSize and intervalMillis must be at least 1.");
+        }
+        dataSource = inDataSource;
+        policy = inPolicy;
+        chunkSize = inChunkSize;
+        defragAfter = inDefragAfter;
+        onPurged = inOnPurged;
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread purger = new Thread(r, "simiantoupee-retention");
+            purger.setDaemon(true);
+            return purger;
+        });
+        executor.scheduleWithFixedDelay(this::purgeQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return how many messages have been purged since startup.
+     */
+    public long getPurgedCount() {
+        return purgedTotal.sum();
+    }
+
+    /**
+     * Purges the oldest messages until the policy is met.
+     *
+     * @return the number of messages purged.
+     */
+    public synchronized int purge() {
+        int purged = 0;
+        try (Connection c = dataSource.getConnection()) {
+            DSLContext context = DSL.using(c, SQLDialect.HSQLDB);
+            if (policy.getMaxAgeMillis() > 0) {
+                purged += purgeOlderThan(context, new Timestamp(System.currentTimeMillis() - policy.getMaxAgeMillis()));
+            }
+            if (policy.getMaxMessages() > 0) {
+                purged += purgeExcessMessages(context, context.fetchCount(MESSAGE) - policy.getMaxMessages());
+            }
+            if (policy.getMaxBytes() > 0) {
+                BigDecimal totalBytes = context.select(DSL.sum(MESSAGE.SIZE)).from(MESSAGE).fetchOne().value1();
+                if (totalBytes != null) {
+                    purged += purgeExcessBytes(context, totalBytes.longValue() - policy.getMaxBytes());
+                }
+            }
+            if (purged > 0) {
+                purgedSinceDefrag += purged;
+                if (purgedSinceDefrag >= defragAfter) {
+                    LOG.info("Purged {} messages since the last defrag, defragmenting.", purgedSinceDefrag);
+                    context.execute("CHECKPOINT DEFRAG");
+                    purgedSinceDefrag = 0;
+                } else {
+                    context.execute("CHECKPOINT");
+                }
+            }
+        } catch (SQLException ex) {
+            LOG.error("Could not purge messages: {}", ex.getMessage(), ex);
+        }
+        return purged;
+    }
+
+    private void purgeQuietly() {
+        try {
+            int purged = purge();
+            if (purged > 0) {
+                LOG.info("Purged {} messages.", purged);
+            }
+        } catch (RuntimeException ex) {
+            // Keep the schedule going, the next run may do better.
+            LOG.error("Could not purge messages.", ex);
+        }
+    }
+
+    private int purgeOlderThan(DSLContext context, Timestamp cutoff) {
+        int purged = 0;
+        List<String> ids;
+        do {
+            ids = selectOldest(context, MESSAGE.RECEIVED.lt(cutoff), chunkSize);
+            purged += delete(context, ids);
+        } while (ids.size() == chunkSize);
+        return purged;
+    }
+
+    private int purgeExcessMessages(DSLContext context, long excess) {
+        int purged = 0;
+        while (excess > 0) {
+            List<String> ids = selectOldest(context, DSL.trueCondition(), (int) Math.min(chunkSize, excess));
+            if (ids.isEmpty()) {
+                break;
+            }
+            purged += delete(context, ids);
+            excess -= ids.size();
+        }
+        return purged;
+    }
+
+    private int purgeExcessBytes(DSLContext context, long excess) {
+        int purged = 0;
+        while (excess > 0) {
+            Result<Record2<String, Long>> nrs = context.select(MESSAGE.ID, MESSAGE.SIZE)
+                    .from(MESSAGE)
+                    .orderBy(MESSAGE.RECEIVED.asc(), MESSAGE.ID.asc())
+                    .limit(chunkSize)
+                    .fetch();
+            if (nrs.isEmpty()) {
+                break;
+            }
+            List<String> ids = new ArrayList<>(nrs.size());
+            for (Record2<String, Long> nr : nrs) {
+                if (excess <= 0) {
+                    break;
+                }
+                ids.add(nr.value1());
+                excess -= nr.value2() == null ? 0 : nr.value2();
+            }
+            purged += delete(context, ids);
+        }
+        return purged;
+    }
+
+    private static List<String> selectOldest(DSLContext context, Condition condition, int limit) {
+        return context.select(MESSAGE.ID)
+                .from(MESSAGE)
+                .where(condition)
+                .orderBy(MESSAGE.RECEIVED.asc(), MESSAGE.ID.asc())
+                .limit(limit)
+                .fetch(MESSAGE.ID);
+    }
+
+    private int delete(DSLContext context, List<String> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        Set<Long> addressIds = new HashSet<>();
+        addressIds.addAll(context.select(MESSAGE.SENDER_ID).from(MESSAGE).where(MESSAGE.ID.in(ids)).fetch(MESSAGE.SENDER_ID));
+        addressIds.addAll(context.select(RECEIVER_MESSAGE.RECEIVER_ID).from(RECEIVER_MESSAGE).where(RECEIVER_MESSAGE.MESSAGE_ID.in(ids)).fetch(RECEIVER_MESSAGE.RECEIVER_ID));
+        addressIds.remove(null);
+        Set<String> partIds = new HashSet<>(context.select(MESSAGE_PART.PART_ID).from(MESSAGE_PART).where(MESSAGE_PART.MESSAGE_ID.in(ids)).fetch(MESSAGE_PART.PART_ID));
+        context.transaction(configuration -> {
+            DSLContext tx = DSL.using(configuration);
+            // Ingest writes the message before its recipients and terms,
+            // but deleting goes the other way, so lock everything up front
+            // rather than deadlocking with an incoming message.
+            tx.execute("LOCK TABLE message WRITE, receiver_message WRITE, message_term WRITE, message_part WRITE");
+            tx.delete(MESSAGE_PART).where(MESSAGE_PART.MESSAGE_ID.in(ids)).execute();
+            tx.delete(MESSAGE_TERM).where(MESSAGE_TERM.MESSAGE_ID.in(ids)).execute();
+            tx.delete(RECEIVER_MESSAGE).where(RECEIVER_MESSAGE.MESSAGE_ID.in(ids)).execute();
+            tx.delete(MESSAGE).where(MESSAGE.ID.in(ids)).execute();
+        });
+        deleteUnusedAddresses(context, addressIds);
+        onPurged.purged(ids, partIds, addressIds);
+        purgedTotal.add(ids.size());
+        return ids.size();
+    }
+
+    /**
+     * Deletes those of the addresses which no message uses any more. This is
+     * its own transaction, so that addresses are only locked for as long as
+     * it takes to delete them, rather than for the whole chunk. Only the
+     * addresses of the purged messages are checked, rather than every
+     * address, so the check stays as small as the chunk.
+     */
+    private static void deleteUnusedAddresses(DSLContext context, Set<Long> addressIds) {
+        if (addressIds.isEmpty()) {
+            return;
+        }
+        context.transaction(configuration -> {
+            DSLContext tx = DSL.using(configuration);
+            tx.execute("LOCK TABLE address WRITE, message READ, receiver_message READ");
+            tx.delete(ADDRESS)
+                    .where(ADDRESS.ID.in(addressIds))
+                    .andNotExists(tx.selectOne().from(MESSAGE).where(MESSAGE.SENDER_ID.eq(ADDRESS.ID)))
+                    .andNotExists(tx.selectOne().from(RECEIVER_MESSAGE).where(RECEIVER_MESSAGE.RECEIVER_ID.eq(ADDRESS.ID)))
+                    .execute();
+        });
+    }
+
+    /**
+     * Told about each chunk after it is deleted, so that anything else kept
+     * about those messages can be removed.
+     */
+    public interface PurgeListener {
+
+        /**
+         * @param ids the deleted messages
+         * @param partIds the parts those messages had
+         * @param addressIds the addresses those messages had, which were
+         * deleted too unless another message still uses them
+         */
+        void purged(List<String> ids, Set<String> partIds, Set<Long> addressIds);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store;
+
+import com.google.common.io.ByteStreams;
+import com.redsaz.simiantoupee.api.ingest.MimeStructure;
+import com.redsaz.simiantoupee.api.ingest.SpooledMessage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class FileBlobStoreTest extends Assert {
+
+    private static final String MESSAGE = "Subject: blob\r\n\r\nblob\r\n";
+    private static final long PART_MIN_BYTES = 64;
+    private static final String SHARED = HsqlTestStores.attachment("shared");
+    private static final String SPLIT = HsqlTestStores.multipart(SHARED, HsqlTestStores.attachment("first"));
+    private static final String OTHER_SPLIT = HsqlTestStores.multipart(SHARED, HsqlTestStores.attachment("second"));
+
+    @DataProvider
+    public static Object[][] malformedIds() {
+        return new Object[][]{{""}, {"a"}, {"abc"}, {"../../../../etc/passwd"},
+        {"0000000000000000000000000000000000000000000/"}, {"000000000000000000000000000000000000000000"}};
+    }
+
+    @Test(dataProvider = "malformedIds")
+    public void testMalformedIdIsAbsent(String id) throws IOException {
+        // Given a store with a blob in it...
+        FileBlobStore blobs = newStore(0);
+        String stored = put(blobs, MESSAGE);
+
+        // ... When a malformed id is looked up or deleted...
+        InputStream opened = blobs.open(id);
+        boolean exists = blobs.exists(id);
+        blobs.delete(id);
+        blobs.deletePart(id);
+
+        // ... Then it is treated as absent, and nothing else is touched.
+        assertNull(opened);
+        assertFalse(exists);
+        assertTrue(blobs.exists(stored));
+    }
+
+    @Test
+    public void testWellFormedUnknownIdIsAbsent() throws IOException {
+        // Given an empty store...
+        FileBlobStore blobs = newStore(0);
+
+        // ... When an id which was never stored is looked up...
+        // ... Then there is no such blob.
+        assertNull(blobs.open("0000000000000000000000000000000000000000000"));
+        assertFalse(blobs.exists("0000000000000000000000000000000000000000000"));
+    }
+
+    @DataProvider
+    public static Object[][] compressThresholds() {
+        return new Object[][]{{0L}, {1L}};
+    }
+
+    @Test(dataProvider = "compressThresholds")
+    public void testSplitMessageIsRebuilt(long compressThreshold) throws IOException {
+        // Given a store which splits off large bodies, deflated or not...
+        FileBlobStore blobs = newStore(compressThreshold);
+
+        // ... When two messages with a body in common are stored split...
+        Set<String> partIds = putSplit(blobs, SPLIT);
+        Set<String> otherPartIds = putSplit(blobs, OTHER_SPLIT);
+
+        // ... Then the large bodies are stored on their own, the common one
+        // only once, and both messages are read back byte for byte.
+        assertEquals(partIds, HsqlTestStores.partIds(SPLIT, PART_MIN_BYTES));
+        assertEquals(partIds.size(), 2);
+        assertEquals(otherPartIds, HsqlTestStores.partIds(OTHER_SPLIT, PART_MIN_BYTES));
+        Map<String, Long> stats = new HashMap<>();
+        blobs.addStats(stats);
+        assertEquals(stats.get("blobs.parts.stored").longValue(), 3L);
+        assertEquals(stats.get("blobs.parts.reused").longValue(), 1L);
+        assertEquals(stats.get("blobs.compressed").longValue(), compressThreshold > 0 ? 3L : 0L);
+        assertEquals(read(blobs.open(idOf(SPLIT), 0, Long.MAX_VALUE)), SPLIT);
+        assertEquals(read(blobs.open(idOf(OTHER_SPLIT))), OTHER_SPLIT);
+    }
+
+    @Test(dataProvider = "compressThresholds")
+    public void testSplitMessageRangeReads(long compressThreshold) throws IOException {
+        // Given a message stored split, with its parts deflated or not...
+        FileBlobStore blobs = newStore(compressThreshold);
+        putSplit(blobs, SPLIT);
+        String id = idOf(SPLIT);
+
+        // ... When ranges are read starting at every offset, so starting
+        // before, at, inside and after each part, and ending inside the same
+        // part or across a part boundary...
+        // ... Then each range is exactly those bytes of the message.
+        int size = SPLIT.length();
+        for (int offset = 0; offset <= size; offset++) {
+            for (long length : new long[]{0, 1, 17, PART_MIN_BYTES * 3, size, Long.MAX_VALUE}) {
+                String expected = SPLIT.substring(offset, offset + (int) Math.min(size - offset, length));
+                assertEquals(read(blobs.open(id, offset, length)), expected,
+                        "offset=" + offset + " length=" + length);
+            }
+        }
+    }
+
+    static FileBlobStore newStore(long compressThreshold) throws IOException {
+        return new FileBlobStore(Files.createTempDirectory("simiantoupee-blobs-").toFile(), compressThreshold, 1);
+    }
+
+    static String put(FileBlobStore blobs, String message) {
+        try (SpooledMessage spool = SpooledMessage.spool(HsqlTestStores.stream(message), 1024)) {
+            blobs.put(spool);
+            return spool.getId();
+        }
+    }
+
+    static Set<String> putSplit(FileBlobStore blobs, String message) {
+        try (SpooledMessage spool = SpooledMessage.spool(HsqlTestStores.stream(message), 1024)) {
+            return blobs.putSplit(spool, MimeStructure.parse(spool.getBuffer()), PART_MIN_BYTES, 1024);
+        }
+    }
+
+    static String idOf(String message) {
+        return SpooledMessage.idOf(ByteBuffer.wrap(message.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    static String read(InputStream in) throws IOException {
+        try (InputStream raw = in) {
+            return new String(ByteStreams.toByteArray(raw), "ISO-8859-1");
+        }
+    }
+}
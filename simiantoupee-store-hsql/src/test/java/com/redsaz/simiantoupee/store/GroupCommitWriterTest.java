@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store;
+
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import com.redsaz.simiantoupee.model.tables.records.MessageRecord;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.sql.DataSource;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class GroupCommitWriterTest extends Assert {
+
+    @Test
+    public void testMessagesWithManyTermsSpanGroups() throws Exception {
+        // Given group commit with fewer rows per group than a message has
+        // search terms...
+        HsqlMessagesService service = HsqlTestStores.open(
+                "simiantoupee.hsql.groupCommit", "true",
+                "simiantoupee.hsql.groupCommit.maxDelayMillis", "20",
+                "simiantoupee.hsql.groupCommit.maxRows", "50");
+        MessageAddress sender = service.createAddress("terms@example.com", null);
+
+        // ... When many such messages arrive at once...
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<String>> ids = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            StringBuilder body = new StringBuilder("Subject: terms ").append(i).append("\r\n\r\n");
+            for (int t = 0; t < 100; t++) {
+                body.append("word").append(i).append('x').append(t).append(' ');
+            }
+            String message = body.append("\r\n").toString();
+            ids.add(executor.submit(() -> HsqlTestStores.create(service, sender, message)));
+        }
+        for (Future<String> id : ids) {
+            id.get();
+        }
+        executor.shutdown();
+
+        // ... Then every one is written along with all of its terms.
+        for (int i = 0; i < 40; i++) {
+            assertEquals(service.search("word" + i + "x0 word" + i + "x99", 10).size(), 1, "message " + i);
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void testWriterSurvivesError() {
+        // Given a writer whose every group fails with an Error...
+        DataSource broken = (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{DataSource.class}, (proxy, method, args) -> {
+                    throw new OutOfMemoryError("Pretend to be out of memory.");
+                });
+        GroupCommitWriter writer = new GroupCommitWriter(broken, 0, 10);
+
+        // ... When messages are written one after the other...
+        // ... Then each of them fails, rather than waiting forever.
+        for (int i = 0; i < 3; i++) {
+            MessageRecord row = new MessageRecord();
+            row.setId("message" + i);
+            try {
+                writer.insert(row, Collections.emptyList(), Collections.emptySet(), Collections.emptySet());
+                fail("The write should fail.");
+            } catch (AppServerException ex) {
+                assertTrue(ex.getCause() instanceof OutOfMemoryError);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store;
+
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class HsqlMessagesServiceTest extends Assert {
+
+    @DataProvider
+    public static Object[][] malformedIds() {
+        return new Object[][]{{""}, {"abc"}, {"../x"}};
+    }
+
+    @Test(dataProvider = "malformedIds")
+    public void testMalformedIdIsNotFound(String id) throws IOException {
+        // Given a store with a message in it...
+        HsqlMessagesService service = HsqlTestStores.open();
+        MessageAddress sender = service.createAddress("malformed@example.com", null);
+        String stored = HsqlTestStores.create(service, sender, "Subject: kept\r\n\r\nkept\r\n");
+
+        // ... When a malformed id is asked for or deleted...
+        // ... Then there is no such message, and nothing else is touched.
+        assertNull(service.getMessageStream(id));
+        assertNull(service.getMessage(id));
+        assertNull(service.getBasicMessage(id));
+        assertNull(service.getMessageBody(id));
+        service.deleteMessage(id);
+        assertEquals(FileBlobStoreTest.read(service.getMessageStream(stored)), "Subject: kept\r\n\r\nkept\r\n");
+    }
+
+    @Test
+    public void testDeleteUnknownMessage() throws IOException {
+        // Given a store with a message in it...
+        HsqlMessagesService service = HsqlTestStores.open();
+        MessageAddress sender = service.createAddress("unknown@example.com", null);
+        String stored = HsqlTestStores.create(service, sender, "Subject: kept\r\n\r\nkept\r\n");
+
+        // ... When a message which is not stored is deleted, twice...
+        service.deleteMessage("0000000000000000000000000000000000000000000");
+        service.deleteMessage(stored);
+        service.deleteMessage(stored);
+
+        // ... Then nothing fails, and the message is gone.
+        assertNull(service.getMessageStream(stored));
+        assertNull(service.getBasicMessage(stored));
+    }
+
+    @Test
+    public void testDeleteMessageDeletesUnneededParts() throws IOException {
+        // Given two messages stored split, with an attachment in common...
+        Path dir = Files.createTempDirectory("simiantoupee-test-");
+        HsqlMessagesService service = HsqlTestStores.open(dir, "simiantoupee.hsql.parts.minBytes", "64");
+        MessageAddress sender = service.createAddress("parts@example.com", null);
+        String shared = HsqlTestStores.attachment("shared");
+        String firstMessage = HsqlTestStores.multipart(shared, HsqlTestStores.attachment("first"));
+        String secondMessage = HsqlTestStores.multipart(shared, HsqlTestStores.attachment("second"));
+        String first = HsqlTestStores.create(service, sender, firstMessage);
+        String second = HsqlTestStores.create(service, sender, secondMessage);
+        Set<String> firstParts = HsqlTestStores.partIds(firstMessage, 64);
+        Set<String> secondParts = HsqlTestStores.partIds(secondMessage, 64);
+        Set<String> allParts = new HashSet<>(firstParts);
+        allParts.addAll(secondParts);
+        assertEquals(allParts.size(), 3);
+        assertEquals(HsqlTestStores.partFiles(dir), allParts);
+
+        // ... When the first is deleted...
+        service.deleteMessage(first);
+
+        // ... Then only its own part is deleted, and the second is still
+        // read back byte for byte...
+        assertEquals(HsqlTestStores.partFiles(dir), secondParts);
+        assertEquals(FileBlobStoreTest.read(service.getMessageStream(second)), secondMessage);
+
+        // ... And When the second is deleted, Then no parts are left.
+        service.deleteMessage(second);
+        assertEquals(HsqlTestStores.partFiles(dir), new HashSet<>());
+    }
+}
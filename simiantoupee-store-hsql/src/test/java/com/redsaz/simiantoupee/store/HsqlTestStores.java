@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store;
+
+import com.redsaz.simiantoupee.api.ingest.MimeStructure;
+import com.redsaz.simiantoupee.api.ingest.SpooledMessage;
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Opens stores in temp directories for the tests, with the given settings.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+final class HsqlTestStores {
+
+    private HsqlTestStores() {
+    }
+
+    /**
+     * Opens a new, empty store.
+     *
+     * @param settings the system properties to open the store with, as
+     * name, value, name, value, and so on
+     * @return the store.
+     */
+    static HsqlMessagesService open(String... settings) {
+        try {
+            return open(Files.createTempDirectory("simiantoupee-test-"), settings);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Opens the store kept in the given directory. The settings are only set
+     * while the store is opened, so they do not leak into other tests.
+     *
+     * @param dir where the store is kept
+     * @param settings the system properties to open the store with, as
+     * name, value, name, value, and so on
+     * @return the store.
+     */
+    static HsqlMessagesService open(Path dir, String... settings) {
+        Map<String, String> previous = new HashMap<>();
+        for (int i = 0; i < settings.length; i += 2) {
+            previous.put(settings[i], System.setProperty(settings[i], settings[i + 1]));
+        }
+        try {
+            return new HsqlMessagesService(dir.toFile());
+        } finally {
+            for (Map.Entry<String, String> setting : previous.entrySet()) {
+                if (setting.getValue() == null) {
+                    System.clearProperty(setting.getKey());
+                } else {
+                    System.setProperty(setting.getKey(), setting.getValue());
+                }
+            }
+        }
+    }
+
+    static String create(HsqlMessagesService service, MessageAddress sender, String message) {
+        return service.create(sender, Collections.emptyList(), stream(message));
+    }
+
+    static InputStream stream(String message) {
+        return new ByteArrayInputStream(message.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * @param attachments the bodies of the attachments
+     * @return a multipart message with a short text body followed by the
+     * attachments.
+     */
+    static String multipart(String... attachments) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Subject: parts\r\n")
+                .append("MIME-Version: 1.0\r\n")
+                .append("Content-Type: multipart/mixed; boundary=\"b1\"\r\n")
+                .append("\r\n")
+                .append("--b1\r\n")
+                .append("Content-Type: text/plain\r\n")
+                .append("\r\n")
+                .append("See attached.\r\n");
+        for (String attachment : attachments) {
+            sb.append("--b1\r\n")
+                    .append("Content-Type: application/octet-stream\r\n")
+                    .append("\r\n")
+                    .append(attachment);
+        }
+        sb.append("--b1--\r\n");
+        return sb.toString();
+    }
+
+    /**
+     * @param line the line to repeat
+     * @return an attachment body of the line repeated, long enough to be
+     * stored as a part of its own and to be deflated.
+     */
+    static String attachment(String line) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            sb.append(line).append(' ').append(i).append("\r\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the ids of the bodies of the message of at least minBytes,
+     * which are the ids the bodies are stored under when split off.
+     */
+    static Set<String> partIds(String message, long minBytes) {
+        ByteBuffer raw = ByteBuffer.wrap(message.getBytes(StandardCharsets.ISO_8859_1));
+        Set<String> partIds = new HashSet<>();
+        for (MimeStructure leaf : MimeStructure.parse(raw).getLeaves()) {
+            if (leaf.getEnd() - leaf.getBodyStart() >= minBytes) {
+                ByteBuffer body = raw.duplicate();
+                body.position((int) leaf.getBodyStart());
+                body.limit((int) leaf.getEnd());
+                partIds.add(SpooledMessage.idOf(body));
+            }
+        }
+        return partIds;
+    }
+
+    /**
+     * @param dir where the store is kept
+     * @return the names of the part files of the store.
+     */
+    static Set<String> partFiles(Path dir) {
+        Path parts = dir.resolve("blobs").resolve("parts");
+        if (!Files.exists(parts)) {
+            return Collections.emptySet();
+        }
+        try (Stream<Path> files = Files.walk(parts)) {
+            return files.filter(Files::isRegularFile)
+                    .map(file -> file.getFileName().toString())
+                    .collect(Collectors.toSet());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
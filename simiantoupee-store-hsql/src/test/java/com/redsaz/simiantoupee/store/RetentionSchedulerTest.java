@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store;
+
+import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class RetentionSchedulerTest extends Assert {
+
+    @DataProvider
+    public static Object[][] groupCommit() {
+        return new Object[][]{{"false"}, {"true"}};
+    }
+
+    @Test(dataProvider = "groupCommit")
+    public void testCreateWithAddressesPurgedMeanwhile(String groupCommit) throws InterruptedException {
+        // Given a sender and recipient whose only message is the oldest...
+        HsqlMessagesService service = HsqlTestStores.open(
+                "simiantoupee.hsql.groupCommit", groupCommit,
+                "simiantoupee.hsql.retention.maxMessages", "1",
+                "simiantoupee.hsql.retention.intervalSeconds", "3600");
+        MessageAddress sender = service.createAddress("held@example.com", "Held");
+        MessageAddress recipient = service.createAddress("held-to@example.com", null);
+        MessageAddress other = service.createAddress("other@example.com", null);
+        service.create(sender, Collections.singletonList(recipient),
+                HsqlTestStores.stream("Subject: first\r\n\r\nfirst\r\n"));
+        Thread.sleep(5);
+        HsqlTestStores.create(service, other, "Subject: second\r\n\r\nsecond\r\n");
+
+        // ... When the message is purged while the addresses are still held
+        // for the next delivery...
+        assertEquals(service.purge(), 1);
+        assertNull(service.getAddress("held@example.com"), "The unused sender should be purged.");
+        String id = service.create(sender, Collections.singletonList(recipient),
+                HsqlTestStores.stream("Subject: third\r\n\r\nthird\r\n"));
+
+        // ... Then the delivery is still stored, with its addresses created
+        // again.
+        BasicMessage stored = service.getBasicMessage(id);
+        assertNotNull(stored);
+        assertEquals(stored.getSender().getAddress(), "held@example.com");
+        assertEquals(service.getPreviewMessagesTo("held-to@example.com").size(), 1);
+        assertNotNull(service.getMessageStream(id));
+    }
+
+    @Test
+    public void testPurgeKeepsAddressesStillUsed() throws InterruptedException {
+        // Given a sender with an old and a new message...
+        HsqlMessagesService service = HsqlTestStores.open(
+                "simiantoupee.hsql.retention.maxMessages", "1",
+                "simiantoupee.hsql.retention.intervalSeconds", "3600");
+        MessageAddress sender = service.createAddress("kept@example.com", null);
+        String oldest = HsqlTestStores.create(service, sender, "Subject: old\r\n\r\nold\r\n");
+        Thread.sleep(5);
+        String newest = HsqlTestStores.create(service, sender, "Subject: new\r\n\r\nnew\r\n");
+
+        // ... When the old message is purged...
+        assertEquals(service.purge(), 1);
+
+        // ... Then the sender is kept for the new message.
+        assertNull(service.getBasicMessage(oldest));
+        assertNull(service.getMessageStream(oldest));
+        assertNotNull(service.getBasicMessage(newest));
+        assertEquals(service.getAddress("kept@example.com").getId(), sender.getId());
+    }
+
+    @Test
+    public void testPurgeDeletesUnneededParts() throws IOException, InterruptedException {
+        // Given an old and a new message stored split, with an attachment in
+        // common...
+        Path dir = Files.createTempDirectory("simiantoupee-test-");
+        HsqlMessagesService service = HsqlTestStores.open(dir,
+                "simiantoupee.hsql.parts.minBytes", "64",
+                "simiantoupee.hsql.retention.maxMessages", "1",
+                "simiantoupee.hsql.retention.intervalSeconds", "3600");
+        MessageAddress sender = service.createAddress("parts@example.com", null);
+        String shared = HsqlTestStores.attachment("shared");
+        String oldMessage = HsqlTestStores.multipart(shared, HsqlTestStores.attachment("old"));
+        String newMessage = HsqlTestStores.multipart(shared, HsqlTestStores.attachment("new"));
+        String oldest = HsqlTestStores.create(service, sender, oldMessage);
+        Thread.sleep(5);
+        String newest = HsqlTestStores.create(service, sender, newMessage);
+        assertEquals(HsqlTestStores.partFiles(dir).size(), 3);
+
+        // ... When the old message is purged...
+        assertEquals(service.purge(), 1);
+
+        // ... Then only its own part is deleted, and the new message is still
+        // read back byte for byte.
+        assertNull(service.getMessageStream(oldest));
+        assertEquals(HsqlTestStores.partFiles(dir), HsqlTestStores.partIds(newMessage, 64));
+        assertEquals(FileBlobStoreTest.read(service.getMessageStream(newest)), newMessage);
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store.maildir;
+
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import com.redsaz.simiantoupee.api.ingest.MimeIndex;
+import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import com.redsaz.simiantoupee.store.memory.StoredMessage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The metadata index of a maildir store: a file which is only ever appended
+ * to, with one record per change (an address created, a message stored, more
+ * recipients for a message, or a message deleted). Replaying the records
+ * gives back the previews, search terms, and recipients of every message,
+ * without reading the messages themselves.
+ * <p>
+ * Each record is written with a single write, after its length and checksum,
+ * so a record cut short by a crash is recognized and dropped on the next
+ * replay. A damaged record with whole records after it is skipped, and the
+ * rest are still read. Records are written straight to the file rather than
+ * buffered, so what was acknowledged survives the process dying; with sync
+ * on, the log is also forced to disk (see {@link #force()}) before a record
+ * is acknowledged.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+class IndexLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexLog.class);
+    private static final byte ADDRESS = 'A';
+    private static final byte MESSAGE = 'M';
+    private static final byte RECIPIENTS = 'R';
+    private static final byte DELETE = 'D';
+    // A record longer than this is taken to be garbage rather than read.
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    private final Path path;
+    private final boolean sync;
+    private FileChannel channel;
+    private long records;
+    private boolean damaged;
+
+    /**
+     * Receives the records of the log, in the order they were written.
+     */
+    interface Visitor {
+
+        void address(MessageAddress address);
+
+        /**
+         * @param message the message, with no recipients yet
+         * @param senderId the address id of the sender, or null if unknown
+         * @param recipientIds the address ids of its recipients
+         */
+        void message(StoredMessage message, Long senderId, Set<Long> recipientIds);
+
+        void recipients(String id, Set<Long> recipientIds);
+
+        void delete(String id);
+    }
+
+    /**
+     * @param inPath the log file, which is created if it does not exist yet
+     * @param inSync whether to force each record to disk before returning
+     */
+    IndexLog(Path inPath, boolean inSync) {
+        path = inPath;
+        sync = inSync;
+    }
+
+    /**
+     * Reads every record, then opens the log for appending. A damaged record
+     * is skipped if there are whole records after it, and anything after the
+     * last whole record is cut off.
+     *
+     * @param visitor what to give the records to
+     * @param addresses the addresses read so far, by id, for the senders of
+     * the messages
+     */
+    void replay(Visitor visitor, Map<Long, MessageAddress> addresses) {
+        long good = 0;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            long size = channel.size();
+            long position = 0;
+            while (true) {
+                position += readRecords(position, visitor, addresses);
+                good = position;
+                if (position >= size) {
+                    break;
+                }
+                long next = findRecord(position + 1, size);
+                if (next < 0) {
+                    break;
+                }
+                LOG.warn("Skipping {} damaged bytes at offset {} of {}.", next - position, position, path);
+                damaged = true;
+                position = next;
+            }
+            if (size > good) {
+                LOG.warn("Dropping {} bytes at the end of {}, which were cut short.", size - good, path);
+                channel.truncate(good);
+            }
+            channel.position(good);
+        } catch (IOException ex) {
+            throw new AppServerException("Cannot read the index " + path + " because: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * @return true if damaged records were skipped by the replay, so the log
+     * should be rewritten.
+     */
+    synchronized boolean isDamaged() {
+        return damaged;
+    }
+
+    synchronized void appendAddress(MessageAddress address) {
+        append(ADDRESS, out -> writeAddress(out, address));
+    }
+
+    /**
+     * @param message the message
+     * @param senderId the address id of the sender, or null if unknown
+     */
+    synchronized void appendMessage(StoredMessage message, Long senderId) {
+        append(MESSAGE, out -> writeMessage(out, message, senderId));
+    }
+
+    synchronized void appendRecipients(String id, Collection<Long> recipientIds) {
+        append(RECIPIENTS, out -> {
+            out.writeUTF(id);
+            writeIds(out, recipientIds);
+        });
+    }
+
+    synchronized void appendDelete(String id) {
+        append(DELETE, out -> out.writeUTF(id));
+    }
+
+    /**
+     * Replaces the log with one which has only the given addresses and
+     * messages, so that the records of deleted messages stop taking up room
+     * and replay time. The new log is written beside the old one and moved
+     * over it, so a crash leaves one or the other.
+     *
+     * @param addresses every address
+     * @param messages every message, in the order stored
+     */
+    synchronized void rewrite(Collection<MessageAddress> addresses, Collection<StoredMessage> messages) {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (FileChannel rewritten = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (MessageAddress address : addresses) {
+                    write(rewritten, ADDRESS, out -> writeAddress(out, address));
+                }
+                for (StoredMessage message : messages) {
+                    MessageAddress sender = message.getPreview().getSender();
+                    write(rewritten, MESSAGE, out -> writeMessage(out, message, sender == null ? null : sender.getId()));
+                }
+                rewritten.force(true);
+            }
+            channel.close();
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            channel = FileChannel.open(path, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            records = addresses.size() + messages.size();
+            damaged = false;
+        } catch (IOException ex) {
+            throw new AppServerException("Cannot rewrite the index " + path + " because: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * @return how many records are in the log.
+     */
+    synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the size of the log.
+     */
+    synchronized long getBytes() {
+        try {
+            return channel.size();
+        } catch (IOException ex) {
+            LOG.debug("Cannot get the size of {}", path, ex);
+            return 0;
+        }
+    }
+
+    /**
+     * With sync on, forces what was appended so far to disk. This is not
+     * done while appending, so that the callers can do it after releasing
+     * their locks, and any number of records appended meanwhile are forced
+     * together.
+     */
+    void force() {
+        if (!sync) {
+            return;
+        }
+        FileChannel current;
+        synchronized (this) {
+            current = channel;
+        }
+        try {
+            current.force(false);
+        } catch (ClosedChannelException ex) {
+            // The log was rewritten meanwhile, and the new log was forced.
+            LOG.debug("Index {} was rewritten before it was forced.", path);
+        } catch (IOException ex) {
+            throw new AppServerException("Cannot sync the index " + path + " because: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void append(byte type, RecordWriter writer) {
+        try {
+            write(channel, type, writer);
+            records++;
+        } catch (IOException ex) {
+            throw new AppServerException("Cannot write to the index " + path + " because: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Writes the record in one go: its length and checksum, then the type
+     * and contents.
+     */
+    private static void write(FileChannel to, byte type, RecordWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(type);
+        writer.write(out);
+        out.flush();
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, record.limit() - 8);
+        record.putInt(0, record.limit() - 8);
+        record.putInt(4, (int) crc.getValue());
+        while (record.hasRemaining()) {
+            to.write(record);
+        }
+    }
+
+    /**
+     * Reads and visits the whole records from the position on, up to the
+     * first record which is damaged, cut short, or not there at all.
+     *
+     * @return how many bytes were read, as a whole number of records.
+     */
+    private long readRecords(long position, Visitor visitor, Map<Long, MessageAddress> addresses)
+            throws IOException {
+        long read = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel.position(position)), 64 * 1024));
+        byte[] record;
+        while ((record = readRecord(in)) != null) {
+            visit(record, visitor, addresses);
+            read += 8 + record.length;
+            records++;
+        }
+        return read;
+    }
+
+    /**
+     * @return the type and contents of the next record, or null if there are
+     * no more whole records.
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 1 || length > MAX_RECORD_LENGTH) {
+                return null;
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            return checksumOf(record) == checksum ? record : null;
+        } catch (EOFException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Looks for the next whole record after a damaged one, one byte at a
+     * time, going by whether the length, type, and checksum all fit.
+     *
+     * @return where the next whole record starts, or -1 if there is none.
+     */
+    private long findRecord(long from, long size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(9);
+        for (long position = from; position + 9 <= size; position++) {
+            header.clear();
+            readFully(header, position);
+            int length = header.getInt(0);
+            byte type = header.get(8);
+            if (length < 1 || length > size - position - 8 || !isType(type)) {
+                continue;
+            }
+            ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(record, position + 8);
+            if (checksumOf(record.array()) == header.getInt(4)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static boolean isType(byte type) {
+        return type == ADDRESS || type == MESSAGE || type == RECIPIENTS || type == DELETE;
+    }
+
+    private static int checksumOf(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    private static void visit(byte[] record, Visitor visitor, Map<Long, MessageAddress> addresses) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        switch (type) {
+            case ADDRESS:
+                visitor.address(new MessageAddress(in.readLong(), readString(in), readString(in)));
+                break;
+            case MESSAGE:
+                readMessage(in, visitor, addresses);
+                break;
+            case RECIPIENTS:
+                visitor.recipients(in.readUTF(), readIds(in));
+                break;
+            case DELETE:
+                visitor.delete(in.readUTF());
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    private static void writeAddress(DataOutputStream out, MessageAddress address) throws IOException {
+        out.writeLong(address.getId());
+        writeString(out, address.getAddress());
+        writeString(out, address.getName());
+    }
+
+    private static void writeMessage(DataOutputStream out, StoredMessage message, Long senderId) throws IOException {
+        BasicMessage preview = message.getPreview();
+        out.writeUTF(preview.getId());
+        writeLong(out, senderId);
+        writeString(out, preview.getSubject());
+        writeString(out, preview.getBody());
+        out.writeLong(preview.getSize());
+        out.writeLong(preview.getReceived().getTime());
+        writeLong(out, preview.getSent() == null ? null : preview.getSent().getTime());
+        writeString(out, preview.getMessageIdHeader());
+        writeString(out, message.getMimeIndex().encode());
+        out.writeInt(message.getTerms().size());
+        for (String term : message.getTerms()) {
+            writeString(out, term);
+        }
+        writeIds(out, message.getRecipientIds());
+    }
+
+    private static void readMessage(DataInputStream in, Visitor visitor, Map<Long, MessageAddress> addresses) throws IOException {
+        String id = in.readUTF();
+        Long senderId = readLong(in);
+        String subject = readString(in);
+        String body = readString(in);
+        long size = in.readLong();
+        Date received = new Date(in.readLong());
+        Long sent = readLong(in);
+        String messageIdHeader = readString(in);
+        MimeIndex mimeIndex = MimeIndex.decode(readString(in));
+        int termCount = in.readInt();
+        Set<String> terms = new LinkedHashSet<>();
+        for (int i = 0; i < termCount; i++) {
+            terms.add(readString(in));
+        }
+        Set<Long> recipientIds = readIds(in);
+        MessageAddress sender = senderId == null ? null : addresses.get(senderId);
+        BasicMessage preview = new BasicMessage(id, sender, subject, body, size, received,
+                sent == null ? null : new Date(sent), messageIdHeader);
+        visitor.message(new StoredMessage(0, null, null, preview, terms, mimeIndex), senderId, recipientIds);
+    }
+
+    private static void writeIds(DataOutputStream out, Collection<Long> ids) throws IOException {
+        out.writeInt(ids.size());
+        for (Long id : ids) {
+            out.writeLong(id);
+        }
+    }
+
+    private static Set<Long> readIds(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Set<Long> ids = new LinkedHashSet<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(in.readLong());
+        }
+        return ids;
+    }
+
+    private static void writeLong(DataOutputStream out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    private static Long readLong(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    /**
+     * Unlike writeUTF, there is no 64KB limit.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @FunctionalInterface
+    private interface RecordWriter {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,618 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store.maildir;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Striped;
+import com.redsaz.simiantoupee.api.MessagesService;
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import com.redsaz.simiantoupee.api.ingest.MessageParser;
+import com.redsaz.simiantoupee.api.ingest.MimeIndex;
+import com.redsaz.simiantoupee.api.ingest.ParsedMessage;
+import com.redsaz.simiantoupee.api.ingest.SearchTerms;
+import com.redsaz.simiantoupee.api.ingest.SpooledMessage;
+import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.Direction;
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import com.redsaz.simiantoupee.store.memory.MessageIndex;
+import com.redsaz.simiantoupee.store.memory.StoredMessage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores each message in a file of its own, in the manner of a maildir: the
+ * message is written to {@code tmp/} and then moved into {@code cur/}, named
+ * by its id, so that a message file is either whole or not there at all.
+ * There is no DB, and so no DB lock, for messages to wait on.
+ * <p>
+ * The previews, search terms, and recipients of the messages are kept in
+ * memory, as in the memory store, and every change to them is appended to a
+ * compact index file, which is replayed at startup. Message files which are
+ * not in the index, such as ones copied in by hand, are indexed at startup
+ * too, and index entries whose file is gone are dropped.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class MaildirMessagesService implements MessagesService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MaildirMessagesService.class);
+    private static final int ABSTRACT_LENGTH = 100;
+    private static final int SPOOL_MEMORY_THRESHOLD = 256 * 1024;
+    private static final String SUFFIX = ".eml";
+    // Enough that unrelated messages rarely wait on each other.
+    private static final int MESSAGE_STRIPES = 64;
+
+    private final Path tmpDir;
+    private final Path curDir;
+    private final boolean sync;
+    private final IndexLog log;
+    private final AtomicReference<MessageIndex> index = new AtomicReference<>(new MessageIndex());
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final ConcurrentMap<String, MessageAddress> addressesByEmail = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, MessageAddress> addressesById = new ConcurrentHashMap<>();
+    private final AtomicLong nextAddressId = new AtomicLong();
+    private final LongAdder duplicates = new LongAdder();
+    // Held while a message file is moved into place or deleted, so that the
+    // file and its index entry change together, while messages with other
+    // ids are stored at the same time.
+    private final Striped<Lock> messageLocks = Striped.lock(MESSAGE_STRIPES);
+
+    /**
+     * Opens the maildir given by the {@code simiantoupee.maildir.dir} system
+     * property, with files synced if {@code simiantoupee.maildir.sync} is
+     * true.
+     */
+    public MaildirMessagesService() {
+        this(Paths.get(System.getProperty("simiantoupee.maildir.dir", "./simiantoupee-maildir")),
+                Boolean.getBoolean("simiantoupee.maildir.sync"));
+    }
+
+    /**
+     * @param inDir the directory of the maildir, which is created if needed
+     * @param inSync whether to force each message file and index record to
+     * disk before the message is acknowledged
+     */
+    public MaildirMessagesService(Path inDir, boolean inSync) {
+        tmpDir = inDir.resolve("tmp");
+        curDir = inDir.resolve("cur");
+        sync = inSync;
+        LOG.info("Maildir dir={} sync={}", inDir.toAbsolutePath(), sync);
+        try {
+            Files.createDirectories(tmpDir);
+            Files.createDirectories(curDir);
+            clearTmp();
+        } catch (IOException ex) {
+            throw new AppServerException("Cannot use maildir " + inDir + " because: " + ex.getMessage(), ex);
+        }
+        log = new IndexLog(inDir.resolve("index"), sync);
+        replay();
+        reconcile();
+    }
+
+    @Override
+    public List<BasicMessage> getPreviewMessages() {
+        return MessageIndex.toPreviews(index.get().all().values(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<BasicMessage> getPreviewMessages(String after, int limit, Direction direction) {
+        MessageIndex current = index.get();
+        return current.page(current.all(), after, limit, direction);
+    }
+
+    @Override
+    public List<BasicMessage> getPreviewMessagesTo(String recipient) {
+        MessageAddress address = addressesByEmail.get(recipient);
+        if (address == null) {
+            return Collections.emptyList();
+        }
+        return MessageIndex.toPreviews(index.get().to(address.getId()).values(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<BasicMessage> getPreviewMessagesTo(String recipient, String after, int limit, Direction direction) {
+        MessageAddress address = addressesByEmail.get(recipient);
+        if (address == null) {
+            return Collections.emptyList();
+        }
+        MessageIndex current = index.get();
+        return current.page(current.to(address.getId()), after, limit, direction);
+    }
+
+    @Override
+    public List<BasicMessage> search(String query, int limit) {
+        Set<String> terms = SearchTerms.ofQuery(query);
+        if (terms.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return index.get().search(terms, limit);
+    }
+
+    @Override
+    public BasicMessage getBasicMessage(String id) {
+        StoredMessage message = index.get().get(id);
+        if (message == null) {
+            return null;
+        }
+        MimeMessage mimeMessage = getMessage(id);
+        if (mimeMessage == null) {
+            return null;
+        }
+        BasicMessage preview = message.getPreview();
+        return new BasicMessage(preview.getId(), preview.getSender(), preview.getSubject(),
+                MessageParser.getBasicBodyGist(mimeMessage), preview.getSize(), preview.getReceived(),
+                preview.getSent(), preview.getMessageIdHeader());
+    }
+
+    @Override
+    public MimeMessage getMessage(String id) {
+        if (index.get().get(id) == null) {
+            return null;
+        }
+        try {
+            byte[] raw = Files.readAllBytes(fileOf(id));
+            return new MimeMessage(MessageParser.getSession(), new SharedByteArrayInputStream(raw));
+        } catch (NoSuchFileException ex) {
+            LOG.debug("Message file of message_id={} is gone.", id);
+            return null;
+        } catch (IOException | MessagingException ex) {
+            throw new AppServerException("Could not read stored message.", ex);
+        }
+    }
+
+    @Override
+    public InputStream getMessageStream(String id) {
+        if (index.get().get(id) == null) {
+            return null;
+        }
+        return open(id, 0, Long.MAX_VALUE);
+    }
+
+    @Override
+    public InputStream getMessageHeaders(String id) {
+        StoredMessage message = index.get().get(id);
+        if (message == null) {
+            return null;
+        }
+        return open(id, 0, message.getMimeIndex().getHeaderEnd());
+    }
+
+    @Override
+    public InputStream getMessageBody(String id) {
+        StoredMessage message = index.get().get(id);
+        if (message == null) {
+            return null;
+        }
+        long bodyStart = message.getMimeIndex().getBodyStart();
+        return open(id, bodyStart, message.getPreview().getSize() - bodyStart);
+    }
+
+    @Override
+    public InputStream getMessagePart(String id, int number) {
+        StoredMessage message = index.get().get(id);
+        if (message == null || !message.getMimeIndex().hasPart(number)) {
+            return null;
+        }
+        MimeIndex mimeIndex = message.getMimeIndex();
+        long start = mimeIndex.getPartStart(number);
+        return open(id, start, mimeIndex.getPartEnd(number) - start);
+    }
+
+    @Override
+    public String create(MessageAddress sender, List<MessageAddress> recipients, InputStream messageStream) {
+        if (messageStream == null) {
+            return null;
+        }
+        try (SpooledMessage spool = SpooledMessage.spool(messageStream, SPOOL_MEMORY_THRESHOLD)) {
+            StoredMessage existing = index.get().get(spool.getId());
+            if (existing != null) {
+                duplicates.increment();
+                LOG.debug("Already have message_id={}", existing.getId());
+                addRecipients(existing.getId(), recipients);
+                return existing.getId();
+            }
+            ParsedMessage parsed = MessageParser.parse(sender, recipients, spool, new Date());
+            BasicMessage basicMessage = parsed.getBasicMessage();
+            BasicMessage preview = new BasicMessage(basicMessage.getId(), basicMessage.getSender(),
+                    basicMessage.getSubject(),
+                    MessageParser.truncateText(basicMessage.getBody(), ABSTRACT_LENGTH, false),
+                    basicMessage.getSize(), basicMessage.getReceived(), basicMessage.getSent(),
+                    basicMessage.getMessageIdHeader());
+            MimeIndex mimeIndex = MimeIndex.of(spool.getBuffer());
+            Path temp = writeTemp(spool);
+            return store(preview, parsed.getTerms(), mimeIndex, recipients, temp);
+        }
+    }
+
+    @Override
+    public void deleteMessage(String id) {
+        Lock lock = messageLocks.get(id);
+        lock.lock();
+        try {
+            if (index.get().get(id) == null) {
+                return;
+            }
+            // The file goes first: if the log were written and the file not
+            // deleted, the message would come back on the next start. The
+            // other way round, reconcile() drops the entry of a missing file.
+            if (!deleteFile(id)) {
+                throw new AppServerException("Cannot delete message_id=" + id);
+            }
+            synchronized (log) {
+                index.get().remove(id);
+                log.appendDelete(id);
+            }
+        } finally {
+            lock.unlock();
+        }
+        log.force();
+    }
+
+    @Override
+    public void deleteAllMessages() {
+        synchronized (log) {
+            MessageIndex current = index.get();
+            for (StoredMessage message : new ArrayList<>(current.all().values())) {
+                if (deleteFile(message.getId())) {
+                    current.remove(message.getId());
+                }
+            }
+            log.rewrite(addressesById.values(), current.all().values());
+        }
+    }
+
+    @Override
+    public MessageAddress createAddress(String address, String name) {
+        MessageAddress created = new MessageAddress(nextAddressId.incrementAndGet(), address, name);
+        if (addressesByEmail.putIfAbsent(address, created) != null) {
+            throw new AppServerException("Failed to create address record for " + address + ": it already exists.");
+        }
+        addressesById.put(created.getId(), created);
+        log.appendAddress(created);
+        log.force();
+        return created;
+    }
+
+    @Override
+    public MessageAddress getAddress(String address) {
+        return addressesByEmail.get(address);
+    }
+
+    @Override
+    public MessageAddress getAddress(long id) {
+        return addressesById.get(id);
+    }
+
+    @Override
+    public Map<String, MessageAddress> getAddresses(Collection<String> addresses) {
+        Map<String, MessageAddress> found = new HashMap<>();
+        for (String address : addresses) {
+            MessageAddress existing = addressesByEmail.get(address);
+            if (existing != null) {
+                found.put(address, existing);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new TreeMap<>();
+        stats.put("messages.known", (long) index.get().size());
+        stats.put("messages.duplicates", duplicates.sum());
+        stats.put("addresses.known", (long) addressesById.size());
+        stats.put("maildir.index.records", log.getRecords());
+        stats.put("maildir.index.bytes", log.getBytes());
+        return stats;
+    }
+
+    /**
+     * Moves the written message into place and indexes it, unless the same
+     * message got there first. The file is moved, and the directory synced,
+     * under the lock for the message's id only, so that messages with other
+     * ids are moved at the same time. Only indexing and logging the message
+     * is done under the index log's lock, so that the index and the records
+     * in the log always agree, and a message is always logged before more
+     * recipients are logged for it. The log is forced to disk after that
+     * lock is released.
+     *
+     * @return the id of the message.
+     */
+    private String store(BasicMessage preview, Set<String> terms, MimeIndex mimeIndex,
+            List<MessageAddress> recipients, Path temp) {
+        Lock lock = messageLocks.get(preview.getId());
+        lock.lock();
+        try {
+            StoredMessage existing = index.get().get(preview.getId());
+            if (existing != null) {
+                deleteQuietly(temp);
+                duplicates.increment();
+                LOG.debug("Already have message_id={}", existing.getId());
+                addRecipients(existing.getId(), recipients);
+                return existing.getId();
+            }
+            moveIntoPlace(temp, fileOf(preview.getId()));
+            StoredMessage message = new StoredMessage(nextSequence.incrementAndGet(), null, null, preview, terms,
+                    mimeIndex);
+            synchronized (log) {
+                MessageIndex current = index.get();
+                current.putIfAbsent(message);
+                for (MessageAddress recipient : recipients) {
+                    current.addRecipient(message, recipient.getId());
+                }
+                MessageAddress sender = preview.getSender();
+                log.appendMessage(message, sender == null ? null : sender.getId());
+            }
+        } finally {
+            lock.unlock();
+        }
+        log.force();
+        return preview.getId();
+    }
+
+    private void addRecipients(String id, List<MessageAddress> recipients) {
+        synchronized (log) {
+            MessageIndex current = index.get();
+            StoredMessage message = current.get(id);
+            if (message == null) {
+                return;
+            }
+            List<Long> added = new ArrayList<>(recipients.size());
+            for (MessageAddress recipient : recipients) {
+                if (!message.getRecipientIds().contains(recipient.getId())) {
+                    current.addRecipient(message, recipient.getId());
+                    added.add(recipient.getId());
+                }
+            }
+            if (!added.isEmpty()) {
+                log.appendRecipients(id, added);
+            }
+        }
+        log.force();
+    }
+
+    private Path writeTemp(SpooledMessage spool) {
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(tmpDir, spool.getId() + "-", SUFFIX);
+            spool.transferTo(temp);
+            if (sync) {
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            }
+            return temp;
+        } catch (IOException ex) {
+            deleteQuietly(temp);
+            throw new AppServerException("Cannot write message to " + tmpDir + " because: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void moveIntoPlace(Path temp, Path target) {
+        try {
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (sync) {
+                syncDir(curDir);
+            }
+        } catch (IOException ex) {
+            deleteQuietly(temp);
+            throw new AppServerException("Cannot move message to " + target + " because: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * @return the bytes of the message file from offset, up to length bytes,
+     * or null if the file is gone.
+     */
+    private InputStream open(String id, long offset, long length) {
+        try {
+            FileChannel channel = FileChannel.open(fileOf(id), StandardOpenOption.READ);
+            channel.position(offset);
+            return ByteStreams.limit(Channels.newInputStream(channel), length);
+        } catch (NoSuchFileException ex) {
+            LOG.debug("Message file of message_id={} is gone.", id);
+            return null;
+        } catch (IOException ex) {
+            throw new AppServerException("Could not read stored message.", ex);
+        }
+    }
+
+    private Path fileOf(String id) {
+        return curDir.resolve(id + SUFFIX);
+    }
+
+    private boolean deleteFile(String id) {
+        try {
+            Files.deleteIfExists(fileOf(id));
+            return true;
+        } catch (IOException ex) {
+            LOG.warn("Could not delete message file of message_id={}", id, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Reads the index log back into memory.
+     */
+    private void replay() {
+        MessageIndex current = index.get();
+        log.replay(new IndexLog.Visitor() {
+            @Override
+            public void address(MessageAddress address) {
+                addressesByEmail.put(address.getAddress(), address);
+                addressesById.put(address.getId(), address);
+                nextAddressId.accumulateAndGet(address.getId(), Math::max);
+            }
+
+            @Override
+            public void message(StoredMessage message, Long senderId, Set<Long> recipientIds) {
+                StoredMessage sequenced = new StoredMessage(nextSequence.incrementAndGet(), null, null,
+                        message.getPreview(), message.getTerms(), message.getMimeIndex());
+                current.remove(sequenced.getId());
+                current.putIfAbsent(sequenced);
+                recipients(sequenced.getId(), recipientIds);
+            }
+
+            @Override
+            public void recipients(String id, Set<Long> recipientIds) {
+                StoredMessage message = current.get(id);
+                if (message != null) {
+                    for (Long recipientId : recipientIds) {
+                        current.addRecipient(message, recipientId);
+                    }
+                }
+            }
+
+            @Override
+            public void delete(String id) {
+                current.remove(id);
+            }
+        }, addressesById);
+    }
+
+    /**
+     * Makes the index agree with the message files: files that are not
+     * indexed are parsed and indexed, and entries without a file are
+     * dropped. Then, if most of the log is about messages no longer here, or
+     * damaged records had to be skipped, the log is rewritten.
+     */
+    private void reconcile() {
+        MessageIndex current = index.get();
+        Set<String> found = new HashSet<>();
+        int added = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(curDir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String id = name.substring(0, name.length() - SUFFIX.length());
+                found.add(id);
+                if (current.get(id) == null && indexFile(file, id)) {
+                    added++;
+                }
+            }
+        } catch (IOException ex) {
+            throw new AppServerException("Cannot list " + curDir + " because: " + ex.getMessage(), ex);
+        }
+        int dropped = 0;
+        for (StoredMessage message : new ArrayList<>(current.all().values())) {
+            if (!found.contains(message.getId())) {
+                current.remove(message.getId());
+                log.appendDelete(message.getId());
+                dropped++;
+            }
+        }
+        long live = addressesById.size() + (long) current.size();
+        if (log.getRecords() - live > live || log.isDamaged()) {
+            log.rewrite(addressesById.values(), current.all().values());
+        }
+        log.force();
+        LOG.info("Maildir has {} messages. Indexed {} unindexed files, dropped {} missing files.",
+                current.size(), added, dropped);
+    }
+
+    /**
+     * Indexes a message file which was not in the index. There is no envelope
+     * for it, so it has no sender or recipients, and is taken to have been
+     * received when the file was last modified.
+     *
+     * @return true if the file was indexed.
+     */
+    private boolean indexFile(Path file, String id) {
+        try (SpooledMessage spool = SpooledMessage.spool(Files.newInputStream(file), SPOOL_MEMORY_THRESHOLD)) {
+            if (!spool.getId().equals(id)) {
+                LOG.warn("Skipping {}, whose contents have the id {}", file, spool.getId());
+                return false;
+            }
+            Date received = new Date(Files.getLastModifiedTime(file).toMillis());
+            ParsedMessage parsed = MessageParser.parse(null, Collections.emptyList(), spool, received);
+            BasicMessage basicMessage = parsed.getBasicMessage();
+            BasicMessage preview = new BasicMessage(basicMessage.getId(), null, basicMessage.getSubject(),
+                    MessageParser.truncateText(basicMessage.getBody(), ABSTRACT_LENGTH, false),
+                    basicMessage.getSize(), received, basicMessage.getSent(), basicMessage.getMessageIdHeader());
+            StoredMessage message = new StoredMessage(nextSequence.incrementAndGet(), null, null, preview,
+                    parsed.getTerms(), MimeIndex.of(spool.getBuffer()));
+            index.get().putIfAbsent(message);
+            log.appendMessage(message, null);
+            return true;
+        } catch (IOException | AppServerException ex) {
+            LOG.warn("Skipping {}, which could not be read: {}", file, ex.getMessage());
+            return false;
+        }
+    }
+
+    private void clearTmp() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(tmpDir)) {
+            for (Path file : files) {
+                LOG.debug("Deleting unfinished message {}", file);
+                deleteQuietly(file);
+            }
+        }
+    }
+
+    private static void syncDir(Path dir) {
+        // Not every platform can open a directory to sync it.
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            LOG.debug("Could not sync directory {}", dir, ex);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            LOG.warn("Could not delete {}", file, ex);
+        }
+    }
+}
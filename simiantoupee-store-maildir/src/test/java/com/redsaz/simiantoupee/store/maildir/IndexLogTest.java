@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store.maildir;
+
+import com.redsaz.simiantoupee.api.ingest.MimeIndex;
+import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import com.redsaz.simiantoupee.store.memory.StoredMessage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class IndexLogTest extends Assert {
+
+    @Test
+    public void testReplay() throws IOException {
+        // Given a log with each kind of record...
+        Path path = newLog();
+        IndexLog log = open(path, new Replayed());
+        MessageAddress sender = new MessageAddress(1, "sender@example.com", "Sender");
+        log.appendAddress(sender);
+        log.appendMessage(message("m1", sender), sender.getId());
+        log.appendRecipients("m1", Arrays.asList(2L, 3L));
+        log.appendMessage(message("m2", null), null);
+        log.appendDelete("m2");
+
+        // ... When it is replayed...
+        Replayed replayed = new Replayed();
+        IndexLog reopened = open(path, replayed);
+
+        // ... Then every record is read back, in order.
+        assertEquals(replayed.events, Arrays.asList("address sender@example.com", "message m1 from 1 to []",
+                "recipients m1 [2, 3]", "message m2 from null to []", "delete m2"));
+        assertEquals(replayed.senders.get("m1").getAddress(), "sender@example.com");
+        assertEquals(reopened.getRecords(), 5);
+        assertFalse(reopened.isDamaged());
+    }
+
+    @Test
+    public void testReplayDropsTornTail() throws IOException {
+        // Given a log whose last record was cut short by a crash...
+        Path path = newLog();
+        IndexLog log = open(path, new Replayed());
+        log.appendAddress(new MessageAddress(1, "a@example.com", null));
+        log.appendAddress(new MessageAddress(2, "b@example.com", null));
+        long whole = Files.size(path);
+        log.appendAddress(new MessageAddress(3, "c@example.com", null));
+        truncate(path, Files.size(path) - 3);
+
+        // ... When it is replayed...
+        Replayed replayed = new Replayed();
+        IndexLog reopened = open(path, replayed);
+
+        // ... Then the whole records are read, the torn one is cut off, and
+        // records appended afterwards are read back after them.
+        assertEquals(replayed.events, Arrays.asList("address a@example.com", "address b@example.com"));
+        assertEquals(Files.size(path), whole);
+        assertFalse(reopened.isDamaged());
+        reopened.appendAddress(new MessageAddress(4, "d@example.com", null));
+        Replayed again = new Replayed();
+        open(path, again);
+        assertEquals(again.events, Arrays.asList("address a@example.com", "address b@example.com",
+                "address d@example.com"));
+    }
+
+    @Test
+    public void testReplaySkipsDamagedRecord() throws IOException {
+        // Given a log with a record in the middle whose checksum no longer
+        // matches...
+        Path path = newLog();
+        IndexLog log = open(path, new Replayed());
+        log.appendAddress(new MessageAddress(1, "a@example.com", null));
+        long damagedAt = Files.size(path);
+        log.appendAddress(new MessageAddress(2, "b@example.com", null));
+        log.appendAddress(new MessageAddress(3, "c@example.com", null));
+        log.appendRecipients("m1", Collections.singletonList(3L));
+        long size = Files.size(path);
+        flipByte(path, damagedAt + 20);
+
+        // ... When it is replayed...
+        Replayed replayed = new Replayed();
+        IndexLog reopened = open(path, replayed);
+
+        // ... Then only the damaged record is skipped, and nothing is cut
+        // off.
+        assertEquals(replayed.events, Arrays.asList("address a@example.com", "address c@example.com",
+                "recipients m1 [3]"));
+        assertTrue(reopened.isDamaged());
+        assertEquals(Files.size(path), size);
+    }
+
+    @Test
+    public void testReplaySkipsDamagedLength() throws IOException {
+        // Given a log with a record in the middle whose length is garbage...
+        Path path = newLog();
+        IndexLog log = open(path, new Replayed());
+        log.appendAddress(new MessageAddress(1, "a@example.com", null));
+        long damagedAt = Files.size(path);
+        log.appendAddress(new MessageAddress(2, "b@example.com", null));
+        log.appendAddress(new MessageAddress(3, "c@example.com", null));
+        flipByte(path, damagedAt);
+
+        // ... When it is replayed...
+        Replayed replayed = new Replayed();
+        open(path, replayed);
+
+        // ... Then the records after it are still found.
+        assertEquals(replayed.events, Arrays.asList("address a@example.com", "address c@example.com"));
+    }
+
+    @Test
+    public void testRewrite() throws IOException {
+        // Given a log with records of a deleted message...
+        Path path = newLog();
+        IndexLog log = open(path, new Replayed());
+        MessageAddress sender = new MessageAddress(1, "sender@example.com", null);
+        log.appendAddress(sender);
+        StoredMessage kept = message("kept", sender);
+        log.appendMessage(kept, sender.getId());
+        log.appendMessage(message("gone", sender), sender.getId());
+        log.appendDelete("gone");
+        long before = Files.size(path);
+
+        // ... When it is rewritten with only what is left...
+        log.rewrite(Collections.singletonList(sender), Collections.singletonList(kept));
+        log.appendDelete("kept");
+
+        // ... Then it is smaller, and replays to what is left, followed by
+        // what was appended since.
+        assertTrue(Files.size(path) < before);
+        assertEquals(log.getRecords(), 3);
+        Replayed replayed = new Replayed();
+        open(path, replayed);
+        assertEquals(replayed.events, Arrays.asList("address sender@example.com", "message kept from 1 to []",
+                "delete kept"));
+        assertFalse(Files.exists(path.resolveSibling(path.getFileName() + ".tmp")));
+    }
+
+    private static Path newLog() throws IOException {
+        return Files.createTempDirectory("simiantoupee-index-").resolve("index");
+    }
+
+    private static IndexLog open(Path path, Replayed replayed) {
+        IndexLog log = new IndexLog(path, true);
+        log.replay(replayed, replayed.addresses);
+        return log;
+    }
+
+    private static StoredMessage message(String id, MessageAddress sender) {
+        BasicMessage preview = new BasicMessage(id, sender, "Subject " + id, "body", 10, new Date(1000),
+                null, null);
+        Set<String> terms = new LinkedHashSet<>(Arrays.asList("subject", id));
+        return new StoredMessage(0, null, null, preview, terms, new MimeIndex(5, 6, new long[0], new long[0]));
+    }
+
+    private static void truncate(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    private static void flipByte(Path path, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, position);
+            b.put(0, (byte) ~b.get(0));
+            b.rewind();
+            channel.write(b, position);
+        }
+    }
+
+    /**
+     * Writes down what was replayed, in order.
+     */
+    private static class Replayed implements IndexLog.Visitor {
+
+        private final List<String> events = new ArrayList<>();
+        private final Map<Long, MessageAddress> addresses = new HashMap<>();
+        private final Map<String, MessageAddress> senders = new HashMap<>();
+
+        @Override
+        public void address(MessageAddress address) {
+            addresses.put(address.getId(), address);
+            events.add("address " + address.getAddress());
+        }
+
+        @Override
+        public void message(StoredMessage message, Long senderId, Set<Long> recipientIds) {
+            senders.put(message.getId(), message.getPreview().getSender());
+            events.add("message " + message.getId() + " from " + senderId + " to " + recipientIds);
+        }
+
+        @Override
+        public void recipients(String id, Set<Long> recipientIds) {
+            events.add("recipients " + id + " " + recipientIds);
+        }
+
+        @Override
+        public void delete(String id) {
+            events.add("delete " + id);
+        }
+    }
+}
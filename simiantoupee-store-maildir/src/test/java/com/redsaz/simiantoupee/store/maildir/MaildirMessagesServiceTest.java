@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store.maildir;
+
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class MaildirMessagesServiceTest extends Assert {
+
+    @Test
+    public void testReconcile() throws IOException {
+        // Given a maildir with two messages...
+        Path dir = Files.createTempDirectory("simiantoupee-maildir-");
+        MaildirMessagesService service = new MaildirMessagesService(dir, false);
+        MessageAddress sender = service.createAddress("sender@example.com", null);
+        String kept = create(service, sender, "Subject: kept\r\n\r\nkept\r\n");
+        String removed = create(service, sender, "Subject: removed\r\n\r\nremoved\r\n");
+
+        // ... When, while it is stopped, one message file is removed, another
+        // is copied in, and a file is copied in under the wrong name...
+        Files.delete(dir.resolve("cur").resolve(removed + ".eml"));
+        Path otherDir = Files.createTempDirectory("simiantoupee-maildir-");
+        MaildirMessagesService other = new MaildirMessagesService(otherDir, false);
+        String copied = create(other, other.createAddress("other@example.com", null),
+                "Subject: copied\r\n\r\ncopied needle\r\n");
+        Path copiedFile = otherDir.resolve("cur").resolve(copied + ".eml");
+        Files.copy(copiedFile, dir.resolve("cur").resolve(copied + ".eml"));
+        Files.copy(copiedFile, dir.resolve("cur").resolve("0000000000000000000000000000000000000000000.eml"));
+        MaildirMessagesService reopened = new MaildirMessagesService(dir, false);
+
+        // ... Then the index agrees with the files again.
+        assertNotNull(reopened.getBasicMessage(kept));
+        assertNull(reopened.getBasicMessage(removed));
+        assertNotNull(reopened.getBasicMessage(copied));
+        assertNull(reopened.getBasicMessage(copied).getSender());
+        assertEquals(reopened.search("needle", 10).size(), 1);
+        assertEquals(reopened.getPreviewMessages().size(), 2);
+        assertEquals(reopened.getAddress("sender@example.com").getId(), sender.getId());
+
+        // ... And stays that way after another restart.
+        MaildirMessagesService again = new MaildirMessagesService(dir, false);
+        assertEquals(again.getPreviewMessages().size(), 2);
+        assertNull(again.getBasicMessage(removed));
+    }
+
+    @Test
+    public void testDamagedIndexIsRewritten() throws IOException {
+        // Given a maildir whose index has a damaged record in the middle...
+        Path dir = Files.createTempDirectory("simiantoupee-maildir-");
+        MaildirMessagesService service = new MaildirMessagesService(dir, false);
+        MessageAddress first = service.createAddress("first@example.com", null);
+        long damagedAt = Files.size(dir.resolve("index"));
+        service.createAddress("second@example.com", null);
+        MessageAddress recipient = service.createAddress("to@example.com", null);
+        String id = service.create(first, Collections.singletonList(recipient),
+                new ByteArrayInputStream("Subject: hi\r\n\r\nhi\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+        byte[] index = Files.readAllBytes(dir.resolve("index"));
+        index[(int) damagedAt + 12] ^= 0x55;
+        Files.write(dir.resolve("index"), index);
+
+        // ... When it is reopened twice...
+        new MaildirMessagesService(dir, false);
+        MaildirMessagesService reopened = new MaildirMessagesService(dir, false);
+
+        // ... Then only what the damaged record held is lost.
+        assertNull(reopened.getAddress("second@example.com"));
+        assertEquals(reopened.getAddress("first@example.com").getId(), first.getId());
+        assertEquals(reopened.getPreviewMessagesTo("to@example.com").size(), 1);
+        assertEquals(reopened.getBasicMessage(id).getSender().getAddress(), "first@example.com");
+        assertNotEquals(reopened.createAddress("new@example.com", null).getId(), recipient.getId());
+    }
+
+    @Test
+    public void testConcurrentCreateAndDelete() throws Exception {
+        // Given a maildir with sync on...
+        Path dir = Files.createTempDirectory("simiantoupee-maildir-");
+        MaildirMessagesService service = new MaildirMessagesService(dir, true);
+        MessageAddress sender = service.createAddress("sender@example.com", null);
+
+        // ... When the same few messages are stored and deleted from many
+        // threads at once...
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> done = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            String message = "Subject: m" + (i % 10) + "\r\n\r\nbody\r\n";
+            if (i % 3 == 0) {
+                done.add(executor.submit(() -> service.deleteMessage(create(service, sender, message))));
+            } else {
+                done.add(executor.submit(() -> create(service, sender, message)));
+            }
+        }
+        for (Future<?> future : done) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // ... Then every indexed message has its file, and a restart finds
+        // the same messages.
+        int indexed = service.getPreviewMessages().size();
+        try (Stream<Path> files = Files.list(dir.resolve("cur"))) {
+            assertEquals(files.count(), indexed);
+        }
+        MaildirMessagesService reopened = new MaildirMessagesService(dir, true);
+        assertEquals(reopened.getPreviewMessages().size(), indexed);
+    }
+
+    private static String create(MaildirMessagesService service, MessageAddress sender, String message) {
+        return service.create(sender, Collections.emptyList(),
+                new ByteArrayInputStream(message.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store.memory;
+
+import com.redsaz.simiantoupee.api.MessagesService;
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import com.redsaz.simiantoupee.api.ingest.MessageParser;
+import com.redsaz.simiantoupee.api.ingest.MimeIndex;
+import com.redsaz.simiantoupee.api.ingest.ParsedMessage;
+import com.redsaz.simiantoupee.api.ingest.SearchTerms;
+import com.redsaz.simiantoupee.api.ingest.SpooledMessage;
+import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.Direction;
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores and accesses messages in memory only, without locking. Meant for
+ * tests and CI, where nothing needs to survive a restart.
+ * <p>
+ * The raw messages can instead be kept in a fixed-size ring buffer outside of
+ * the heap, for load tests where only the most recent mail matters. Then the
+ * oldest messages are dropped as new ones overwrite them, and the heap only
+ * holds the previews and search terms of the messages still in the buffer.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class MemoryMessagesService implements MessagesService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemoryMessagesService.class);
+    private static final int ABSTRACT_LENGTH = 100;
+
+    private final AtomicReference<MessageIndex> index = new AtomicReference<>(new MessageIndex());
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final ConcurrentMap<String, MessageAddress> addressesByEmail = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, MessageAddress> addressesById = new ConcurrentHashMap<>();
+    private final AtomicLong nextAddressId = new AtomicLong();
+    private final LongAdder duplicates = new LongAdder();
+    private final RingBuffer ring;
+
+    public MemoryMessagesService() {
+        this(null);
+    }
+
+    /**
+     * @param inRing where to keep the raw messages, or null to keep them on
+     * the heap
+     */
+    MemoryMessagesService(RingBuffer inRing) {
+        ring = inRing;
+    }
+
+    @Override
+    public List<BasicMessage> getPreviewMessages() {
+        return MessageIndex.toPreviews(index.get().all().values(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<BasicMessage> getPreviewMessages(String after, int limit, Direction direction) {
+        MessageIndex current = index.get();
+        return current.page(current.all(), after, limit, direction);
+    }
+
+    @Override
+    public List<BasicMessage> getPreviewMessagesTo(String recipient) {
+        MessageAddress address = addressesByEmail.get(recipient);
+        if (address == null) {
+            return Collections.emptyList();
+        }
+        return MessageIndex.toPreviews(index.get().to(address.getId()).values(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<BasicMessage> getPreviewMessagesTo(String recipient, String after, int limit, Direction direction) {
+        MessageAddress address = addressesByEmail.get(recipient);
+        if (address == null) {
+            return Collections.emptyList();
+        }
+        MessageIndex current = index.get();
+        return current.page(current.to(address.getId()), after, limit, direction);
+    }
+
+    @Override
+    public List<BasicMessage> search(String query, int limit) {
+        Set<String> terms = SearchTerms.ofQuery(query);
+        if (terms.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return index.get().search(terms, limit);
+    }
+
+    @Override
+    public BasicMessage getBasicMessage(String id) {
+        StoredMessage message = index.get().get(id);
+        if (message == null) {
+            return null;
+        } else if (ring == null) {
+            return message.getBasicMessage();
+        }
+        MimeMessage mimeMessage = getMessage(id);
+        if (mimeMessage == null) {
+            return null;
+        }
+        BasicMessage preview = message.getPreview();
+        return new BasicMessage(preview.getId(), preview.getSender(), preview.getSubject(),
+                MessageParser.getBasicBodyGist(mimeMessage), preview.getSize(), preview.getReceived(),
+                preview.getSent(), preview.getMessageIdHeader());
+    }
+
+    @Override
+    public MimeMessage getMessage(String id) {
+        byte[] raw = getRaw(id);
+        if (raw == null) {
+            return null;
+        }
+        try {
+            // Parsing from a shared stream refers to the stored bytes rather
+            // than copying them.
+            return new MimeMessage(MessageParser.getSession(), new SharedByteArrayInputStream(raw));
+        } catch (MessagingException ex) {
+            throw new AppServerException("Could not parse stored message.", ex);
+        }
+    }
+
+    @Override
+    public InputStream getMessageStream(String id) {
+        byte[] raw = getRaw(id);
+        if (raw == null) {
+            return null;
+        }
+        return new ByteArrayInputStream(raw);
+    }
+
+    @Override
+    public InputStream getMessageHeaders(String id) {
+        StoredMessage message = index.get().get(id);
+        if (message == null) {
+            return null;
+        }
+        return slice(id, 0, message.getMimeIndex().getHeaderEnd());
+    }
+
+    @Override
+    public InputStream getMessageBody(String id) {
+        StoredMessage message = index.get().get(id);
+        if (message == null) {
+            return null;
+        }
+        return slice(id, message.getMimeIndex().getBodyStart(), message.getPreview().getSize());
+    }
+
+    @Override
+    public InputStream getMessagePart(String id, int number) {
+        StoredMessage message = index.get().get(id);
+        if (message == null || !message.getMimeIndex().hasPart(number)) {
+            return null;
+        }
+        MimeIndex mimeIndex = message.getMimeIndex();
+        return slice(id, mimeIndex.getPartStart(number), mimeIndex.getPartEnd(number));
+    }
+
+    @Override
+    public String create(MessageAddress sender, List<MessageAddress> recipients, InputStream messageStream) {
+        if (messageStream == null) {
+            return null;
+        }
+        MessageIndex current = index.get();
+        try (SpooledMessage spool = SpooledMessage.spool(messageStream, Integer.MAX_VALUE)) {
+            StoredMessage existing = current.get(spool.getId());
+            // A message in the ring buffer may have been overwritten since,
+            // and then it is written again.
+            if (existing != null && addRecipientsIfStored(current, existing, recipients)) {
+                return acknowledgeDuplicate(existing);
+            }
+            if (ring != null) {
+                ring.checkFits(spool.getSize());
+            }
+            ParsedMessage parsed = MessageParser.parse(sender, recipients, spool, new Date());
+            BasicMessage basicMessage = parsed.getBasicMessage();
+            BasicMessage preview = new BasicMessage(basicMessage.getId(), basicMessage.getSender(),
+                    basicMessage.getSubject(),
+                    MessageParser.truncateText(basicMessage.getBody(), ABSTRACT_LENGTH, false),
+                    basicMessage.getSize(), basicMessage.getReceived(), basicMessage.getSent(),
+                    basicMessage.getMessageIdHeader());
+            MimeIndex mimeIndex = MimeIndex.of(spool.getBuffer());
+            StoredMessage message;
+            StoredMessage indexed;
+            if (ring == null) {
+                message = new StoredMessage(nextSequence.incrementAndGet(), spool.getBytes(),
+                        basicMessage, preview, parsed.getTerms(), mimeIndex);
+                indexed = index(current, message, recipients);
+            } else {
+                message = new StoredMessage(nextSequence.incrementAndGet(), null,
+                        null, preview, parsed.getTerms(), mimeIndex);
+                // The message is written before it is indexed, and indexed
+                // only while it is still in the ring buffer, so that the index
+                // never lists a message which is not in the buffer.
+                ring.write(message.getId(), spool.getBytes(), overwritten -> index.get().remove(overwritten));
+                indexed = ring.whileLive(message.getId(), () -> index(current, message, recipients));
+            }
+            // Not indexed at all if newer messages have already overwritten
+            // it, as they would have soon after anyway.
+            if (indexed == null || indexed == message) {
+                return message.getId();
+            }
+            return acknowledgeDuplicate(indexed);
+        }
+    }
+
+    @Override
+    public void deleteMessage(String id) {
+        index.get().remove(id);
+        if (ring != null) {
+            ring.remove(id);
+        }
+    }
+
+    @Override
+    public void deleteAllMessages() {
+        index.set(new MessageIndex());
+        if (ring != null) {
+            ring.clear();
+        }
+    }
+
+    @Override
+    public MessageAddress createAddress(String address, String name) {
+        MessageAddress created = new MessageAddress(nextAddressId.incrementAndGet(), address, name);
+        if (addressesByEmail.putIfAbsent(address, created) != null) {
+            throw new AppServerException("Failed to create address record for " + address + ": it already exists.");
+        }
+        addressesById.put(created.getId(), created);
+        return created;
+    }
+
+    @Override
+    public MessageAddress getAddress(String address) {
+        return addressesByEmail.get(address);
+    }
+
+    @Override
+    public MessageAddress getAddress(long id) {
+        return addressesById.get(id);
+    }
+
+    @Override
+    public Map<String, MessageAddress> getAddresses(Collection<String> addresses) {
+        Map<String, MessageAddress> found = new HashMap<>();
+        for (String address : addresses) {
+            MessageAddress existing = addressesByEmail.get(address);
+            if (existing != null) {
+                found.put(address, existing);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new TreeMap<>();
+        stats.put("messages.known", (long) index.get().size());
+        stats.put("messages.duplicates", duplicates.sum());
+        stats.put("addresses.known", (long) addressesById.size());
+        if (ring != null) {
+            ring.addStats(stats);
+        }
+        return stats;
+    }
+
+    private byte[] getRaw(String id) {
+        StoredMessage message = index.get().get(id);
+        if (message == null) {
+            return null;
+        } else if (ring == null) {
+            return message.getRaw();
+        }
+        return ring.read(id);
+    }
+
+    /**
+     * @return the bytes of the raw message from start to end, or null if it
+     * has just been overwritten in the ring buffer.
+     */
+    private InputStream slice(String id, long start, long end) {
+        byte[] raw = getRaw(id);
+        if (raw == null) {
+            return null;
+        }
+        return new ByteArrayInputStream(raw, (int) start, (int) (end - start));
+    }
+
+    /**
+     * Indexes the message, unless the same message already is, and adds the
+     * recipients to whichever of the two is indexed.
+     *
+     * @return the indexed message.
+     */
+    private static StoredMessage index(MessageIndex current, StoredMessage message, List<MessageAddress> recipients) {
+        StoredMessage existing = current.putIfAbsent(message);
+        StoredMessage indexed = existing == null ? message : existing;
+        addRecipients(current, indexed, recipients);
+        return indexed;
+    }
+
+    /**
+     * Adds the recipients to the indexed message, if its raw message is still
+     * stored.
+     *
+     * @return false if the message has been overwritten in the ring buffer.
+     */
+    private boolean addRecipientsIfStored(MessageIndex current, StoredMessage message, List<MessageAddress> recipients) {
+        if (ring == null) {
+            addRecipients(current, message, recipients);
+            return true;
+        }
+        return ring.whileLive(message.getId(), () -> {
+            addRecipients(current, message, recipients);
+            return message;
+        }) != null;
+    }
+
+    private String acknowledgeDuplicate(StoredMessage existing) {
+        duplicates.increment();
+        LOG.debug("Already have message_id={}", existing.getId());
+        return existing.getId();
+    }
+
+    private static void addRecipients(MessageIndex current, StoredMessage message, List<MessageAddress> recipients) {
+        for (MessageAddress recipient : recipients) {
+            current.addRecipient(message, recipient.getId());
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store.memory;
+
+import com.redsaz.simiantoupee.api.exceptions.AppClientException;
+import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.Direction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * All of the messages, by id, in the order they were stored, by recipient,
+ * and by search term. None of the indexes lock, so readers never wait for
+ * writers. An index is never emptied; clearing the store replaces the whole
+ * index instead.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class MessageIndex {
+
+    private final ConcurrentMap<String, StoredMessage> byId = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Long, StoredMessage> bySequence = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<Long, ConcurrentNavigableMap<Long, StoredMessage>> byRecipient = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<StoredMessage>> byTerm = new ConcurrentHashMap<>();
+
+    public StoredMessage get(String id) {
+        return byId.get(id);
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * Adds the message, unless one with the same id is already there.
+     *
+     * @param message the message to add
+     * @return the message that was already there, or null if it was added.
+     */
+    public StoredMessage putIfAbsent(StoredMessage message) {
+        StoredMessage existing = byId.putIfAbsent(message.getId(), message);
+        if (existing != null) {
+            return existing;
+        }
+        bySequence.put(message.getSequence(), message);
+        for (String term : message.getTerms()) {
+            byTerm.compute(term, (t, messages) -> {
+                Set<StoredMessage> withTerm = messages == null ? ConcurrentHashMap.newKeySet() : messages;
+                withTerm.add(message);
+                return withTerm;
+            });
+        }
+        return null;
+    }
+
+    public void addRecipient(StoredMessage message, long recipientId) {
+        if (message.getRecipientIds().add(recipientId)) {
+            byRecipient.computeIfAbsent(recipientId, r -> new ConcurrentSkipListMap<>())
+                    .put(message.getSequence(), message);
+        }
+    }
+
+    public void remove(String id) {
+        StoredMessage message = byId.remove(id);
+        if (message == null) {
+            return;
+        }
+        bySequence.remove(message.getSequence());
+        for (Long recipientId : message.getRecipientIds()) {
+            Map<Long, StoredMessage> messages = byRecipient.get(recipientId);
+            if (messages != null) {
+                messages.remove(message.getSequence());
+            }
+        }
+        // Terms are dropped along with their last message, or else every
+        // word ever seen would be kept.
+        for (String term : message.getTerms()) {
+            byTerm.computeIfPresent(term, (t, messages) -> {
+                messages.remove(message);
+                return messages.isEmpty() ? null : messages;
+            });
+        }
+    }
+
+    /**
+     * @return every message, in the order stored.
+     */
+    public NavigableMap<Long, StoredMessage> all() {
+        return bySequence;
+    }
+
+    /**
+     * @param recipientId the address id of the recipient
+     * @return the messages sent to the recipient, in the order stored.
+     */
+    public NavigableMap<Long, StoredMessage> to(long recipientId) {
+        NavigableMap<Long, StoredMessage> messages = byRecipient.get(recipientId);
+        if (messages == null) {
+            return Collections.emptyNavigableMap();
+        }
+        return messages;
+    }
+
+    /**
+     * @param term a search term
+     * @return the messages with the term.
+     */
+    public Collection<StoredMessage> withTerm(String term) {
+        Set<StoredMessage> messages = byTerm.get(term);
+        if (messages == null) {
+            return Collections.emptySet();
+        }
+        return messages;
+    }
+
+    /**
+     * @param terms the search terms, all of which must match
+     * @param limit the most messages to return
+     * @return up to limit of the messages with every term, newest first.
+     */
+    public List<BasicMessage> search(Set<String> terms, int limit) {
+        // Check the fewest candidates: those with the rarest term.
+        Collection<StoredMessage> candidates = null;
+        for (String term : terms) {
+            Collection<StoredMessage> withTerm = withTerm(term);
+            if (candidates == null || withTerm.size() < candidates.size()) {
+                candidates = withTerm;
+            }
+        }
+        NavigableMap<Long, StoredMessage> matches = new TreeMap<>();
+        for (StoredMessage candidate : candidates) {
+            if (candidate.getTerms().containsAll(terms)) {
+                matches.put(candidate.getSequence(), candidate);
+            }
+        }
+        return toPreviews(matches.descendingMap().values(), limit);
+    }
+
+    /**
+     * @param messages some of the messages of this index, such as
+     * {@link #all()} or {@link #to(long)}
+     * @param after the id of the last message of the previous page, or null
+     * to start from the first page
+     * @param limit the most messages to return
+     * @param direction whether to list the newest or oldest messages first
+     * @return the previews of up to limit messages that come after the given
+     * message.
+     */
+    public List<BasicMessage> page(NavigableMap<Long, StoredMessage> messages, String after, int limit, Direction direction) {
+        NavigableMap<Long, StoredMessage> ordered = direction == Direction.OLDEST_FIRST ? messages : messages.descendingMap();
+        if (after != null) {
+            StoredMessage last = get(after);
+            if (last == null) {
+                throw new AppClientException("Cannot list messages after message_id=" + after + " because it does not exist.");
+            }
+            ordered = ordered.tailMap(last.getSequence(), false);
+        }
+        return toPreviews(ordered.values(), limit);
+    }
+
+    /**
+     * @param messages the messages, in the order to list them
+     * @param limit the most messages to return
+     * @return the previews of up to limit of the messages.
+     */
+    public static List<BasicMessage> toPreviews(Collection<StoredMessage> messages, int limit) {
+        List<BasicMessage> previews = new ArrayList<>(Math.min(limit, 100));
+        for (StoredMessage message : messages) {
+            if (previews.size() >= limit) {
+                break;
+            }
+            previews.add(message.getPreview());
+        }
+        return previews;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store.memory;
+
+import com.redsaz.simiantoupee.api.exceptions.AppClientException;
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps raw messages in a fixed amount of memory outside of the heap, either
+ * a direct buffer or a memory-mapped file. Messages are written one after
+ * another, and when the end is reached, writing wraps around to the start and
+ * overwrites the oldest messages. Each message is kept in one contiguous
+ * piece; if it does not fit before the end, the space there is left unused
+ * until the next time around.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+class RingBuffer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RingBuffer.class);
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // The rest are guarded by the lock.
+    private final Map<String, Slot> slots = new HashMap<>();
+    // Every written slot, oldest first, including deleted ones which have not
+    // been overwritten yet.
+    private final Deque<Slot> order = new ArrayDeque<>();
+    private int head;
+    private long usedBytes;
+    private long overwritten;
+
+    RingBuffer(ByteBuffer inBuffer) {
+        buffer = inBuffer;
+        capacity = inBuffer.capacity();
+    }
+
+    /**
+     * The size is set with the {@code simiantoupee.ring.capacityBytes}
+     * system property. If {@code simiantoupee.ring.file} is set, the buffer
+     * is mapped to that file instead of allocated directly.
+     *
+     * @return a new ring buffer, sized by the system properties.
+     */
+    static RingBuffer fromSystemProperties() {
+        long capacityBytes = Long.getLong("simiantoupee.ring.capacityBytes", 64L * 1024 * 1024);
+        if (capacityBytes < 1 || capacityBytes > Integer.MAX_VALUE) {
+            throw new AppServerException("simiantoupee.ring.capacityBytes must be from 1 to " + Integer.MAX_VALUE
+                    + ", but was " + capacityBytes);
+        }
+        String file = System.getProperty("simiantoupee.ring.file");
+        LOG.info("Ring buffer capacityBytes={} file={}", capacityBytes, file);
+        if (file == null) {
+            return new RingBuffer(ByteBuffer.allocateDirect((int) capacityBytes));
+        }
+        return new RingBuffer(map(new File(file), (int) capacityBytes));
+    }
+
+    private static ByteBuffer map(File file, int capacityBytes) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, capacityBytes);
+        } catch (IOException ex) {
+            throw new AppServerException("Could not map ring buffer file " + file + " because: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Checks that a message of the given size could be written, before
+     * bothering to parse it.
+     *
+     * @param size the size of the raw message
+     */
+    void checkFits(long size) {
+        if (size > capacity) {
+            throw new AppClientException("Message of " + size + " bytes is larger than the "
+                    + capacity + " byte ring buffer.");
+        }
+    }
+
+    /**
+     * Writes the message, overwriting the oldest messages to make room. Each
+     * overwritten message is handed to onOverwritten while the buffer is
+     * still locked, so that nothing can find it in the buffer in between.
+     *
+     * @param id the id of the message
+     * @param raw the raw message
+     * @param onOverwritten called with the id of each message overwritten
+     */
+    void write(String id, byte[] raw, Consumer<String> onOverwritten) {
+        checkFits(raw.length);
+        lock.writeLock().lock();
+        try {
+            int offset = head;
+            if (capacity - head < raw.length) {
+                evictOverlapping(head, capacity, onOverwritten);
+                offset = 0;
+            }
+            evictOverlapping(offset, offset + raw.length, onOverwritten);
+            ByteBuffer target = buffer.duplicate();
+            target.position(offset);
+            target.put(raw);
+            Slot slot = new Slot(id, offset, raw.length);
+            Slot previous = slots.put(id, slot);
+            if (previous != null) {
+                usedBytes -= previous.length;
+            }
+            usedBytes += slot.length;
+            order.addLast(slot);
+            head = offset + raw.length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Runs the action only if the message is in the buffer, and keeps it
+     * from being overwritten until the action is done.
+     *
+     * @param id the id of the message
+     * @param action what to do with the message
+     * @return what the action returned, or null if the message is not in the
+     * buffer.
+     */
+    <T> T whileLive(String id, Supplier<T> action) {
+        lock.readLock().lock();
+        try {
+            if (!slots.containsKey(id)) {
+                return null;
+            }
+            return action.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param id the id of the message
+     * @return a copy of the raw message, or null if it is not in the buffer.
+     */
+    byte[] read(String id) {
+        lock.readLock().lock();
+        try {
+            Slot slot = slots.get(id);
+            if (slot == null) {
+                return null;
+            }
+            byte[] raw = new byte[slot.length];
+            ByteBuffer source = buffer.duplicate();
+            source.position(slot.offset);
+            source.get(raw);
+            return raw;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Forgets the message. Its space is reused once writing comes back
+     * around to it.
+     *
+     * @param id the id of the message
+     */
+    void remove(String id) {
+        lock.writeLock().lock();
+        try {
+            Slot slot = slots.remove(id);
+            if (slot != null) {
+                usedBytes -= slot.length;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            slots.clear();
+            order.clear();
+            head = 0;
+            usedBytes = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void addStats(Map<String, Long> stats) {
+        lock.readLock().lock();
+        try {
+            stats.put("ring.capacityBytes", (long) capacity);
+            stats.put("ring.usedBytes", usedBytes);
+            stats.put("ring.messages", (long) slots.size());
+            stats.put("ring.overwritten", overwritten);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drops the oldest slots for as long as they are in the way of the range.
+     * The oldest slots are always the ones just past the head, so only the
+     * front of the order needs checking.
+     */
+    private void evictOverlapping(int from, int to, Consumer<String> onOverwritten) {
+        Slot oldest = order.peekFirst();
+        while (oldest != null && (oldest.length == 0 || (oldest.offset < to && from < oldest.offset + oldest.length))) {
+            order.removeFirst();
+            // A deleted (or rewritten) message's slot is no longer the one
+            // kept for its id.
+            if (slots.get(oldest.id) == oldest) {
+                slots.remove(oldest.id);
+                usedBytes -= oldest.length;
+                overwritten++;
+                onOverwritten.accept(oldest.id);
+            }
+            oldest = order.peekFirst();
+        }
+    }
+
+    private static class Slot {
+
+        private final String id;
+        private final int offset;
+        private final int length;
+
+        Slot(String inId, int inOffset, int inLength) {
+            id = inId;
+            offset = inOffset;
+            length = inLength;
+        }
+    }
+}
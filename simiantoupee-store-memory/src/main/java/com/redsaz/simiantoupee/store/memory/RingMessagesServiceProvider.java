@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store.memory;
+
+import com.redsaz.simiantoupee.api.MessagesService;
+import com.redsaz.simiantoupee.api.MessagesServiceProvider;
+
+/**
+ * Provides the in-memory message store with the raw messages kept in an
+ * off-heap ring buffer, which keeps only the most recent messages.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class RingMessagesServiceProvider implements MessagesServiceProvider {
+
+    @Override
+    public String getName() {
+        return "ring";
+    }
+
+    @Override
+    public MessagesService create() {
+        return new MemoryMessagesService(RingBuffer.fromSystemProperties());
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store.memory;
+
+import com.redsaz.simiantoupee.api.ingest.MimeIndex;
+import com.redsaz.simiantoupee.api.model.BasicMessage;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A message kept in memory: its raw bytes, and the details, previews, and
+ * MIME offsets parsed from it at ingest. When the raw messages are kept in a ring buffer,
+ * only the preview is kept here, so that the heap holds little per message.
+ * Other stores which keep their raw messages elsewhere, such as in files, use
+ * it the same way.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class StoredMessage {
+
+    private final long sequence;
+    private final byte[] raw;
+    private final BasicMessage basicMessage;
+    private final BasicMessage preview;
+    private final Set<String> terms;
+    private final MimeIndex mimeIndex;
+    private final Set<Long> recipientIds = ConcurrentHashMap.newKeySet();
+
+    public StoredMessage(long inSequence, byte[] inRaw, BasicMessage inBasicMessage, BasicMessage inPreview, Set<String> inTerms,
+            MimeIndex inMimeIndex) {
+        sequence = inSequence;
+        raw = inRaw;
+        basicMessage = inBasicMessage;
+        preview = inPreview;
+        terms = inTerms;
+        mimeIndex = inMimeIndex;
+    }
+
+    /**
+     * @return the order the message was stored in, which is also the order
+     * it was received in.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getId() {
+        return preview.getId();
+    }
+
+    /**
+     * @return the raw message, or null if it is kept in a ring buffer.
+     */
+    public byte[] getRaw() {
+        return raw;
+    }
+
+    /**
+     * @return the full details, or null if the raw message is kept in a ring
+     * buffer.
+     */
+    public BasicMessage getBasicMessage() {
+        return basicMessage;
+    }
+
+    public BasicMessage getPreview() {
+        return preview;
+    }
+
+    public Set<String> getTerms() {
+        return terms;
+    }
+
+    public MimeIndex getMimeIndex() {
+        return mimeIndex;
+    }
+
+    public Set<Long> getRecipientIds() {
+        return recipientIds;
+    }
+}
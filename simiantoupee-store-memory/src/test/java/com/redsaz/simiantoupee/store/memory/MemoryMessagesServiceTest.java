@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store.memory;
+
+import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class MemoryMessagesServiceTest extends Assert {
+
+    @Test
+    public void testOverwrittenMessageIsStoredAgain() throws Exception {
+        // Given a ring buffer store where a message has been overwritten...
+        MemoryMessagesService service = new MemoryMessagesService(new RingBuffer(ByteBuffer.allocate(1000)));
+        MessageAddress sender = service.createAddress("ring@example.com", null);
+        String first = create(service, sender, 0);
+        for (int i = 1; i <= 10; i++) {
+            create(service, sender, i);
+        }
+        assertNull(service.getMessageStream(first));
+        assertNull(service.getBasicMessage(first));
+
+        // ... When the same message is delivered again...
+        String again = create(service, sender, 0);
+
+        // ... Then it is stored again, and is listed.
+        assertEquals(again, first);
+        assertNotNull(service.getMessageStream(first));
+        assertTrue(service.getPreviewMessages().stream().anyMatch(m -> m.getId().equals(first)));
+    }
+
+    @Test(timeOut = 30000)
+    public void testRingListsOnlyStoredMessages() throws Exception {
+        // Given a ring buffer store with room for a few messages...
+        MemoryMessagesService service = new MemoryMessagesService(new RingBuffer(ByteBuffer.allocate(1000)));
+        MessageAddress sender = service.createAddress("ring@example.com", null);
+
+        // ... When many threads deliver a few messages again and again, so
+        // that they overwrite each other and are often duplicates...
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 500; i++) {
+                        create(service, sender, (thread + i) % 20);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // ... Then every listed message can still be read, and the index
+        // and the buffer agree on how many are kept.
+        List<BasicMessage> listed = service.getPreviewMessages();
+        assertFalse(listed.isEmpty());
+        for (BasicMessage message : listed) {
+            assertNotNull(service.getMessageStream(message.getId()), message.getId());
+        }
+        Map<String, Long> stats = service.getStats();
+        assertEquals(stats.get("messages.known"), stats.get("ring.messages"));
+        // A message delivered after all that is kept.
+        String last = create(service, sender, 7);
+        assertNotNull(service.getMessageStream(last));
+    }
+
+    private static String create(MemoryMessagesService service, MessageAddress sender, int number) {
+        StringBuilder sb = new StringBuilder("Subject: message ").append(number).append("\r\n\r\n");
+        while (sb.length() < 200) {
+            sb.append("body of message ").append(number).append("\r\n");
+        }
+        InputStream stream = new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+        return service.create(sender, Collections.emptyList(), stream);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.store.memory;
+
+import com.redsaz.simiantoupee.api.exceptions.AppClientException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class RingBufferTest extends Assert {
+
+    @Test
+    public void testWrapLeavesGapAtEnd() {
+        // Given a buffer with two messages which leave too little room at the
+        // end for a third...
+        RingBuffer ring = new RingBuffer(ByteBuffer.allocate(100));
+        write(ring, "a", 40);
+        write(ring, "b", 40);
+
+        // ... When the third is written...
+        List<String> overwritten = write(ring, "c", 30);
+
+        // ... Then it wraps around to the start, overwriting only the first,
+        // and the end is left unused...
+        assertEquals(overwritten, Collections.singletonList("a"));
+        assertNull(ring.read("a"));
+        assertEquals(ring.read("b"), bytes("b", 40));
+        assertEquals(ring.read("c"), bytes("c", 30));
+        assertEquals(stats(ring).get("ring.usedBytes").longValue(), 70L);
+
+        // ... And When a fourth is written, Then it overwrites only the one
+        // in its way.
+        assertEquals(write(ring, "d", 40), Collections.singletonList("b"));
+        assertEquals(ring.read("c"), bytes("c", 30));
+        assertEquals(ring.read("d"), bytes("d", 40));
+        assertEquals(stats(ring).get("ring.overwritten").longValue(), 2L);
+    }
+
+    @Test
+    public void testDeletedSlotIsOverwritten() {
+        // Given a full buffer with the oldest message deleted...
+        RingBuffer ring = new RingBuffer(ByteBuffer.allocate(100));
+        write(ring, "a", 50);
+        write(ring, "b", 50);
+        ring.remove("a");
+        assertEquals(stats(ring).get("ring.usedBytes").longValue(), 50L);
+
+        // ... When a message is written over the deleted one's space...
+        List<String> overwritten = write(ring, "c", 50);
+
+        // ... Then nothing is reported as overwritten, and the rest are kept.
+        assertEquals(overwritten, Collections.emptyList());
+        assertNull(ring.read("a"));
+        assertEquals(ring.read("b"), bytes("b", 50));
+        assertEquals(ring.read("c"), bytes("c", 50));
+        Map<String, Long> stats = stats(ring);
+        assertEquals(stats.get("ring.usedBytes").longValue(), 100L);
+        assertEquals(stats.get("ring.messages").longValue(), 2L);
+        assertEquals(stats.get("ring.overwritten").longValue(), 0L);
+    }
+
+    @Test
+    public void testRewrittenMessageOutlivesItsOldSlot() {
+        // Given a message which was deleted and then written again...
+        RingBuffer ring = new RingBuffer(ByteBuffer.allocate(100));
+        write(ring, "a", 40);
+        ring.remove("a");
+        write(ring, "a", 40);
+
+        // ... When its old slot is overwritten...
+        List<String> overwritten = write(ring, "b", 30);
+
+        // ... Then the message is still kept, in its new slot.
+        assertEquals(overwritten, Collections.emptyList());
+        assertEquals(ring.read("a"), bytes("a", 40));
+        assertEquals(ring.read("b"), bytes("b", 30));
+        assertEquals(stats(ring).get("ring.usedBytes").longValue(), 70L);
+    }
+
+    @Test
+    public void testMessageExactlyBufferSize() {
+        // Given a buffer with a message in it...
+        RingBuffer ring = new RingBuffer(ByteBuffer.allocate(64));
+        write(ring, "a", 10);
+
+        // ... When messages exactly the size of the buffer are written...
+        // ... Then each takes the whole buffer, overwriting the one before.
+        assertEquals(write(ring, "b", 64), Collections.singletonList("a"));
+        assertEquals(ring.read("b"), bytes("b", 64));
+        assertEquals(write(ring, "c", 64), Collections.singletonList("b"));
+        assertEquals(ring.read("c"), bytes("c", 64));
+        assertEquals(stats(ring).get("ring.usedBytes").longValue(), 64L);
+    }
+
+    @Test(expectedExceptions = AppClientException.class)
+    public void testMessageLargerThanBuffer() {
+        // Given a buffer...
+        RingBuffer ring = new RingBuffer(ByteBuffer.allocate(64));
+
+        // ... When a message one byte too large is written...
+        // ... Then it is refused.
+        write(ring, "a", 65);
+    }
+
+    private static List<String> write(RingBuffer ring, String id, int length) {
+        List<String> overwritten = new ArrayList<>();
+        ring.write(id, bytes(id, length), overwritten::add);
+        return overwritten;
+    }
+
+    private static byte[] bytes(String id, int length) {
+        byte[] raw = new byte[length];
+        Arrays.fill(raw, (byte) id.charAt(0));
+        return raw;
+    }
+
+    private static Map<String, Long> stats(RingBuffer ring) {
+        Map<String, Long> stats = new HashMap<>();
+        ring.addStats(stats);
+        return stats;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.netty;
+
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.apache.james.protocols.api.Protocol;
+import org.apache.james.protocols.netty.AbstractAsyncServer;
+import org.apache.james.protocols.netty.HandlerConstants;
+import org.apache.james.protocols.netty.NettyServer;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.socket.ServerSocketChannel;
+import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.util.ExternalResourceReleasable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The I/O threads shared by the Netty based servers, such as POP3 and SMTP,
+ * so that each server does not start its own. Every connection of every
+ * server is handled by the same fixed number of worker threads.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class NettyEventLoops implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NettyEventLoops.class);
+
+    private final ExecutorService bossExecutor;
+    private final ExecutorService workerExecutor;
+    private final NioServerSocketChannelFactory factory;
+    private final ServerSocketChannelFactory shared;
+
+    /**
+     * @param ioWorkers the number of worker threads
+     */
+    public NettyEventLoops(int ioWorkers) {
+        bossExecutor = Executors.newCachedThreadPool(named("simiantoupee-netty-boss-"));
+        workerExecutor = Executors.newCachedThreadPool(named("simiantoupee-netty-io-"));
+        factory = new NioServerSocketChannelFactory(bossExecutor, workerExecutor, ioWorkers);
+        shared = new ServerSocketChannelFactory() {
+            @Override
+            public ServerSocketChannel newChannel(ChannelPipeline pipeline) {
+                return factory.newChannel(pipeline);
+            }
+
+            @Override
+            public void releaseExternalResources() {
+                // A server stopping must not stop the threads of the others.
+            }
+        };
+    }
+
+    /**
+     * @return the event loops, with the number of worker threads given by the
+     * {@code simiantoupee.netty.ioWorkers} system property.
+     */
+    public static NettyEventLoops fromSystemProperties() {
+        int ioWorkers = Integer.getInteger("simiantoupee.netty.ioWorkers", AbstractAsyncServer.DEFAULT_IO_WORKER_COUNT);
+        if (ioWorkers < 1) {
+            throw new AppServerException("simiantoupee.netty.ioWorkers must be at least 1, but was " + ioWorkers);
+        }
+        LOG.info("Netty ioWorkers={}", ioWorkers);
+        return new NettyEventLoops(ioWorkers);
+    }
+
+    /**
+     * Creates a server which runs on these event loops. It still needs to be
+     * configured and bound.
+     *
+     * @param protocol the protocol the server speaks
+     * @return the unbound server.
+     */
+    public NettyServer newServer(Protocol protocol) {
+        return new NettyServer(protocol) {
+            @Override
+            protected ServerSocketChannelFactory createSocketChannelFactory() {
+                return shared;
+            }
+        };
+    }
+
+    /**
+     * Creates a server which runs on these event loops, and splits what each
+     * connection receives into frames with its own framer, rather than into
+     * lines. It still needs to be configured and bound.
+     *
+     * @param protocol the protocol the server speaks
+     * @param framer creates the framer of each new connection
+     * @return the unbound server.
+     */
+    public NettyServer newServer(Protocol protocol, Supplier<? extends ChannelHandler> framer) {
+        return new NettyServer(protocol) {
+            @Override
+            protected ServerSocketChannelFactory createSocketChannelFactory() {
+                return shared;
+            }
+
+            @Override
+            protected ChannelPipelineFactory createPipelineFactory(ChannelGroup group) {
+                return new FramerReplacingPipelineFactory(super.createPipelineFactory(group), framer);
+            }
+        };
+    }
+
+    /**
+     * Stops the threads. Every server using them should be unbound first.
+     */
+    @Override
+    public void close() {
+        factory.releaseExternalResources();
+    }
+
+    private static ThreadFactory named(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Builds the same pipelines as the server would, but with another framer.
+     */
+    private static class FramerReplacingPipelineFactory implements ChannelPipelineFactory,
+            ExternalResourceReleasable {
+
+        private final ChannelPipelineFactory pipelines;
+        private final Supplier<? extends ChannelHandler> framer;
+
+        FramerReplacingPipelineFactory(ChannelPipelineFactory inPipelines,
+                Supplier<? extends ChannelHandler> inFramer) {
+            pipelines = inPipelines;
+            framer = inFramer;
+        }
+
+        @Override
+        public ChannelPipeline getPipeline() throws Exception {
+            ChannelPipeline pipeline = pipelines.getPipeline();
+            pipeline.replace(HandlerConstants.FRAMER, HandlerConstants.FRAMER, framer.get());
+            return pipeline;
+        }
+
+        @Override
+        public void releaseExternalResources() {
+            if (pipelines instanceof ExternalResourceReleasable) {
+                ((ExternalResourceReleasable) pipelines).releaseExternalResources();
+            }
+        }
+    }
+}
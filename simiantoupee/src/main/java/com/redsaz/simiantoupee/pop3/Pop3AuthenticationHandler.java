@@ -34,7 +34,10 @@ public class Pop3AuthenticationHandler extends AbstractPassCmdHandler {
 
     @Override
     protected Mailbox auth(POP3Session session, String username, String password) throws Exception {
-        Pop3PersistingMessageMailbox jm = new Pop3PersistingMessageMailbox(msgSrv);
+        // Logging in as an email address only shows the messages sent to it,
+        // any other name shows every message.
+        String recipient = username != null && username.contains("@") ? username : null;
+        Pop3PersistingMessageMailbox jm = new Pop3PersistingMessageMailbox(msgSrv, recipient);
         return jm;
     }
 }
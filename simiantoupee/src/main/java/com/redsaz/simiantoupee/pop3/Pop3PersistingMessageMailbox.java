@@ -16,15 +16,11 @@
 package com.redsaz.simiantoupee.pop3;
 
 import com.redsaz.simiantoupee.api.MessagesService;
-import com.redsaz.simiantoupee.api.exceptions.AppServerException;
 import com.redsaz.simiantoupee.api.model.BasicMessage;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.List;
-import javax.mail.MessagingException;
 import org.apache.james.protocols.pop3.mailbox.Mailbox;
 import org.apache.james.protocols.pop3.mailbox.MessageMetaData;
 
@@ -36,33 +32,33 @@ import org.apache.james.protocols.pop3.mailbox.MessageMetaData;
 public class Pop3PersistingMessageMailbox implements Mailbox {
 
     private final MessagesService msgSrv;
+    private final String recipient;
 
-    public Pop3PersistingMessageMailbox(MessagesService messagesService) {
+    /**
+     * @param messagesService where the messages are
+     * @param inRecipient only the messages sent to this email address are in
+     * the mailbox, or all messages if null
+     */
+    public Pop3PersistingMessageMailbox(MessagesService messagesService, String inRecipient) {
         msgSrv = messagesService;
+        recipient = inRecipient;
     }
 
+    /**
+     * Reads only the body, as it was received, so that TOP does not need the
+     * whole message parsed.
+     */
     @Override
     public InputStream getMessageBody(String uid) throws IOException {
-        try {
-            return msgSrv.getMessage(uid).getInputStream();
-        } catch (MessagingException ex) {
-            throw new AppServerException("Can't get message " + uid + ". Reason: " + uid, ex);
-        }
+        return msgSrv.getMessageBody(uid);
     }
 
+    /**
+     * Reads only the header block, as it was received.
+     */
     @Override
     public InputStream getMessageHeaders(String uid) throws IOException {
-        try {
-            StringBuilder sb = new StringBuilder();
-            Enumeration lines = msgSrv.getMessage(uid).getAllHeaderLines();
-            while (lines.hasMoreElements()) {
-                String line = (String) lines.nextElement();
-                sb.append(line).append("\n");
-            }
-            return new ByteArrayInputStream(sb.toString().getBytes());
-        } catch (MessagingException ex) {
-            throw new AppServerException("Can't get message " + uid + ". Reason: " + uid, ex);
-        }
+        return msgSrv.getMessageHeaders(uid);
     }
 
     @Override
@@ -72,7 +68,12 @@ public class Pop3PersistingMessageMailbox implements Mailbox {
 
     @Override
     public List<MessageMetaData> getMessages() throws IOException {
-        List<BasicMessage> basicMsgs = msgSrv.getPreviewMessages();
+        List<BasicMessage> basicMsgs;
+        if (recipient == null) {
+            basicMsgs = msgSrv.getPreviewMessages();
+        } else {
+            basicMsgs = msgSrv.getPreviewMessagesTo(recipient);
+        }
         List<MessageMetaData> metas = new ArrayList<>(basicMsgs.size());
         for (BasicMessage basicMsg : basicMsgs) {
             MessageMetaData mmd = new MessageMetaData(basicMsg.getId(), basicMsg.getSize());
@@ -88,7 +89,7 @@ public class Pop3PersistingMessageMailbox implements Mailbox {
 
     @Override
     public String getIdentifier() throws IOException {
-        return "1";
+        return recipient == null ? "1" : recipient;
     }
 
     @Override
@@ -17,6 +17,7 @@ package com.redsaz.simiantoupee.pop3;
 
 import com.redsaz.simiantoupee.api.MessagesService;
 import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import com.redsaz.simiantoupee.netty.NettyEventLoops;
 import java.io.Closeable;
 import java.net.InetSocketAddress;
 import org.apache.james.protocols.api.logger.ProtocolLoggerAdapter;
@@ -43,9 +44,10 @@ public class Pop3Server implements Closeable {
      * 110 is the usual non-secure POP3 port.
      *
      * @param messagesService Provides the email messages
+     * @param eventLoops the threads the server runs on
      * @param port the port the server runs on
      */
-    public Pop3Server(MessagesService messagesService, int port) {
+    public Pop3Server(MessagesService messagesService, NettyEventLoops eventLoops, int port) {
         try {
             POP3Configuration config = new POP3Configuration();
             config.setGreeting("Welcome to simiantoupee POP3 server!");
@@ -61,7 +63,7 @@ public class Pop3Server implements Closeable {
 
             InetSocketAddress socket = new InetSocketAddress(port);
             POP3Protocol pop3Prot = new POP3Protocol(chain, config, log);
-            pop3Server = new NettyServer(pop3Prot);
+            pop3Server = eventLoops.newServer(pop3Prot);
             pop3Server.setListenAddresses(socket);
             pop3Server.setTimeout(180);
             pop3Server.setMaxConcurrentConnections(1000);
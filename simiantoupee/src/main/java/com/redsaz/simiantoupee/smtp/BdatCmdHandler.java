@@ -0,0 +1,252 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.smtp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.apache.james.protocols.api.ProtocolSession.State;
+import org.apache.james.protocols.api.Request;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.handler.CommandHandler;
+import org.apache.james.protocols.api.handler.LineHandler;
+import org.apache.james.protocols.smtp.MailAddress;
+import org.apache.james.protocols.smtp.MailEnvelopeImpl;
+import org.apache.james.protocols.smtp.SMTPResponse;
+import org.apache.james.protocols.smtp.SMTPRetCode;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.core.ReceivedDataLineFilter;
+import org.apache.james.protocols.smtp.core.esmtp.EhloExtension;
+import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handles the BDAT command of RFC 3030 CHUNKING: the message arrives as one or
+ * more chunks of a stated size, rather than as dot-terminated lines, so it
+ * needs neither dot-stuffing nor scanning for the end. Each chunk is added to
+ * the message as it arrives, and once the LAST chunk is in, the message is
+ * stored the same way as after DATA. A chunk is always read in full, even
+ * when it is refused, so that the connection stays in step with the client.
+ * Once the message passes the maximum size, the chunk which passed it is
+ * refused, along with the rest of the message.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+class BdatCmdHandler implements CommandHandler<SMTPSession>, EhloExtension {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BdatCmdHandler.class);
+    private static final String MAILENV = "BDAT_MAILENV";
+    private static final String CHUNK_SIZE = "BDAT_CHUNK_SIZE";
+    private static final Response SYNTAX_ERROR = new SMTPResponse(SMTPRetCode.SYNTAX_ERROR_ARGUMENTS,
+            DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_INVALID_ARG) + " Usage: BDAT <size> [LAST]");
+    private static final Response NO_SENDER = new SMTPResponse(SMTPRetCode.BAD_SEQUENCE,
+            DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_OTHER) + " No sender specified");
+    private static final Response NO_RECIPIENT = new SMTPResponse(SMTPRetCode.BAD_SEQUENCE,
+            DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.DELIVERY_OTHER) + " No recipients specified");
+
+    private static final ReceivedHeader RECEIVED = new ReceivedHeader();
+
+    private final MessagePersister persister;
+
+    BdatCmdHandler(MessagePersister inPersister) {
+        persister = inPersister;
+    }
+
+    @Override
+    public Response onCommand(SMTPSession session, Request request) {
+        String[] args = request.getArgument() == null ? new String[0] : request.getArgument().trim().split("\\s+");
+        long size = parseSize(args);
+        if (size < 0) {
+            return SYNTAX_ERROR;
+        }
+        boolean last = args.length == 2;
+        Response refusal = null;
+        SpooledMailEnvelope envelope = null;
+        if (session.getAttachment(SMTPSession.SENDER, State.Transaction) == null) {
+            refusal = NO_SENDER;
+        } else if (!hasRecipients(session)) {
+            refusal = NO_RECIPIENT;
+        } else {
+            envelope = getEnvelope(session);
+        }
+        Chunk chunk = new Chunk(size, last, envelope, refusal);
+        if (size == 0) {
+            return chunk.end(session);
+        }
+        session.setAttachment(CHUNK_SIZE, size, State.Connection);
+        session.pushLineHandler(chunk);
+        // The chunk replies once all of it has been read.
+        return null;
+    }
+
+    @Override
+    public Collection<String> getImplCommands() {
+        return Collections.singletonList("BDAT");
+    }
+
+    @Override
+    public List<String> getImplementedEsmtpFeatures(SMTPSession session) {
+        return Collections.singletonList("CHUNKING");
+    }
+
+    /**
+     * Takes the size of the chunk which the connection receives next, if a
+     * BDAT command was just accepted.
+     *
+     * @param session the session of the connection
+     * @return the size of the next chunk, or 0 if none is expected.
+     */
+    static long takeChunkSize(SMTPSession session) {
+        if (session == null) {
+            return 0;
+        }
+        Long size = (Long) session.setAttachment(CHUNK_SIZE, null, State.Connection);
+        return size == null ? 0 : size;
+    }
+
+    /**
+     * @return the chunk size, or -1 if the arguments are not
+     * {@code <size> [LAST]}.
+     */
+    private static long parseSize(String[] args) {
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !"LAST".equalsIgnoreCase(args[1]))) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(args[0]);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static boolean hasRecipients(SMTPSession session) {
+        Collection<?> recipients = (Collection<?>) session.getAttachment(SMTPSession.RCPT_LIST, State.Transaction);
+        return recipients != null && !recipients.isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SpooledMailEnvelope getEnvelope(SMTPSession session) {
+        SpooledMailEnvelope envelope = (SpooledMailEnvelope) session.getAttachment(MAILENV, State.Transaction);
+        if (envelope == null) {
+            envelope = SpooledMailEnvelope.start(session);
+            envelope.setSender((MailAddress) session.getAttachment(SMTPSession.SENDER, State.Transaction));
+            envelope.setRecipients((List<MailAddress>) session.getAttachment(SMTPSession.RCPT_LIST,
+                    State.Transaction));
+            session.setAttachment(MAILENV, envelope, State.Transaction);
+            RECEIVED.writeTo(session, envelope);
+        }
+        return envelope;
+    }
+
+    /**
+     * Writes the same Received header to the start of a chunked message as
+     * DATA adds to its messages.
+     */
+    private static class ReceivedHeader extends ReceivedDataLineFilter {
+
+        void writeTo(SMTPSession session, MailEnvelopeImpl envelope) {
+            LineHandler<SMTPSession> writer = (ignored, line) -> {
+                byte[] bytes = new byte[line.remaining()];
+                line.get(bytes);
+                try {
+                    envelope.getMessageOutputStream().write(bytes);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                return null;
+            };
+            for (Header header : headers(session)) {
+                header.transferTo(session, writer);
+            }
+        }
+    }
+
+    /**
+     * Reads one chunk into the message, and replies once it is read.
+     */
+    private class Chunk implements LineHandler<SMTPSession> {
+
+        private final long size;
+        private final boolean last;
+        private SpooledMailEnvelope envelope;
+        private Response refusal;
+        private long remaining;
+
+        Chunk(long inSize, boolean inLast, SpooledMailEnvelope inEnvelope, Response inRefusal) {
+            size = inSize;
+            last = inLast;
+            envelope = inEnvelope;
+            refusal = inRefusal;
+            remaining = inSize;
+        }
+
+        @Override
+        public Response onLine(SMTPSession session, ByteBuffer line) {
+            int length = line.remaining();
+            if (envelope != null) {
+                try {
+                    if (line.hasArray()) {
+                        envelope.getMessageOutputStream().write(line.array(), line.arrayOffset() + line.position(),
+                                length);
+                    } else {
+                        byte[] bytes = new byte[length];
+                        line.get(bytes);
+                        envelope.getMessageOutputStream().write(bytes);
+                    }
+                } catch (IOException ex) {
+                    LOG.error("Could not buffer message chunk.", ex);
+                    envelope.finish(session);
+                    envelope.release();
+                    envelope = null;
+                    refusal = new SMTPResponse(SMTPRetCode.LOCAL_ERROR,
+                            DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.UNDEFINED_STATUS)
+                            + " Error processing message");
+                }
+            }
+            remaining -= length;
+            if (remaining > 0) {
+                return null;
+            }
+            session.popLineHandler();
+            return end(session);
+        }
+
+        Response end(SMTPSession session) {
+            if (envelope != null && envelope.isTooBig()) {
+                // Refused straight away, so that the client sends no more.
+                envelope.finish(session);
+                envelope.release();
+                refusal = NettySmtpServer.MESSAGE_TOO_BIG;
+            }
+            if (refusal != null) {
+                // The transaction has failed, so the client must start over.
+                session.resetState();
+                return refusal;
+            } else if (!last) {
+                return new SMTPResponse(SMTPRetCode.MAIL_OK,
+                        DSNStatus.getStatus(DSNStatus.SUCCESS, DSNStatus.UNDEFINED_STATUS) + " " + size
+                        + " octets received");
+            }
+            Response response = NettySmtpServer.persist(persister, session, envelope);
+            session.resetState();
+            return response;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.smtp;
+
+import org.apache.james.protocols.netty.AbstractChannelPipelineFactory;
+import org.apache.james.protocols.netty.HandlerConstants;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.Delimiters;
+
+/**
+ * Splits what an SMTP connection receives into lines, except for the chunks
+ * following BDAT commands, which are passed on as they arrive, byte for byte,
+ * however they end. The BDAT handler says how long the next chunk is once it
+ * has accepted the command, which happens before the next frame is decoded.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+class BdatFrameDecoder extends DelimiterBasedFrameDecoder {
+
+    private SMTPSession session;
+    private long remaining;
+
+    BdatFrameDecoder() {
+        super(AbstractChannelPipelineFactory.MAX_LINE_LENGTH, false, Delimiters.lineDelimiter());
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (remaining == 0) {
+            remaining = BdatCmdHandler.takeChunkSize(getSession(ctx));
+            if (remaining == 0) {
+                return super.decode(ctx, channel, buffer);
+            }
+        }
+        int length = (int) Math.min(remaining, buffer.readableBytes());
+        if (length == 0) {
+            return null;
+        }
+        remaining -= length;
+        return buffer.readBytes(length);
+    }
+
+    private SMTPSession getSession(ChannelHandlerContext ctx) {
+        if (session == null) {
+            session = (SMTPSession) ctx.getPipeline().getContext(HandlerConstants.CORE_HANDLER).getAttachment();
+        }
+        return session;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.smtp;
+
+import com.redsaz.simiantoupee.api.AsyncMessagesService;
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import com.redsaz.simiantoupee.api.model.MessageAddress;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Persists messages received over SMTP, whichever server received them. The
+ * sender and recipients of a message are looked up (or created) all at once,
+ * rather than one after another, and then the message is stored once, however
+ * many recipients it has.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class MessagePersister {
+
+    private static final Pattern ADDRESS_PATTERN = Pattern.compile(
+            "(?:\"([^\"]*)\"\\s*<([^>]+)>)|(?:<([^>]+)>)|(?:([^>]+))");
+
+    private final AsyncMessagesService msgSrv;
+
+    public MessagePersister(AsyncMessagesService messagesService) {
+        msgSrv = messagesService;
+    }
+
+    /**
+     * Stores the message, without waiting for it to be stored. The sender and
+     * every recipient are looked up in one call, however many recipients
+     * there are, and only those not seen before are created.
+     *
+     * @param sender the envelope sender
+     * @param recipients the envelope recipients
+     * @param data the raw message, which must stay readable until the result
+     * completes
+     * @return the id of the stored message, once stored.
+     */
+    public CompletableFuture<String> persist(String sender, List<String> recipients, InputStream data) {
+        // The names of the addresses, by email. The same address may be given
+        // more than once, but is only looked up once.
+        Map<String, String> names = new LinkedHashMap<>();
+        String senderEmail = putAddressParts(names, sender);
+        List<String> recipientEmails = new ArrayList<>(recipients.size());
+        for (String recipient : recipients) {
+            recipientEmails.add(putAddressParts(names, recipient));
+        }
+        return msgSrv.getAddresses(names.keySet())
+                .thenCompose(found -> createMissing(names, found))
+                .thenCompose(addresses -> {
+                    List<MessageAddress> recipientAddrs = new ArrayList<>(recipientEmails.size());
+                    for (String recipientEmail : recipientEmails) {
+                        recipientAddrs.add(addresses.get(recipientEmail));
+                    }
+                    return msgSrv.create(addresses.get(senderEmail), recipientAddrs, data);
+                });
+    }
+
+    private CompletableFuture<Map<String, MessageAddress>> createMissing(Map<String, String> names,
+            Map<String, MessageAddress> found) {
+        if (found.size() == names.size()) {
+            return CompletableFuture.completedFuture(found);
+        }
+        Map<String, MessageAddress> addresses = new ConcurrentHashMap<>(found);
+        List<CompletableFuture<MessageAddress>> creates = new ArrayList<>(names.size() - found.size());
+        for (Map.Entry<String, String> name : names.entrySet()) {
+            String email = name.getKey();
+            if (!found.containsKey(email)) {
+                creates.add(createAddress(email, name.getValue())
+                        .thenApply(created -> addresses.put(email, created)));
+            }
+        }
+        return CompletableFuture.allOf(creates.toArray(new CompletableFuture<?>[creates.size()]))
+                .thenApply(ignored -> addresses);
+    }
+
+    private CompletableFuture<MessageAddress> createAddress(String email, String name) {
+        // If a different thread/instance/etc created the address at the same
+        // time we did, and we failed, then retrieve the successfully created
+        // one.
+        return msgSrv.createAddress(email, name)
+                .handle((created, ex) -> ex == null
+                        ? CompletableFuture.completedFuture(created)
+                        : msgSrv.getAddress(email))
+                .thenCompose(found -> found)
+                .thenApply(addr -> {
+                    if (addr == null) {
+                        // If we didn't create an address record after all
+                        // that, something is wrong.
+                        throw new AppServerException("Failed to create/retrieve address record for " + email);
+                    }
+                    return addr;
+                });
+    }
+
+    /**
+     * Adds the address and name of the entry to the names, unless the
+     * address is already there.
+     *
+     * @return the address of the entry.
+     */
+    private static String putAddressParts(Map<String, String> names, String addressEntry) {
+        String[] addressAndName = getAddressParts(addressEntry);
+        names.putIfAbsent(addressAndName[0], addressAndName[1]);
+        return addressAndName[0];
+    }
+
+    /**
+     * Extracts the address and name of a single email address entry.
+     * Examples are: {@code "Example Name" <example-email@example.com>} or
+     * {@code <example-email@example.com>} or
+     * {@code example-email@example.com}. The resulting String array will have
+     * the address in [0] and the name in [1] or null if no name was provided.
+     * The null sender of bounces, {@code <>}, has the empty address.
+     *
+     * @param addressEntry The single address entry
+     * @return the address in [0], and the name in [1].
+     */
+    private static String[] getAddressParts(String addressEntry) {
+        String[] addressAndName = new String[]{"", null};
+        Matcher matcher = ADDRESS_PATTERN.matcher(addressEntry == null ? "" : addressEntry);
+        if (matcher.find()) {
+            addressAndName[1] = matcher.group(1);
+            addressAndName[0] = matcher.group(2);
+            if (addressAndName[0] == null) {
+                addressAndName[0] = matcher.group(3);
+                if (addressAndName[0] == null) {
+                    addressAndName[0] = matcher.group(4);
+                }
+            }
+        }
+
+        return addressAndName;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.smtp;
+
+import com.redsaz.simiantoupee.api.AsyncMessagesService;
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
+import com.redsaz.simiantoupee.netty.NettyEventLoops;
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import org.apache.james.protocols.api.Response;
+import org.apache.james.protocols.api.future.FutureResponseImpl;
+import org.apache.james.protocols.api.handler.DisconnectHandler;
+import org.apache.james.protocols.api.handler.LineHandler;
+import org.apache.james.protocols.api.handler.ProtocolHandler;
+import org.apache.james.protocols.api.logger.ProtocolLoggerAdapter;
+import org.apache.james.protocols.netty.NettyServer;
+import org.apache.james.protocols.smtp.MailAddress;
+import org.apache.james.protocols.smtp.MailEnvelope;
+import org.apache.james.protocols.smtp.MailEnvelopeImpl;
+import org.apache.james.protocols.smtp.SMTPConfigurationImpl;
+import org.apache.james.protocols.smtp.SMTPProtocol;
+import org.apache.james.protocols.smtp.SMTPProtocolHandlerChain;
+import org.apache.james.protocols.smtp.SMTPResponse;
+import org.apache.james.protocols.smtp.SMTPRetCode;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.core.DataCmdHandler;
+import org.apache.james.protocols.smtp.core.DataLineMessageHookHandler;
+import org.apache.james.protocols.smtp.core.esmtp.MailSizeEsmtpExtension;
+import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.apache.james.protocols.smtp.hook.AuthHook;
+import org.apache.james.protocols.smtp.hook.HookResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An SMTP server which runs on the same Netty event loops as the POP3 server,
+ * rather than using a thread per connection. Once a message has been
+ * received, it is handed to the store, and the I/O thread moves on to other
+ * connections; the reply to DATA is sent when the store is done with it.
+ * Messages are persisted the same way as by {@link SmtpServer}.
+ * <p>
+ * Clients may pipeline their commands (RFC 2920), so that a connection sending
+ * many messages does not wait a round trip for every MAIL, RCPT and DATA, and
+ * may send messages in BDAT chunks (RFC 3030) instead of with DATA.
+ * <p>
+ * Messages are spooled to temp files while they are received, once they
+ * outgrow a small buffer, so a large message costs little heap. One larger
+ * than the maximum size is refused once the client has sent it, without
+ * keeping it.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class NettySmtpServer implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NettySmtpServer.class);
+    static final Response MESSAGE_TOO_BIG = new SMTPResponse(SMTPRetCode.QUOTA_EXCEEDED,
+            DSNStatus.getStatus(DSNStatus.PERMANENT, DSNStatus.SYSTEM_MSG_TOO_BIG)
+            + " Message size exceeds fixed maximum message size");
+
+    private final NettyServer smtpServer;
+
+    /**
+     * Constructs and starts an SMTP server.
+     *
+     * @param messagesService where the messages are stored
+     * @param eventLoops the threads the server runs on
+     * @param port the port the server runs on
+     * @param hostname the name the server greets with
+     * @param maxMessageSize the most bytes a message may have, or 0 for no
+     * limit
+     */
+    public NettySmtpServer(AsyncMessagesService messagesService, NettyEventLoops eventLoops, int port,
+            String hostname, long maxMessageSize) {
+        try {
+            SMTPConfigurationImpl config = new SMTPConfigurationImpl() {
+                @Override
+                public boolean isAuthRequired(String remoteIP) {
+                    // Offer AUTH to everyone, so that clients which insist on
+                    // logging in can, as with SubEthaSMTP.
+                    return true;
+                }
+
+                @Override
+                public long getMaxMessageSize() {
+                    return maxMessageSize;
+                }
+            };
+            config.setHelloName(hostname);
+            config.setSoftwareName("simiantoupee");
+
+            SMTPProtocolHandlerChain chain = new SMTPProtocolHandlerChain();
+            MessagePersister persister = new MessagePersister(messagesService);
+            chain.set(indexOf(chain, DataCmdHandler.class), new SpoolingDataCmdHandler());
+            chain.set(indexOf(chain, DataLineMessageHookHandler.class), new PersistingDataLineHandler(persister));
+            chain.set(indexOf(chain, MailSizeEsmtpExtension.class), new AdvertisedSizeExtension());
+            chain.add(new BdatCmdHandler(persister));
+            chain.add(new AgileAuthHook());
+            chain.wireExtensibleHandlers();
+
+            SMTPProtocol smtpProt = new SMTPProtocol(chain, config, new ProtocolLoggerAdapter(LOG));
+            smtpServer = eventLoops.newServer(smtpProt, BdatFrameDecoder::new);
+            smtpServer.setListenAddresses(new InetSocketAddress(port));
+            smtpServer.setTimeout(300);
+            smtpServer.bind();
+        } catch (Exception ex) {
+            throw new AppServerException("Could not start SMTP server. Reason: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        smtpServer.unbind();
+    }
+
+    /**
+     * Stores the received message, and replies once it is stored, without
+     * waiting for it on the I/O thread. Replies to any commands the client
+     * sent after the message are held back until then, so they still go out
+     * in order.
+     *
+     * @param persister stores the message
+     * @param session the session which received the message
+     * @param mail the received message, which is released once stored
+     * @return the reply to the command which ended the message.
+     */
+    static Response persist(MessagePersister persister, SMTPSession session, SpooledMailEnvelope mail) {
+        mail.finish(session);
+        if (mail.isTooBig()) {
+            mail.release();
+            return MESSAGE_TOO_BIG;
+        }
+        MailAddress sender = mail.getSender();
+        List<String> recipients = new ArrayList<>(mail.getRecipients().size());
+        for (MailAddress recipient : mail.getRecipients()) {
+            LOG.debug("Recipient: {}", recipient);
+            recipients.add(recipient.toString());
+        }
+        FutureResponseImpl response = new FutureResponseImpl();
+        try {
+            persister.persist(sender == null || sender.isNullSender() ? "" : sender.toString(), recipients,
+                    mail.getMessageInputStream())
+                    .whenComplete((id, ex) -> {
+                        mail.release();
+                        response.setResponse(toResponse(ex));
+                    });
+        } catch (Exception ex) {
+            mail.release();
+            response.setResponse(toResponse(ex));
+        }
+        return response;
+    }
+
+    private static Response toResponse(Throwable ex) {
+        if (ex == null) {
+            return new SMTPResponse(SMTPRetCode.MAIL_OK,
+                    DSNStatus.getStatus(DSNStatus.SUCCESS, DSNStatus.CONTENT_OTHER) + " Message received");
+        }
+        Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+        if (cause.getCause() instanceof RejectedExecutionException) {
+            // The store has more work than it can queue, so ask the
+            // sender to try again later.
+            return new SMTPResponse(SMTPRetCode.LOCAL_ERROR, "4.3.2 Too busy, try again later");
+        }
+        LOG.error("Could not store message.", cause);
+        return new SMTPResponse(SMTPRetCode.LOCAL_ERROR,
+                DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.UNDEFINED_STATUS) + " Error processing message");
+    }
+
+    private static int indexOf(List<ProtocolHandler> chain, Class<? extends ProtocolHandler> type) {
+        for (int i = 0; i < chain.size(); i++) {
+            if (type.isInstance(chain.get(i))) {
+                return i;
+            }
+        }
+        throw new AppServerException("The SMTP handler chain has no " + type.getSimpleName() + " to replace.");
+    }
+
+    /**
+     * Receives each DATA message into a {@link SpooledMailEnvelope}, and
+     * releases it if the client disconnects part way through.
+     */
+    private static class SpoolingDataCmdHandler extends DataCmdHandler implements DisconnectHandler<SMTPSession> {
+
+        @Override
+        protected MailEnvelope createEnvelope(SMTPSession session, MailAddress sender,
+                List<MailAddress> recipients) {
+            SpooledMailEnvelope envelope = SpooledMailEnvelope.start(session);
+            envelope.setSender(sender);
+            envelope.setRecipients(recipients);
+            return envelope;
+        }
+
+        @Override
+        public void onDisconnect(SMTPSession session) {
+            SpooledMailEnvelope.releaseUnfinished(session);
+        }
+    }
+
+    /**
+     * Advertises the maximum size, and refuses MAIL with a larger SIZE, but
+     * leaves it to {@link SpooledMailEnvelope} to enforce while receiving.
+     * The stock filter ends the message as soon as it passes the size, which
+     * would store what was received so far, and then take the rest of the
+     * message for commands.
+     */
+    private static class AdvertisedSizeExtension extends MailSizeEsmtpExtension {
+
+        @Override
+        public Response onLine(SMTPSession session, ByteBuffer line, LineHandler<SMTPSession> next) {
+            return next.onLine(session, line);
+        }
+    }
+
+    /**
+     * Stores the message once its last line is received.
+     */
+    private static class PersistingDataLineHandler extends DataLineMessageHookHandler {
+
+        private final MessagePersister persister;
+
+        PersistingDataLineHandler(MessagePersister inPersister) {
+            persister = inPersister;
+        }
+
+        @Override
+        protected Response processExtensions(SMTPSession session, MailEnvelopeImpl mail) {
+            return persist(persister, session, (SpooledMailEnvelope) mail);
+        }
+
+        @Override
+        protected void checkMessageHookCount(List<?> messageHandlers) {
+            // Messages are persisted here, rather than by a message hook.
+        }
+    }
+
+    /**
+     * Accepts any credentials, as the SubEthaSMTP based server does.
+     */
+    private static class AgileAuthHook implements AuthHook {
+
+        @Override
+        public HookResult doAuth(SMTPSession session, String username, String password) {
+            LOG.info("User: {}", username);
+            return HookResult.ok();
+        }
+    }
+}
@@ -15,13 +15,16 @@
  */
 package com.redsaz.simiantoupee.smtp;
 
-import com.redsaz.simiantoupee.api.MessagesService;
+import com.google.common.io.ByteStreams;
+import com.redsaz.simiantoupee.api.AsyncMessagesService;
+import com.redsaz.simiantoupee.api.BlockingMessagesService;
 import com.redsaz.simiantoupee.api.exceptions.AppServerException;
-import com.redsaz.simiantoupee.api.model.MessageAddress;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.subethamail.smtp.MessageContext;
@@ -31,7 +34,10 @@ import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
 
 /**
- * Persists the incoming messages with {@link MessagesService}
+ * Persists the incoming messages with {@link AsyncMessagesService}. The sender
+ * and recipients of a message are looked up (or created) all at once, rather
+ * than one after another. Messages larger than the maximum size are refused
+ * as soon as the limit is passed, rather than read in full.
  *
  * @author Redsaz <redsaz@gmail.com>
  */
@@ -39,16 +45,24 @@ public class PersistingMessageHandlerFactory implements MessageHandlerFactory {
 
     private static final Logger LOG = LoggerFactory.getLogger(PersistingMessageHandlerFactory.class);
 
-    private final MessagesService msgSrv;
+    private final MessagePersister persister;
+    private final long maxMessageSize;
 
-    public PersistingMessageHandlerFactory(MessagesService messagesService) {
-        msgSrv = messagesService;
+    /**
+     * @param messagesService where the messages are stored
+     * @param inMaxMessageSize the most bytes a message may have, or 0 for no
+     * limit
+     */
+    public PersistingMessageHandlerFactory(AsyncMessagesService messagesService, long inMaxMessageSize) {
+        persister = new MessagePersister(messagesService);
+        maxMessageSize = inMaxMessageSize;
     }
 
     @Override
     public MessageHandler create(MessageContext mc) {
         return new MessageHandler() {
             private String sender;
+            private final List<String> recipients = new ArrayList<>();
 
             @Override
             public void from(String from) throws RejectException {
@@ -58,12 +72,31 @@ public class PersistingMessageHandlerFactory implements MessageHandlerFactory {
             @Override
             public void recipient(String recipient) throws RejectException {
                 LOG.debug("Recipient: {}", recipient);
+                recipients.add(recipient);
             }
 
             @Override
             public void data(InputStream data) throws RejectException, TooMuchDataException, IOException {
-                MessageAddress senderAddr = getOrCreateAddress(sender);
-                msgSrv.create(senderAddr, data);
+                InputStream limited = maxMessageSize > 0 ? new SizeLimitedInputStream(data, maxMessageSize) : data;
+                CompletableFuture<String> created = persister.persist(sender, recipients, limited);
+                // The message is only accepted once it is stored, and the
+                // data stream is only readable until this returns.
+                try {
+                    BlockingMessagesService.await(created);
+                } catch (AppServerException ex) {
+                    if (ex.getCause() instanceof RejectedExecutionException) {
+                        // The store has more work than it can queue, so ask
+                        // the sender to try again later.
+                        throw new RejectException(451, "4.3.2 Too busy, try again later");
+                    } else if (isTooMuchData(ex)) {
+                        // SubEthaSMTP only reads the rest of the message
+                        // when accepting it, so skip past it here, or it
+                        // would be taken for commands.
+                        ByteStreams.copy(data, ByteStreams.nullOutputStream());
+                        throw new RejectException(552, "5.3.4 Message size exceeds fixed maximum message size");
+                    }
+                    throw ex;
+                }
             }
 
             @Override
@@ -71,61 +104,16 @@ public class PersistingMessageHandlerFactory implements MessageHandlerFactory {
                 LOG.debug("Done.");
             }
 
-            private MessageAddress getOrCreateAddress(String fullAddress) {
-                String[] addressAndName = getAddressParts(fullAddress);
-                String email = addressAndName[0];
-                String name = addressAndName[1];
-                // First, attempt to get the email address.
-                MessageAddress addr = msgSrv.getAddress(email);
-                if (addr == null) {
-                    // If it doesn't exist, it needs created.
-                    try {
-                        addr = msgSrv.createAddress(email, name);
-                    } catch (AppServerException ex) {
-                        // If a different thread/instance/etc created the address
-                        // at the same time we did, and we failed, then retrieve the
-                        // successfully created one.
-                        addr = msgSrv.getAddress(email);
-                    }
-                    if (addr == null) {
-                        // If we didn't create a sender record after all that, something
-                        // is wrong.
-                        throw new AppServerException("Failed to create/retrieve sender record for " + email);
-                    }
-                }
-                return addr;
-            }
-
-            /**
-             * Extracts the address and name of a single email address entry.
-             * Examples are: {@code "Example Name" <example-email@example.com>}
-             * or {@code <example-email@example.com>} or
-             * {@code example-email@example.com}. The resulting String array
-             * will have the address in [0] and the name in [1] or null if no
-             * name was provided.
-             *
-             * @param addressEntry The single address entry
-             * @return the address in [0], and the name in [1].
-             */
-            private String[] getAddressParts(String addressEntry) {
-                String[] addressAndName = new String[]{null, null};
-                Pattern addressPattern = Pattern.compile("(?:\"([^\"]*)\"\\s*<([^>]+)>)|(?:<([^>]+)>)|(?:([^>]+))");
-                Matcher matcher = addressPattern.matcher(addressEntry);
-                if (matcher.find()) {
-                    addressAndName[1] = matcher.group(1);
-                    addressAndName[0] = matcher.group(2);
-                    if (addressAndName[0] == null) {
-                        addressAndName[0] = matcher.group(3);
-                        if (addressAndName[0] == null) {
-                            addressAndName[0] = matcher.group(4);
-                        }
-                    }
-                }
+        };
+    }
 
-                return addressAndName;
+    private static boolean isTooMuchData(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TooMuchDataException) {
+                return true;
             }
-
-        };
+        }
+        return false;
     }
 
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.smtp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.subethamail.smtp.TooMuchDataException;
+
+/**
+ * Fails with {@link TooMuchDataException} as soon as more than the limit has
+ * been read from the stream, so that whoever reads an oversized message stops
+ * there, rather than keeping all of it.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+class SizeLimitedInputStream extends FilterInputStream {
+
+    private final long limit;
+    private long count;
+
+    /**
+     * @param in the stream to read
+     * @param inLimit the most bytes that may be read
+     */
+    SizeLimitedInputStream(InputStream in, long inLimit) {
+        super(in);
+        limit = inLimit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            counted(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int length = super.read(b, off, len);
+        if (length > 0) {
+            counted(length);
+        }
+        return length;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        counted(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void counted(long length) throws TooMuchDataException {
+        count += length;
+        if (count > limit) {
+            throw new TooMuchDataException("The message is larger than " + limit + " bytes.");
+        }
+    }
+}
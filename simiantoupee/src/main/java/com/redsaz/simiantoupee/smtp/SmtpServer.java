@@ -15,7 +15,7 @@
  */
 package com.redsaz.simiantoupee.smtp;
 
-import com.redsaz.simiantoupee.api.MessagesService;
+import com.redsaz.simiantoupee.api.AsyncMessagesService;
 import java.io.Closeable;
 import org.subethamail.smtp.server.SMTPServer;
 
@@ -28,9 +28,18 @@ public class SmtpServer implements Closeable {
 
     private final SMTPServer smtpServer;
 
-    public SmtpServer(MessagesService messagesService, int port, String hostname) {
+    /**
+     * Constructs and starts an SMTP server.
+     *
+     * @param messagesService where the messages are stored
+     * @param port the port the server runs on
+     * @param hostname the name the server greets with
+     * @param maxMessageSize the most bytes a message may have, or 0 for no
+     * limit
+     */
+    public SmtpServer(AsyncMessagesService messagesService, int port, String hostname, long maxMessageSize) {
         // SimpleMessageListenerAdapter might be used instead.
-        smtpServer = new SMTPServer(new PersistingMessageHandlerFactory(messagesService),
+        smtpServer = new SMTPServer(new PersistingMessageHandlerFactory(messagesService, maxMessageSize),
                 new AgileAuthenticationHandlerFactory());
 
         smtpServer.setConnectionTimeout(300);
@@ -38,6 +47,9 @@ public class SmtpServer implements Closeable {
         smtpServer.setPort(port);
         smtpServer.setSoftwareName("simiantoupee");
         smtpServer.setRequireTLS(false);
+        // Advertised with SIZE, so that clients don't send what would be
+        // refused anyway.
+        smtpServer.setMaxMessageSize((int) Math.min(maxMessageSize, Integer.MAX_VALUE));
         smtpServer.start();
     }
 
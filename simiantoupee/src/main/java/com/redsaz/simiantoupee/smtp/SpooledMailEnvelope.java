@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.smtp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import org.apache.james.protocols.api.ProtocolSession.State;
+import org.apache.james.protocols.smtp.MailEnvelopeImpl;
+import org.apache.james.protocols.smtp.SMTPSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds a message while it is received by the Netty SMTP server. The bytes
+ * are kept in memory only up to a threshold, after which they are spooled to
+ * a temp file, so a large message costs little heap. Once a message passes
+ * the maximum size, the rest of it is only counted, so that it can be
+ * refused once the client has finished sending it.
+ * <p>
+ * The envelope must be released once the message has been stored or
+ * refused. Until then, the connection keeps track of it, so that it is still
+ * released if the client gives up on the message part way through.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+class SpooledMailEnvelope extends MailEnvelopeImpl {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpooledMailEnvelope.class);
+    private static final int SPOOL_MEMORY_THRESHOLD = 256 * 1024;
+    private static final String UNFINISHED = "SPOOLED_MAILENV";
+
+    private final long maxSize;
+    private final Spool spool = new Spool();
+    private long size;
+    private boolean tooBig;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private File file;
+    private OutputStream fileOut;
+
+    private SpooledMailEnvelope(long inMaxSize) {
+        maxSize = inMaxSize;
+    }
+
+    /**
+     * Starts a new message on the connection. If the connection had started
+     * another one which was neither stored nor refused, that one is released.
+     *
+     * @param session the session of the connection
+     * @return the envelope for the new message.
+     */
+    static SpooledMailEnvelope start(SMTPSession session) {
+        SpooledMailEnvelope envelope = new SpooledMailEnvelope(session.getConfiguration().getMaxMessageSize());
+        SpooledMailEnvelope abandoned = (SpooledMailEnvelope) session.setAttachment(UNFINISHED, envelope,
+                State.Connection);
+        if (abandoned != null) {
+            abandoned.release();
+        }
+        return envelope;
+    }
+
+    /**
+     * Releases the message which the connection was receiving, if any.
+     *
+     * @param session the session of the connection
+     */
+    static void releaseUnfinished(SMTPSession session) {
+        SpooledMailEnvelope abandoned = (SpooledMailEnvelope) session.setAttachment(UNFINISHED, null,
+                State.Connection);
+        if (abandoned != null) {
+            abandoned.release();
+        }
+    }
+
+    /**
+     * Stops the connection from keeping track of this message, because it is
+     * about to be stored or refused, which releases it afterwards.
+     *
+     * @param session the session of the connection
+     */
+    void finish(SMTPSession session) {
+        if (session.getAttachment(UNFINISHED, State.Connection) == this) {
+            session.setAttachment(UNFINISHED, null, State.Connection);
+        }
+    }
+
+    /**
+     * @return true if the message is larger than the maximum size.
+     */
+    boolean isTooBig() {
+        return tooBig;
+    }
+
+    /**
+     * Deletes the temp file, if the message was spooled to one.
+     */
+    void release() {
+        memory = null;
+        closeFile();
+        if (file != null && !file.delete() && file.exists()) {
+            LOG.warn("Could not delete spool file {}", file);
+        }
+        file = null;
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public OutputStream getMessageOutputStream() {
+        return spool;
+    }
+
+    @Override
+    public InputStream getMessageInputStream() {
+        spool.close();
+        if (tooBig) {
+            throw new IllegalStateException("The message is larger than " + maxSize + " bytes.");
+        } else if (file != null) {
+            try {
+                return new FileInputStream(file);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return new ByteArrayInputStream(memory.toByteArray());
+    }
+
+    private void closeFile() {
+        if (fileOut != null) {
+            try {
+                fileOut.close();
+            } catch (IOException ex) {
+                LOG.debug("Could not close spool.", ex);
+            }
+            fileOut = null;
+        }
+    }
+
+    /**
+     * Keeps what is written, in memory or in the temp file, until the
+     * maximum size is passed.
+     */
+    private class Spool extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            size += len;
+            if (tooBig) {
+                return;
+            } else if (maxSize > 0 && size > maxSize) {
+                tooBig = true;
+                release();
+                return;
+            } else if (file == null && size > SPOOL_MEMORY_THRESHOLD) {
+                file = Files.createTempFile("simiantoupee-", ".eml").toFile();
+                LOG.debug("Spooling message to {}", file);
+                fileOut = new BufferedOutputStream(new FileOutputStream(file));
+                memory.writeTo(fileOut);
+                memory = null;
+            }
+            if (fileOut != null) {
+                fileOut.write(b, off, len);
+            } else {
+                memory.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() {
+            // DATA flushes after every line, but the message is only read
+            // back once it is complete, which closes the spool first.
+        }
+
+        @Override
+        public void close() {
+            closeFile();
+        }
+    }
+}
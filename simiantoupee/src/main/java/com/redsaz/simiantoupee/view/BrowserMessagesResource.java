@@ -16,12 +16,14 @@
 package com.redsaz.simiantoupee.view;
 
 import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.Direction;
 import java.net.URI;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
 import javax.ws.rs.NotFoundException;
@@ -29,6 +31,7 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
@@ -55,20 +58,43 @@ public class BrowserMessagesResource {
     }
 
     /**
-     * Presents a web page of messages.
+     * Presents a web page of messages, newest first. If a query is given, only
+     * the messages matching it are listed, and if a recipient is given, only
+     * the messages sent to that recipient.
      *
      * @param httpRequest The request for the page.
+     * @param q Words to search for, if any.
+     * @param to The email address of the recipient, if any.
+     * @param after The id of the last message of the previous page, if any.
+     * @param limit The most messages to list.
      * @return Messages, by URI and title.
      */
     @GET
     @Produces(MediaType.TEXT_HTML)
-    public Response listMessages(@Context HttpServletRequest httpRequest) {
+    public Response listMessages(@Context HttpServletRequest httpRequest,
+            @QueryParam("q") String q,
+            @QueryParam("to") String to,
+            @QueryParam("after") String after,
+            @QueryParam("limit") @DefaultValue("100") int limit) {
         String base = httpRequest.getContextPath();
         String dist = base + "/dist";
-        List<BasicMessage> messages = messagesSrv.getPreviewMessages();
-
         Map<String, Object> root = new HashMap<>();
+        List<BasicMessage> messages;
+        if (q != null && !q.trim().isEmpty()) {
+            messages = messagesSrv.search(q, limit);
+            root.put("q", q);
+        } else if (to != null && !to.trim().isEmpty()) {
+            messages = messagesSrv.getPreviewMessagesTo(to, after, limit, Direction.NEWEST_FIRST);
+            root.put("to", to);
+        } else {
+            messages = messagesSrv.getPreviewMessages(after, limit, Direction.NEWEST_FIRST);
+        }
+
         root.put("messages", messages);
+        if (q == null && messages.size() == limit) {
+            root.put("nextAfter", messages.get(messages.size() - 1).getId());
+            root.put("limit", limit);
+        }
         root.put("base", base);
         root.put("dist", dist);
         root.put("title", "Messages");
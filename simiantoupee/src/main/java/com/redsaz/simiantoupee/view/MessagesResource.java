@@ -17,14 +17,29 @@ package com.redsaz.simiantoupee.view;
 
 import com.redsaz.simiantoupee.api.MessagesService;
 import com.redsaz.simiantoupee.api.SimianToupeeMediaType;
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
 import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.Direction;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
 import javax.inject.Inject;
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.ParseException;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.NotFoundException;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
@@ -36,6 +51,10 @@ import javax.ws.rs.core.Response.Status;
 @Path("/messages")
 public class MessagesResource {
 
+    // Types a browser only displays, and never runs scripts in.
+    private static final Set<String> SAFE_INLINE_TYPES = new HashSet<>(Arrays.asList(
+            "text/plain", "image/png", "image/jpeg", "image/gif", "image/webp"));
+
     private MessagesService messagesSrv;
 
     public MessagesResource() {
@@ -47,14 +66,30 @@ public class MessagesResource {
     }
 
     /**
-     * Lists all of the messages.
+     * Lists a page of messages, or if a query is given, the newest messages
+     * that match it. If a recipient is given, only the messages sent to that
+     * recipient are listed.
      *
+     * @param q Words to search for, if any.
+     * @param to The email address of the recipient, if any.
+     * @param after The id of the last message of the previous page, if any.
+     * @param limit The most messages to list.
+     * @param direction Whether the newest or the oldest messages come first.
      * @return Messages, by URI and title.
      */
     @GET
     @Produces(SimianToupeeMediaType.BASIC_MESSAGES_V1_JSON)
-    public Response listMessages() {
-        return Response.ok(messagesSrv.getPreviewMessages()).build();
+    public Response listMessages(@QueryParam("q") String q,
+            @QueryParam("to") String to,
+            @QueryParam("after") String after,
+            @QueryParam("limit") @DefaultValue("100") int limit,
+            @QueryParam("direction") @DefaultValue("NEWEST_FIRST") Direction direction) {
+        if (q != null) {
+            return Response.ok(messagesSrv.search(q, limit)).build();
+        } else if (to != null) {
+            return Response.ok(messagesSrv.getPreviewMessagesTo(to, after, limit, direction)).build();
+        }
+        return Response.ok(messagesSrv.getPreviewMessages(after, limit, direction)).build();
     }
 
     /**
@@ -93,6 +128,53 @@ public class MessagesResource {
         return Response.ok(message).build();
     }
 
+    /**
+     * Get one part of the message, such as an attachment, decoded. Only the
+     * bytes of that part are read from the store.
+     *
+     * @param id The id of the message.
+     * @param number The number of the part, from 1, in the order the parts are
+     * in the message. Multipart parts are not counted, only the parts in them.
+     * @return The decoded part, with its own content type. Since whoever sent
+     * the message chose that type, only types which cannot run scripts are
+     * shown inline, and everything else is downloaded as an attachment.
+     */
+    @GET
+    @Path("{id}/parts/{number}")
+    public Response getMessagePart(@PathParam("id") String id, @PathParam("number") int number) {
+        InputStream raw = messagesSrv.getMessagePart(id, number);
+        if (raw == null) {
+            throw new NotFoundException("Could not find part " + number + " of message id=" + id);
+        }
+        try (InputStream is = raw) {
+            MimeBodyPart part = new MimeBodyPart(is);
+            String mediaType = mediaTypeOf(part);
+            String disposition = isSafeInline(mediaType) ? "inline" : "attachment";
+            String fileName = part.getFileName();
+            if (fileName != null) {
+                disposition += "; filename=\"" + fileName.replaceAll("[^\\x20-\\x7e]|[\"\\\\]", "_") + "\"";
+            }
+            return Response.ok(part.getInputStream(), mediaType)
+                    .header("Content-Disposition", disposition)
+                    .header("X-Content-Type-Options", "nosniff")
+                    .header("Content-Security-Policy", "sandbox")
+                    .build();
+        } catch (MessagingException | IOException ex) {
+            throw new AppServerException("Could not read part " + number + " of message id=" + id, ex);
+        }
+    }
+
+    /**
+     * Deletes every message.
+     *
+     * @return No content.
+     */
+    @DELETE
+    public Response deleteAllMessages() {
+        messagesSrv.deleteAllMessages();
+        return Response.status(Status.NO_CONTENT).build();
+    }
+
     @DELETE
     @Path("{id}")
     public Response deleteMessage(@PathParam("id") String id) {
@@ -100,4 +182,26 @@ public class MessagesResource {
         return Response.status(Status.NO_CONTENT).build();
     }
 
+    private static boolean isSafeInline(String mediaType) {
+        String baseType = mediaType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+        return SAFE_INLINE_TYPES.contains(baseType);
+    }
+
+    /**
+     * @return the media type of the part, with only the charset kept of its
+     * parameters.
+     */
+    private static String mediaTypeOf(MimeBodyPart part) throws MessagingException {
+        try {
+            ContentType contentType = new ContentType(part.getContentType());
+            String charset = contentType.getParameter("charset");
+            if (charset == null) {
+                return contentType.getBaseType();
+            }
+            return contentType.getBaseType() + "; charset=" + charset;
+        } catch (ParseException ex) {
+            return MediaType.APPLICATION_OCTET_STREAM;
+        }
+    }
+
 }
@@ -15,12 +15,17 @@
  */
 package com.redsaz.simiantoupee.view;
 
-import com.redsaz.simiantoupee.store.HsqlMessagesService;
+import com.redsaz.simiantoupee.api.exceptions.AppClientException;
 import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.Direction;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.inject.Default;
 import com.redsaz.simiantoupee.api.MessagesService;
+import com.redsaz.simiantoupee.api.MessagesServiceLoader;
 import com.redsaz.simiantoupee.api.model.MessageAddress;
 import java.io.InputStream;
 import javax.mail.internet.MimeMessage;
@@ -36,10 +41,16 @@ import javax.mail.internet.MimeMessage;
 @ApplicationScoped
 public class SanitizedMessagesService implements MessagesService {
 
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    // There may be more than one of this service, but they all share one
+    // store, chosen with the simiantoupee.store system property.
+    private static final MessagesService STORE = MessagesServiceLoader.load();
+
     private final MessagesService srv;
 
     public SanitizedMessagesService() {
-        srv = new HsqlMessagesService();
+        srv = STORE;
     }
 
     @Override
@@ -52,11 +63,50 @@ public class SanitizedMessagesService implements MessagesService {
         srv.deleteMessage(id);
     }
 
+    @Override
+    public void deleteAllMessages() {
+        srv.deleteAllMessages();
+    }
+
     @Override
     public List<BasicMessage> getPreviewMessages() {
         return srv.getPreviewMessages();
     }
 
+    @Override
+    public List<BasicMessage> getPreviewMessages(String after, int limit, Direction direction) {
+        checkLimit(limit);
+        if (direction == null) {
+            direction = Direction.NEWEST_FIRST;
+        }
+        return srv.getPreviewMessages(after, limit, direction);
+    }
+
+    @Override
+    public List<BasicMessage> getPreviewMessagesTo(String recipient) {
+        checkRecipient(recipient);
+        return srv.getPreviewMessagesTo(recipient);
+    }
+
+    @Override
+    public List<BasicMessage> getPreviewMessagesTo(String recipient, String after, int limit, Direction direction) {
+        checkRecipient(recipient);
+        checkLimit(limit);
+        if (direction == null) {
+            direction = Direction.NEWEST_FIRST;
+        }
+        return srv.getPreviewMessagesTo(recipient, after, limit, direction);
+    }
+
+    @Override
+    public List<BasicMessage> search(String query, int limit) {
+        checkLimit(limit);
+        if (query == null || query.trim().isEmpty()) {
+            throw new AppClientException("The search query must not be empty.");
+        }
+        return srv.search(query, limit);
+    }
+
     @Override
     public MimeMessage getMessage(String id) {
         return srv.getMessage(id);
@@ -68,11 +118,29 @@ public class SanitizedMessagesService implements MessagesService {
     }
 
     @Override
-    public String create(MessageAddress sender, InputStream messageStream) {
+    public InputStream getMessageHeaders(String id) {
+        return srv.getMessageHeaders(id);
+    }
+
+    @Override
+    public InputStream getMessageBody(String id) {
+        return srv.getMessageBody(id);
+    }
+
+    @Override
+    public InputStream getMessagePart(String id, int number) {
+        return srv.getMessagePart(id, number);
+    }
+
+    @Override
+    public String create(MessageAddress sender, List<MessageAddress> recipients, InputStream messageStream) {
         if (messageStream == null) {
             return null;
         }
-        return srv.create(sender, messageStream);
+        if (recipients == null) {
+            recipients = Collections.emptyList();
+        }
+        return srv.create(sender, recipients, messageStream);
     }
 
     @Override
@@ -93,4 +161,26 @@ public class SanitizedMessagesService implements MessagesService {
         return srv.getAddress(id);
     }
 
+    @Override
+    public Map<String, MessageAddress> getAddresses(Collection<String> addresses) {
+        return srv.getAddresses(addresses);
+    }
+
+    @Override
+    public Map<String, Long> getStats() {
+        return srv.getStats();
+    }
+
+    private static void checkLimit(int limit) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new AppClientException("The limit must be between 1 and " + MAX_PAGE_SIZE + ".");
+        }
+    }
+
+    private static void checkRecipient(String recipient) {
+        if (recipient == null || recipient.trim().isEmpty()) {
+            throw new AppClientException("The recipient must not be empty.");
+        }
+    }
+
 }
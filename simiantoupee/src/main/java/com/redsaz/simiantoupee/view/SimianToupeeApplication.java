@@ -16,11 +16,17 @@
 package com.redsaz.simiantoupee.view;
 
 import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
+import com.redsaz.simiantoupee.api.ExecutorAsyncMessagesService;
 import com.redsaz.simiantoupee.api.MessagesService;
+import com.redsaz.simiantoupee.api.exceptions.AppServerException;
 import com.redsaz.simiantoupee.api.exceptions.ExceptionMappers;
+import com.redsaz.simiantoupee.netty.NettyEventLoops;
 import com.redsaz.simiantoupee.pop3.Pop3Server;
+import com.redsaz.simiantoupee.smtp.NettySmtpServer;
 import com.redsaz.simiantoupee.smtp.SmtpServer;
+import java.io.Closeable;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import javax.ws.rs.ApplicationPath;
 import javax.ws.rs.core.Application;
@@ -35,14 +41,17 @@ import javax.ws.rs.core.Application;
 public class SimianToupeeApplication extends Application {
 
     private static final MessagesService MESSAGES_SERVICE = new SanitizedMessagesService();
-    private static final SmtpServer SMTP_SERVER = new SmtpServer(MESSAGES_SERVICE, 40025, "localhost");
-    private static final Pop3Server POP3_SERVER = new Pop3Server(MESSAGES_SERVICE, 40110);
+    private static final ExecutorAsyncMessagesService ASYNC_MESSAGES_SERVICE = new ExecutorAsyncMessagesService(MESSAGES_SERVICE);
+    private static final NettyEventLoops NETTY_EVENT_LOOPS = NettyEventLoops.fromSystemProperties();
+    private static final Closeable SMTP_SERVER = createSmtpServer(40025, "localhost");
+    private static final Pop3Server POP3_SERVER = new Pop3Server(MESSAGES_SERVICE, NETTY_EVENT_LOOPS, 40110);
 
     @Override
     public Set<Class<?>> getClasses() {
         Set<Class<?>> classes = new HashSet<>();
         classes.add(MessagesResource.class);
         classes.add(BrowserMessagesResource.class);
+        classes.add(StatsResource.class);
         classes.add(JacksonJsonProvider.class);
         classes.add(StaticContentFilter.class);
         classes.add(Templater.class);
@@ -63,4 +72,37 @@ public class SimianToupeeApplication extends Application {
         return singletons;
     }
 
+    /**
+     * Adds the counters of the store executor, which SMTP calls the store
+     * through, to the stats.
+     *
+     * @param stats where to put the counts
+     */
+    static void addStoreExecutorStats(Map<String, Long> stats) {
+        ASYNC_MESSAGES_SERVICE.addStats(stats);
+    }
+
+    /**
+     * Starts the SMTP server given by the {@code simiantoupee.smtp.engine}
+     * system property, refusing messages larger than
+     * {@code simiantoupee.smtp.maxMessageSize}.
+     */
+    private static Closeable createSmtpServer(int port, String hostname) {
+        String engine = System.getProperty("simiantoupee.smtp.engine", "subetha");
+        long maxMessageSize = Long.getLong("simiantoupee.smtp.maxMessageSize", 0);
+        if (maxMessageSize < 0) {
+            throw new AppServerException("simiantoupee.smtp.maxMessageSize must not be negative, but was "
+                    + maxMessageSize);
+        }
+        switch (engine) {
+            case "subetha":
+                return new SmtpServer(ASYNC_MESSAGES_SERVICE, port, hostname, maxMessageSize);
+            case "netty":
+                return new NettySmtpServer(ASYNC_MESSAGES_SERVICE, NETTY_EVENT_LOOPS, port, hostname,
+                        maxMessageSize);
+            default:
+                throw new AppServerException("simiantoupee.smtp.engine must be subetha or netty, but was " + engine);
+        }
+    }
+
 }
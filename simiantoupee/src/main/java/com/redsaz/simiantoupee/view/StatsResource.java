@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.view;
+
+import com.redsaz.simiantoupee.api.MessagesService;
+import com.redsaz.simiantoupee.api.SimianToupeeMediaType;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Provides counters about how the message store is doing.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+@Path("/stats")
+public class StatsResource {
+
+    private MessagesService messagesSrv;
+
+    public StatsResource() {
+    }
+
+    @Inject
+    public StatsResource(MessagesService messagesService) {
+        messagesSrv = messagesService;
+    }
+
+    /**
+     * Lists the counters of the message store, and of the store executor
+     * which SMTP calls it through.
+     *
+     * @return Counters, by name.
+     */
+    @GET
+    @Produces({SimianToupeeMediaType.STATS_V1_JSON, MediaType.APPLICATION_JSON})
+    public Response getStats() {
+        Map<String, Long> stats = new TreeMap<>(messagesSrv.getStats());
+        SimianToupeeApplication.addStoreExecutorStats(stats);
+        return Response.ok(stats).build();
+    }
+
+}
@@ -18,6 +18,11 @@
         <div class="col-sm-12 col-md-12 main">
           <h1 class="page-header">Messages</h1>
 
+          <form action="${base}/messages" method="GET" class="form-inline">
+            <input type="search" name="q" class="form-control" placeholder="Search" value="${q!}"/>
+            <button type="submit" class="btn btn-default">Search</button>
+          </form>
+
           <div class="resizable">
             <table class="table table-striped messages">
               <tbody>
@@ -37,6 +42,9 @@
                 </#list>
               </tbody>
             </table>
+            <#if nextAfter??>
+            <a href="${base}/messages?<#if to??>to=${to?url}&amp;</#if>after=${nextAfter?url}&amp;limit=${limit?c}">Older messages</a>
+            </#if>
           </div>
         </div>
       </div>
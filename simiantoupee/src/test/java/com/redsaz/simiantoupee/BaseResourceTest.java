@@ -17,6 +17,7 @@ package com.redsaz.simiantoupee;
 
 import com.redsaz.simiantoupee.view.Templater;
 import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.api.model.Direction;
 import com.redsaz.simiantoupee.view.BrowserMessagesResource;
 import java.util.Collections;
 import javax.servlet.http.HttpServletRequest;
@@ -33,6 +34,7 @@ import org.testng.annotations.DataProvider;
 import com.redsaz.simiantoupee.api.MessagesService;
 import com.redsaz.simiantoupee.api.model.MessageAddress;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.mock;
 
 /**
@@ -86,6 +88,9 @@ public class BaseResourceTest extends Assert {
         BasicMessage nonExistingMessage = null;
         when(mockedMessagesGoods.getBasicMessage(NON_EXISTING_MESSAGE_ID)).thenReturn(nonExistingMessage);
         when(mockedMessagesGoods.getPreviewMessages()).thenReturn(Collections.singletonList(existingMessage));
+        when(mockedMessagesGoods.getPreviewMessages(any(String.class), anyInt(), any(Direction.class))).thenReturn(Collections.singletonList(existingMessage));
+        when(mockedMessagesGoods.getPreviewMessagesTo(any(String.class), any(String.class), anyInt(), any(Direction.class))).thenReturn(Collections.singletonList(existingMessage));
+        when(mockedMessagesGoods.search(any(String.class), anyInt())).thenReturn(Collections.singletonList(existingMessage));
 
         return mockedMessagesGoods;
     }
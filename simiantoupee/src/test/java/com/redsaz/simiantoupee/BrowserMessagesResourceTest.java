@@ -15,6 +15,7 @@
  */
 package com.redsaz.simiantoupee;
 
+import com.redsaz.simiantoupee.api.model.Direction;
 import java.net.URI;
 import java.net.URISyntaxException;
 import javax.servlet.http.HttpServletResponse;
@@ -40,7 +41,49 @@ public class BrowserMessagesResourceTest extends BaseResourceTest {
         // ... Then the messages list page should be returned.
         assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
 
-        verify(context.messagesService).getPreviewMessages();
+        verify(context.messagesService).getPreviewMessages(null, 100, Direction.NEWEST_FIRST);
+        verify(context.templater).buildFromTemplate(any(), any(String.class));
+    }
+
+    @Test(dataProvider = DEFAULT_DP)
+    public void testListBasicMessagesAfter(Context context) throws URISyntaxException {
+        // Given that the service is running...
+        // ... When the user views the next page of messages...
+        MockHttpRequest request = MockHttpRequest.get("/messages?after=" + EXISTING_MESSAGE_ID + "&limit=20").accept(MediaType.TEXT_HTML);
+        HttpResponse response = context.invoke(request);
+
+        // ... Then the page after the given message should be returned.
+        assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+
+        verify(context.messagesService).getPreviewMessages(EXISTING_MESSAGE_ID, 20, Direction.NEWEST_FIRST);
+        verify(context.templater).buildFromTemplate(any(), any(String.class));
+    }
+
+    @Test(dataProvider = DEFAULT_DP)
+    public void testListBasicMessagesTo(Context context) throws URISyntaxException {
+        // Given that the service is running...
+        // ... When the user views the messages sent to a recipient...
+        MockHttpRequest request = MockHttpRequest.get("/messages?to=user%40example.com").accept(MediaType.TEXT_HTML);
+        HttpResponse response = context.invoke(request);
+
+        // ... Then only that recipient's messages should be listed.
+        assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+
+        verify(context.messagesService).getPreviewMessagesTo("user@example.com", null, 100, Direction.NEWEST_FIRST);
+        verify(context.templater).buildFromTemplate(any(), any(String.class));
+    }
+
+    @Test(dataProvider = DEFAULT_DP)
+    public void testSearchMessages(Context context) throws URISyntaxException {
+        // Given that the service is running...
+        // ... When the user searches for messages...
+        MockHttpRequest request = MockHttpRequest.get("/messages?q=reset%20user%40example.com").accept(MediaType.TEXT_HTML);
+        HttpResponse response = context.invoke(request);
+
+        // ... Then the matching messages should be listed.
+        assertEquals(response.getStatus(), HttpServletResponse.SC_OK);
+
+        verify(context.messagesService).search("reset user@example.com", 100);
         verify(context.templater).buildFromTemplate(any(), any(String.class));
     }
 
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 Redsaz <redsaz@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redsaz.simiantoupee.smtp;
+
+import com.google.common.io.ByteStreams;
+import com.redsaz.simiantoupee.api.ExecutorAsyncMessagesService;
+import com.redsaz.simiantoupee.api.model.BasicMessage;
+import com.redsaz.simiantoupee.netty.NettyEventLoops;
+import com.redsaz.simiantoupee.store.memory.MemoryMessagesService;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Sends BDAT chunks to a running SMTP server over a loopback connection, so
+ * that both the frame decoder and the command handler are driven.
+ *
+ * @author Redsaz <redsaz@gmail.com>
+ */
+public class BdatCmdHandlerTest extends Assert {
+
+    private static final int MAX_MESSAGE_SIZE = 1000;
+
+    private MemoryMessagesService messagesService;
+    private NettyEventLoops eventLoops;
+    private NettySmtpServer server;
+    private int port;
+
+    @BeforeMethod
+    public void startServer() throws IOException {
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        messagesService = new MemoryMessagesService();
+        eventLoops = new NettyEventLoops(1);
+        server = new NettySmtpServer(new ExecutorAsyncMessagesService(messagesService, 1, 10), eventLoops, port,
+                "localhost", MAX_MESSAGE_SIZE);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void stopServer() {
+        server.close();
+        eventLoops.close();
+    }
+
+    @Test(timeOut = 30000)
+    public void testChunksAreJoined() throws IOException, InterruptedException {
+        // Given a client which has started a transaction...
+        try (Client client = new Client(port)) {
+            client.startTransaction();
+
+            // ... When the message is sent in chunks which end mid-line, hold
+            // lines starting with a dot, and arrive in pieces...
+            String first = "Subject: chunked\r\n\r\n.leading dot\r\nsplit li";
+            String second = "ne\r\n.\r\nend\r\n";
+            client.send("BDAT " + first.length() + "\r\n" + first.substring(0, 10));
+            Thread.sleep(50);
+            client.send(first.substring(10));
+            String firstReply = client.reply();
+            // The last chunk and the next command are sent together.
+            client.send("BDAT " + second.length() + " LAST\r\n" + second + "NOOP\r\n");
+
+            // ... Then each chunk is acknowledged, and the message is stored
+            // byte for byte, after the Received header.
+            assertTrue(firstReply.startsWith("250 "), firstReply);
+            assertTrue(firstReply.contains(first.length() + " octets received"), firstReply);
+            assertTrue(client.reply().startsWith("250 "));
+            assertTrue(client.reply().startsWith("250 "), "The NOOP should be read as a command.");
+            String stored = onlyMessage();
+            assertTrue(stored.startsWith("Received: "), stored);
+            assertTrue(stored.endsWith("\r\n" + first + second), stored);
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testBdatWithoutMailOrRcpt() throws IOException {
+        // Given a client which has not started a transaction...
+        try (Client client = new Client(port)) {
+            client.ehlo();
+
+            // ... When it sends a chunk without MAIL, and then without RCPT...
+            client.send("BDAT 5\r\nhello");
+            String noSender = client.reply();
+            client.send("MAIL FROM:<sender@example.com>\r\n");
+            client.reply();
+            client.send("BDAT 5 LAST\r\nhello");
+            String noRecipient = client.reply();
+            client.send("NOOP\r\n");
+
+            // ... Then each is refused, the chunks are still read in full so
+            // that the connection stays in step, and nothing is stored.
+            assertTrue(noSender.startsWith("503 "), noSender);
+            assertTrue(noRecipient.startsWith("503 "), noRecipient);
+            assertTrue(client.reply().startsWith("250 "));
+            assertTrue(messagesService.getPreviewMessages().isEmpty());
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testEmptyLastChunk() throws IOException {
+        // Given a client which has sent a chunk of the message...
+        try (Client client = new Client(port)) {
+            client.startTransaction();
+            String chunk = "Subject: zero\r\n\r\nzero\r\n";
+            client.send("BDAT " + chunk.length() + "\r\n" + chunk);
+            client.reply();
+
+            // ... When it ends the message with an empty LAST chunk...
+            client.send("BDAT 0 LAST\r\n");
+            String reply = client.reply();
+
+            // ... Then the message is stored as it was sent.
+            assertTrue(reply.startsWith("250 "), reply);
+            assertTrue(onlyMessage().endsWith("\r\n" + chunk));
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testOversizedChunk() throws IOException {
+        // Given a client which has started a transaction...
+        try (Client client = new Client(port)) {
+            client.startTransaction();
+
+            // ... When it sends a chunk larger than the maximum message size...
+            StringBuilder chunk = new StringBuilder("Subject: big\r\n\r\n");
+            while (chunk.length() < MAX_MESSAGE_SIZE * 2) {
+                chunk.append("0123456789\r\n");
+            }
+            client.send("BDAT " + chunk.length() + " LAST\r\n" + chunk);
+            String reply = client.reply();
+            client.send("NOOP\r\n");
+
+            // ... Then the message is refused as too big, the connection stays
+            // in step, and nothing is stored.
+            assertTrue(reply.startsWith("552 "), reply);
+            assertTrue(client.reply().startsWith("250 "));
+            assertTrue(messagesService.getPreviewMessages().isEmpty());
+        }
+    }
+
+    private String onlyMessage() throws IOException {
+        List<BasicMessage> messages = messagesService.getPreviewMessages();
+        assertEquals(messages.size(), 1);
+        try (InputStream raw = messagesService.getMessageStream(messages.get(0).getId())) {
+            return new String(ByteStreams.toByteArray(raw), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Speaks SMTP over a plain socket, so that the bytes sent are exactly
+     * those given.
+     */
+    private static class Client implements Closeable {
+
+        private final Socket socket;
+        private final BufferedReader in;
+        private final OutputStream out;
+
+        Client(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setSoTimeout(10000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            out = socket.getOutputStream();
+            String greeting = reply();
+            assertTrue(greeting.startsWith("220 "), greeting);
+        }
+
+        void ehlo() throws IOException {
+            send("EHLO client.example.com\r\n");
+            String reply = reply();
+            assertTrue(reply.startsWith("250 "), reply);
+        }
+
+        void startTransaction() throws IOException {
+            ehlo();
+            send("MAIL FROM:<sender@example.com>\r\n");
+            assertTrue(reply().startsWith("250 "));
+            send("RCPT TO:<recipient@example.com>\r\n");
+            assertTrue(reply().startsWith("250 "));
+        }
+
+        void send(CharSequence text) throws IOException {
+            out.write(text.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+
+        /**
+         * @return the last line of the next reply.
+         */
+        String reply() throws IOException {
+            String line = in.readLine();
+            while (line != null && line.length() > 3 && line.charAt(3) == '-') {
+                line = in.readLine();
+            }
+            assertNotNull(line, "The server closed the connection.");
+            return line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}